@@ -52,6 +52,7 @@ public class MainActivity extends AppCompatActivity {
     private static final String KEY_DARK_MODE = "isDarkMode";
     private static final int PERMISSION_CODE = 2001;
     private static final String CHANNEL_ID = "nova_alerts";
+    private static final String CHAT_CHANNEL_ID = "nova_messages";
 
     private Button btnSOS;
     private Switch themeSwitch;
@@ -396,7 +397,8 @@ public class MainActivity extends AppCompatActivity {
             return;
         }
 
-        MeshMessage msg = HopManager.hopManagerInstance.sendOutgoing(username, 0, "SOS");
+        MeshMessage msg = HopManager.hopManagerInstance.sendOutgoing(
+                username, 0, "SOS", MeshMessage.PRIORITY_SOS);
 
         if (msg == null) {
             Toast.makeText(this, "Send failed", Toast.LENGTH_SHORT).show();
@@ -416,13 +418,22 @@ public class MainActivity extends AppCompatActivity {
                 CHANNEL_ID, "NOVA Alerts", NotificationManager.IMPORTANCE_HIGH
         );
 
+        NotificationChannel chat = new NotificationChannel(
+                CHAT_CHANNEL_ID, "NOVA Messages", NotificationManager.IMPORTANCE_DEFAULT
+        );
+
         NotificationManager nm = getSystemService(NotificationManager.class);
         nm.createNotificationChannel(ch);
+        nm.createNotificationChannel(chat);
     }
 
 
     private void showNotification(MeshMessage msg) {
 
+        // presence beacons only update the list
+        if (msg.priority == MeshMessage.PRIORITY_PRESENCE) return;
+        boolean sos = msg.priority == MeshMessage.PRIORITY_SOS;
+
         Intent i = new Intent(this, MainActivity.class);
 
         PendingIntent pi = PendingIntent.getActivity(
@@ -432,11 +443,12 @@ public class MainActivity extends AppCompatActivity {
                 PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE
         );
 
-        NotificationCompat.Builder b = new NotificationCompat.Builder(this, CHANNEL_ID)
+        NotificationCompat.Builder b = new NotificationCompat.Builder(this, sos ? CHANNEL_ID : CHAT_CHANNEL_ID)
                 .setSmallIcon(R.drawable.ic_sos)
-                .setContentTitle("Alert from " + msg.sender)
+                .setContentTitle((sos ? "SOS from " : "Message from ") + msg.sender)
                 .setContentText(msg.payload)
-                .setPriority(NotificationCompat.PRIORITY_HIGH)
+                .setPriority(sos ? NotificationCompat.PRIORITY_MAX : NotificationCompat.PRIORITY_DEFAULT)
+                .setCategory(sos ? NotificationCompat.CATEGORY_ALARM : NotificationCompat.CATEGORY_MESSAGE)
                 .setAutoCancel(true)
                 .setContentIntent(pi);
 
@@ -20,10 +20,11 @@ public class SOSActivity extends AppCompatActivity {
         btnSendSOS = findViewById(R.id.btnSendSOS);
 
         // Initialize BLE Manager (listener receives decrypted AES messages)
+        // (delivered on the mesh worker thread)
         bleManager = new BLEManager(this, message -> {
-            Toast.makeText(SOSActivity.this,
+            runOnUiThread(() -> Toast.makeText(SOSActivity.this,
                     "🚨 Received: " + message,
-                    Toast.LENGTH_LONG).show();
+                    Toast.LENGTH_LONG).show());
         });
 
         // Send SOS on button click
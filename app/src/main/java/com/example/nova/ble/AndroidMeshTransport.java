@@ -0,0 +1,266 @@
+package com.example.nova.ble;
+
+import android.Manifest;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothManager;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.core.content.ContextCompat;
+
+import com.example.nova.model.MeshMessage;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * AndroidMeshTransport
+ * ---------------------
+ * MeshTransport over the real BLE stack:
+ *  - BluetoothScanner    → headers
+ *  - BluetoothAdvertiser → header adverts
+ *  - PayloadGattClient   → payload fetch
+ *  - GattServer          → payload serving
+ *
+ * HopManager talks in addresses; the BluetoothDevice objects handed to us by
+ * the scanner are remembered here so connectGatt keeps the right address type.
+ * Alternate holders of an id (see NeighbourTable.holdersOf) may only have been
+ * heard as duplicates; those are resolved through the adapter, whose scan
+ * cache still knows their address type.
+ */
+public class AndroidMeshTransport implements MeshTransport {
+
+    private static final String TAG = "AndroidMeshTransport";
+    private static final int MAX_KNOWN_DEVICES = 256;
+
+    private final Context ctx;
+    private final BluetoothAdvertiser advertiser;
+    private final BluetoothScanner scanner;
+    private final NeighbourTable noNeighbours = new NeighbourTable();
+    private final PayloadGattClient gattClient;
+
+    private final Object gattLock = new Object();
+    private GattServer gattServer;
+
+    private BluetoothScanner.BluetoothScannerListener headerListener;
+
+    // address → last BluetoothDevice seen with that address (LRU)
+    private final Map<String, BluetoothDevice> knownDevices =
+            new LinkedHashMap<String, BluetoothDevice>(64, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, BluetoothDevice> eldest) {
+                    return size() > MAX_KNOWN_DEVICES;
+                }
+            };
+
+    public AndroidMeshTransport(Context ctx,
+                                BluetoothAdvertiser advertiser,
+                                BluetoothScanner scanner) {
+        this.ctx = ctx.getApplicationContext();
+        this.advertiser = advertiser;
+        this.scanner = scanner;
+        this.gattClient = new PayloadGattClient(this.ctx);
+
+        if (scanner != null)
+            scanner.setListener(this::onHeader);
+    }
+
+    private boolean check(String perm) {
+        return ContextCompat.checkSelfPermission(ctx, perm) == PackageManager.PERMISSION_GRANTED;
+    }
+
+    private boolean hasScanPermission() {
+        return Build.VERSION.SDK_INT >= 31 ?
+                check(Manifest.permission.BLUETOOTH_SCAN) :
+                check(Manifest.permission.ACCESS_FINE_LOCATION);
+    }
+
+    private boolean hasConnectPermission() {
+        return Build.VERSION.SDK_INT >= 31 ?
+                check(Manifest.permission.BLUETOOTH_CONNECT) : true;
+    }
+
+    // ----------------------------------------------------------
+    // SCAN
+    // ----------------------------------------------------------
+    @Override
+    public void setHeaderListener(BluetoothScanner.BluetoothScannerListener listener) {
+        this.headerListener = listener;
+    }
+
+    private void onHeader(MeshMessage header) {
+        if (header == null) return;
+
+        if (header.bluetoothDevice != null) {
+            String addr = header.bluetoothDevice.getAddress();
+            header.sourceAddress = addr;
+            synchronized (knownDevices) {
+                knownDevices.put(addr, header.bluetoothDevice);
+            }
+        }
+
+        BluetoothScanner.BluetoothScannerListener l = headerListener;
+        if (l != null) l.onMessageReceived(header);
+    }
+
+    @Override
+    public boolean isScanSupported() {
+        return scanner != null && scanner.isSupported();
+    }
+
+    @Override
+    public boolean startScan() {
+        if (!isScanSupported()) {
+            Log.e(TAG, "Scanner not supported");
+            return false;
+        }
+        if (!hasScanPermission()) {
+            Log.e(TAG, "SCAN PERMISSION missing");
+            return false;
+        }
+        scanner.startScan();
+        return true;
+    }
+
+    @Override
+    public void stopScan() {
+        try { if (scanner != null) scanner.stopScan(); } catch (Exception ignored) {}
+    }
+
+    // ----------------------------------------------------------
+    // ADVERTISE
+    // ----------------------------------------------------------
+    @Override
+    public void advertise(MeshMessage msg) {
+        if (advertiser != null)
+            advertiser.advertiseMeshMessage(msg, null);
+    }
+
+    // MeshThread (same thread as the scanner's filter)
+    @Override
+    public int transmissionsHeard(long messageId) {
+        if (scanner == null) return 0;
+        return scanner.getRecentIds().transmissions(messageId, SystemClock.elapsedRealtime());
+    }
+
+    @Override
+    public NeighbourTable neighbours() {
+        return scanner != null ? scanner.getNeighbours() : noNeighbours;
+    }
+
+    /** SOS sent or received: scanner stays at full duty (see ScanDutyController). */
+    public void onSosActivity() {
+        if (scanner != null) scanner.getDutyController().onSos();
+    }
+
+    // ----------------------------------------------------------
+    // FETCH
+    // ----------------------------------------------------------
+    @Override
+    public void fetchPayload(String address, long messageId, PayloadGattClient.Callback cb) {
+
+        BluetoothDevice dev;
+        synchronized (knownDevices) {
+            dev = knownDevices.get(address);
+        }
+
+        if (dev == null) dev = remoteDevice(address);
+
+        if (dev == null) {
+            cb.onError("UnknownDevice");
+            return;
+        }
+
+        gattClient.fetchPayload(dev, messageId, cb);
+    }
+
+    @Override
+    public void syncDigest(String address, byte[] digestRequest, PayloadGattClient.Callback cb) {
+
+        BluetoothDevice dev;
+        synchronized (knownDevices) {
+            dev = knownDevices.get(address);
+        }
+
+        if (dev == null) dev = remoteDevice(address);
+
+        if (dev == null) {
+            cb.onError("UnknownDevice");
+            return;
+        }
+
+        gattClient.syncDigest(dev, digestRequest, cb);
+    }
+
+    @Override
+    public void disconnectAll() {
+        gattClient.closeAll();
+    }
+
+    private BluetoothDevice remoteDevice(String address) {
+        try {
+            BluetoothManager bm = (BluetoothManager) ctx.getSystemService(Context.BLUETOOTH_SERVICE);
+            if (bm == null || bm.getAdapter() == null) return null;
+            return bm.getAdapter().getRemoteDevice(address);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Bad address " + address);
+            return null;
+        }
+    }
+
+    /** Lets callers that already hold a BluetoothDevice register it for fetches. */
+    public void rememberDevice(BluetoothDevice dev) {
+        if (dev == null) return;
+        synchronized (knownDevices) {
+            knownDevices.put(dev.getAddress(), dev);
+        }
+    }
+
+    // ----------------------------------------------------------
+    // GATT SERVER
+    // ----------------------------------------------------------
+    @Override
+    public void startServer() {
+        synchronized (gattLock) {
+            if (gattServer != null) return;
+            if (!hasConnectPermission()) return;
+
+            try {
+                gattServer = new GattServer(ctx);
+                gattServer.start();
+                Log.d(TAG, "GattServer started");
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to start GattServer", e);
+                gattServer = null;
+            }
+        }
+    }
+
+    @Override
+    public void stopServer() {
+        synchronized (gattLock) {
+            if (gattServer != null) {
+                try {
+                    gattServer.stop();
+                    Log.d(TAG, "GattServer stopped");
+                } catch (Exception e) {
+                    Log.e(TAG, "Error stopping GattServer", e);
+                } finally {
+                    gattServer = null;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void notifyAllSubscribed(long messageId, byte[] payload) {
+        GattServer s;
+        synchronized (gattLock) {
+            s = gattServer;
+        }
+        if (s != null) s.notifyAllSubscribed(messageId, payload);
+    }
+}
@@ -6,6 +6,9 @@ import android.bluetooth.BluetoothManager;
 import android.bluetooth.le.AdvertiseCallback;
 import android.bluetooth.le.AdvertiseData;
 import android.bluetooth.le.AdvertiseSettings;
+import android.bluetooth.le.AdvertisingSet;
+import android.bluetooth.le.AdvertisingSetCallback;
+import android.bluetooth.le.AdvertisingSetParameters;
 import android.bluetooth.le.BluetoothLeAdvertiser;
 import android.content.Context;
 import android.content.pm.PackageManager;
@@ -18,8 +21,29 @@ import androidx.core.content.ContextCompat;
 
 import com.example.nova.model.MeshMessage;
 
-import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
 
+/**
+ * Header adverts. Requests are queued and served by one advertising
+ * session at a time (500 ms each), so a burst of relays no longer opens one
+ * controller advertising set per message. With packing on, up to
+ * HeaderCodec.packedCapacity headers share a session.
+ *
+ * Every session is a legacy 31-byte advert, so every receiver (legacy-only
+ * scanners included) hears every header. Legacy sessions put a compact
+ * ciphertext (short messages) in the scan response. On controllers with
+ * LE extended advertising (API 26+) a session whose batch has ciphertexts
+ * that fit inline also runs an AdvertisingSet with the extended form for
+ * the same window (starting one interval ahead), so extended scanners
+ * skip the GATT fetch. If the set fails to start, extended is off from
+ * then on; the legacy advert still carries the headers.
+ *
+ * The queue is ordered by MeshMessage.priority (SOS, chat, presence; FIFO
+ * within a class) and a session only batches headers of one class, since
+ * the class travels in the advert's version byte.
+ */
 public class BluetoothAdvertiser {
 
     private static final String TAG = "BluetoothAdvertiser";
@@ -29,8 +53,31 @@ public class BluetoothAdvertiser {
     private final Handler handler = new Handler();
     private AdvertiseCallback lastCallback;  // ⭐ prevents duplicate failures
 
+    // headers waiting for the advertising session (handler thread only)
+    private final ArrayDeque<Pending> queue = new ArrayDeque<>();
+    private boolean sessionActive = false;
+    private volatile boolean packing = true;
+    private int sessionSeq = 0;
+
+    // BLE 5 extended advertising
+    // connectable extended data is not chained; stay under what controllers accept in one PDU
+    private static final int EXTENDED_CONNECTABLE_MAX = 191;
+    // extended copy goes on air this long before the legacy advert (one LOW_LATENCY interval)
+    private static final long EXTENDED_LEAD_MS = 100;
+    private final boolean extendedSupported;
+    private final int extendedDataMax;
+    private volatile boolean extendedEnabled = true;
+    private boolean extendedFailed = false;   // set start failed once → legacy only from now on
+    private AdvertisingSetCallback lastSetCallback;
+
     private final ParcelUuid SERVICE_UUID =
             new ParcelUuid(GattConstants.SERVICE_HEADER_UUID);
+    private final ParcelUuid PACKED_SERVICE_UUID =
+            new ParcelUuid(GattConstants.SERVICE_HEADER_PACKED_UUID);
+    private final ParcelUuid EXT_SERVICE_UUID =
+            new ParcelUuid(GattConstants.SERVICE_HEADER_EXT_UUID);
+    private final ParcelUuid SR_SERVICE_UUID =
+            new ParcelUuid(GattConstants.SERVICE_HEADER_SR_UUID);
 
     public BluetoothAdvertiser(Context ctx) {
         this.context = ctx.getApplicationContext();
@@ -44,6 +91,18 @@ public class BluetoothAdvertiser {
             advertiser = adapter.getBluetoothLeAdvertiser();
         else
             advertiser = null;
+
+        if (advertiser != null
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                && adapter.isLeExtendedAdvertisingSupported()
+                && adapter.getLeMaximumAdvertisingDataLength() > 31) {
+            extendedSupported = true;
+            extendedDataMax = Math.min(EXTENDED_CONNECTABLE_MAX, adapter.getLeMaximumAdvertisingDataLength());
+        } else {
+            extendedSupported = false;
+            extendedDataMax = 0;
+        }
+        Log.d(TAG, "Extended advertising: " + extendedSupported + " max=" + extendedDataMax);
     }
 
     public boolean isSupported() {
@@ -59,6 +118,20 @@ public class BluetoothAdvertiser {
                 == PackageManager.PERMISSION_GRANTED;
     }
 
+    /** Several queued headers share one advert (packed form) when on. */
+    public void setPackingEnabled(boolean enabled) {
+        this.packing = enabled;
+    }
+
+    /** Allow extended adverts (alongside legacy) with inline payloads where the controller supports them. */
+    public void setExtendedEnabled(boolean enabled) {
+        this.extendedEnabled = enabled;
+    }
+
+    public boolean isExtendedActive() {
+        return extendedSupported && extendedEnabled && !extendedFailed;
+    }
+
     // ====================================================================
     // PUBLIC ENTRY POINT
     // ====================================================================
@@ -66,47 +139,162 @@ public class BluetoothAdvertiser {
             MeshMessage msg,
             AdvertiseCompleteCallback callback
     ) {
-        advertiseInternal(msg, callback);
+        if (advertiser == null) {
+            if (callback != null) callback.onFailure("BLE advertiser null");
+            return;
+        }
+
+        handler.post(() -> enqueue(msg, callback));
     }
 
     // ====================================================================
-    // INTERNAL ADVERTISING (OEM-STABLE VERSION)
+    // QUEUE — one advertising session at a time
     // ====================================================================
-    private void advertiseInternal(
-            MeshMessage msg,
-            AdvertiseCompleteCallback callback
-    ) {
-        if (advertiser == null) {
-            if (callback != null) callback.onFailure("BLE advertiser null");
+    private static final class Pending {
+        MeshMessage msg;
+        boolean inline;   // extended session carries the ciphertext
+        final List<AdvertiseCompleteCallback> callbacks = new ArrayList<>(1);
+    }
+
+    private void enqueue(MeshMessage msg, AdvertiseCompleteCallback callback) {
+        Pending p = null;
+        for (Pending q : queue) {
+            if (q.msg.id == msg.id) { p = q; break; }
+        }
+
+        if (p == null) {
+            p = new Pending();
+            p.msg = msg;
+            insertByPriority(p);
+        }
+        p.msg = msg;   // latest hop count wins
+        if (callback != null) p.callbacks.add(callback);
+
+        startNext();
+    }
+
+    /** Behind every queued header of the same or a higher class. */
+    private void insertByPriority(Pending p) {
+        if (queue.isEmpty() || queue.peekLast().msg.priority >= p.msg.priority) {
+            queue.addLast(p);
+            return;
+        }
+        ArrayDeque<Pending> lower = new ArrayDeque<>();
+        while (!queue.isEmpty() && queue.peekLast().msg.priority < p.msg.priority)
+            lower.addFirst(queue.pollLast());
+        queue.addLast(p);
+        queue.addAll(lower);
+    }
+
+    private void startNext() {
+        if (sessionActive || queue.isEmpty()) return;
+
+        sessionActive = true;
+        int seq = ++sessionSeq;
+
+        int n = packing
+                ? Math.min(queue.size(), HeaderCodec.packedCapacity(HeaderCodec.LEGACY_SERVICE_DATA_MAX))
+                : 1;
+        n = Math.max(1, n);
+
+        List<Pending> batch = new ArrayList<>(n);
+        batch.add(queue.poll());
+        while (batch.size() < n && HeaderCodec.sameClass(batch.get(0).msg, queue.peek().msg))
+            batch.add(queue.poll());
+
+        // extended copy of the same batch, only worth a set if something rides
+        // inline. It leads by one interval so extended scanners usually take
+        // the inline copy before the legacy header can start a GATT fetch
+        if (isExtendedActive() && markInline(batch)) {
+            advertiseExtended(batch);
+            handler.postDelayed(() -> advertiseInternal(batch, seq), EXTENDED_LEAD_MS);
             return;
         }
 
+        advertiseInternal(batch, seq);
+    }
+
+    /**
+     * Pick which of the legacy batch's ciphertexts ride inline in the
+     * extended copy, in queue order while they fit. Headers always fit: the
+     * legacy batch is smaller than any extended advert.
+     * @return true if at least one does.
+     */
+    private boolean markInline(List<Pending> batch) {
+        int room = HeaderCodec.extendedServiceDataMax(extendedDataMax) - 1;   // version byte
+        for (Pending p : batch) room -= HeaderCodec.extendedEntryLen(p.msg, false);
+
+        boolean any = false;
+        for (Pending p : batch) {
+            int extra = HeaderCodec.extendedEntryLen(p.msg, true) - HeaderCodec.extendedEntryLen(p.msg, false);
+            p.inline = HeaderCodec.canInline(p.msg) && extra <= room;
+            if (p.inline) {
+                room -= extra;
+                any = true;
+            }
+        }
+        return any;
+    }
+
+    // ====================================================================
+    // INTERNAL ADVERTISING (OEM-STABLE VERSION)
+    // ====================================================================
+    private void advertiseInternal(List<Pending> batch, int seq) {
+
         if (!hasAdvertisePermission()) {
-            if (callback != null) callback.onFailure("Missing ADVERTISE permission");
+            fail(batch, "Missing ADVERTISE permission");
+            endSession(seq);
             return;
         }
 
         try {
 
             // ====================================================
-            // BUILD 10-BYTE HEADER PAYLOAD
+            // BUILD HEADER PAYLOAD
+            // one header → 10-byte form (readable by every version)
+            // several    → packed form under its own UUID
             // ====================================================
-            byte[] header = ByteBuffer.allocate(10)
-                    .put((byte) MeshMessage.VERSION)  // version
-                    .putLong(msg.id)                 // message id
-                    .put((byte) msg.hopCount)        // hop
-                    .array();
+            ParcelUuid uuid;
+            byte[] header;
+
+            if (batch.size() == 1) {
+                uuid = SERVICE_UUID;
+                header = HeaderCodec.encode(batch.get(0).msg);
+            } else {
+                List<MeshMessage> msgs = new ArrayList<>(batch.size());
+                for (Pending p : batch) msgs.add(p.msg);
+                uuid = PACKED_SERVICE_UUID;
+                header = HeaderCodec.encodePacked(msgs, 0, msgs.size());
+            }
 
             // ====================================================
-            // ADVERTISE DATA (MUST be < 31 bytes)
+            // ADVERT DATA (MUST be < 31 bytes)
             // ====================================================
             AdvertiseData data = new AdvertiseData.Builder()
-                    .addServiceUuid(SERVICE_UUID)
-                    .addServiceData(SERVICE_UUID, header)
+                    .addServiceUuid(uuid)
+                    .addServiceData(uuid, header)
                     .setIncludeDeviceName(false)
                     .setIncludeTxPowerLevel(false)   // ⭐ CRITICAL: prevents OEM overflow
                     .build();
 
+            // ====================================================
+            // SCAN RESPONSE — compact ciphertext of one header
+            // (connectable legacy adverts are scannable; scanners in
+            // active mode get it merged into the same ScanRecord)
+            // ====================================================
+            AdvertiseData scanResponse = null;
+            for (int i = 0; i < batch.size(); i++) {
+                byte[] c = batch.get(i).msg.encryptedPayload;
+                if (HeaderCodec.fitsScanResponse(c)) {
+                    scanResponse = new AdvertiseData.Builder()
+                            .addServiceData(SR_SERVICE_UUID, HeaderCodec.encodeScanResponse(i, c))
+                            .setIncludeDeviceName(false)
+                            .setIncludeTxPowerLevel(false)
+                            .build();
+                    break;
+                }
+            }
+
             // ====================================================
             // SETTINGS — OEM SAFE
             // ====================================================
@@ -124,8 +312,9 @@ public class BluetoothAdvertiser {
 
                 @Override
                 public void onStartSuccess(AdvertiseSettings settingsInEffect) {
-                    Log.i(TAG, "Advertising START OK → id=" + msg.id);
-                    if (callback != null) callback.onComplete();
+                    Log.i(TAG, "Advertising START OK → " + describe(batch));
+                    for (Pending p : batch)
+                        for (AdvertiseCompleteCallback cb : p.callbacks) cb.onComplete();
                 }
 
                 @Override
@@ -154,29 +343,122 @@ public class BluetoothAdvertiser {
                             reason = "UNKNOWN";
                     }
 
-                    if (callback != null) callback.onFailure(reason);
+                    fail(batch, reason);
                 }
             };
 
             // ====================================================
             // START ADVERTISING — SINGLE START
             // ====================================================
-            advertiser.startAdvertising(settings, data, lastCallback);
+            AdvertiseCallback session = lastCallback;
+            if (scanResponse != null)
+                advertiser.startAdvertising(settings, data, scanResponse, session);
+            else
+                advertiser.startAdvertising(settings, data, session);
 
             // ====================================================
-            // STOP after 500 ms (OEM optimal)
+            // STOP after 500 ms (OEM optimal), then next queued batch
             // Xiaomi/Samsung/Realme require >400ms for detection
             // ====================================================
             handler.postDelayed(() -> {
                 try {
-                    advertiser.stopAdvertising(lastCallback);
+                    advertiser.stopAdvertising(session);
                 } catch (Exception ignore) {}
+                endSession(seq);
             }, 500);
 
         } catch (Exception e) {
             Log.e(TAG, "Advertise exception " + e);
-            if (callback != null) callback.onFailure("EXCEPTION:" + e.getMessage());
+            fail(batch, "EXCEPTION:" + e.getMessage());
+            endSession(seq);
+        }
+    }
+
+    // ====================================================================
+    // EXTENDED ADVERTISING (BLE 5, AdvertisingSet)
+    // runs beside the legacy advert of the current session; the legacy one
+    // owns the callbacks and the session, this one only adds inline ciphertexts
+    // ====================================================================
+    private void advertiseExtended(List<Pending> batch) {
+
+        if (!hasAdvertisePermission()) return;
+
+        try {
+
+            List<MeshMessage> msgs = new ArrayList<>(batch.size());
+            boolean[] inline = new boolean[batch.size()];
+            for (int i = 0; i < batch.size(); i++) {
+                msgs.add(batch.get(i).msg);
+                inline[i] = batch.get(i).inline;
+            }
+
+            AdvertiseData data = new AdvertiseData.Builder()
+                    .addServiceUuid(EXT_SERVICE_UUID)
+                    .addServiceData(EXT_SERVICE_UUID, HeaderCodec.encodeExtended(msgs, inline))
+                    .setIncludeDeviceName(false)
+                    .setIncludeTxPowerLevel(false)
+                    .build();
+
+            AdvertisingSetParameters params = new AdvertisingSetParameters.Builder()
+                    .setLegacyMode(false)
+                    .setConnectable(true)    // non-inline entries are still fetched over GATT
+                    .setScannable(false)     // extended connectable cannot be scannable
+                    .setInterval(AdvertisingSetParameters.INTERVAL_LOW)
+                    .setTxPowerLevel(AdvertisingSetParameters.TX_POWER_HIGH)
+                    .build();
+
+            lastSetCallback = new AdvertisingSetCallback() {
+
+                @Override
+                public void onAdvertisingSetStarted(AdvertisingSet set, int txPower, int status) {
+                    if (status == AdvertisingSetCallback.ADVERTISE_SUCCESS) {
+                        Log.i(TAG, "Extended advertising START OK → " + describe(batch));
+                        return;
+                    }
+
+                    // controller claims support but refuses: legacy only from now on
+                    Log.e(TAG, "Extended advertising FAIL: status=" + status + " → legacy only");
+                    handler.post(() -> extendedFailed = true);
+                }
+            };
+
+            AdvertisingSetCallback session = lastSetCallback;
+            advertiser.startAdvertisingSet(params, data, null, null, null, 0, 0, session);
+
+            // same 500 ms window as the legacy advert (which ends the session)
+            handler.postDelayed(() -> {
+                try {
+                    advertiser.stopAdvertisingSet(session);
+                } catch (Exception ignore) {}
+            }, 500);
+
+        } catch (Exception e) {
+            Log.e(TAG, "Extended advertise exception " + e + " → legacy only");
+            extendedFailed = true;
+        }
+    }
+
+    /** End session {@code seq} if it is still the current one. */
+    private void endSession(int seq) {
+        if (!sessionActive || seq != sessionSeq) return;
+        sessionActive = false;
+        startNext();
+    }
+
+    private static void fail(List<Pending> batch, String reason) {
+        for (Pending p : batch)
+            for (AdvertiseCompleteCallback cb : p.callbacks) cb.onFailure(reason);
+    }
+
+    private static String describe(List<Pending> batch) {
+        if (batch.size() == 1) return "id=" + batch.get(0).msg.id;
+        StringBuilder sb = new StringBuilder("packed ids=");
+        for (int i = 0; i < batch.size(); i++) {
+            if (i > 0) sb.append(',');
+            sb.append(batch.get(i).msg.id);
+            if (batch.get(i).inline) sb.append("+inline");
         }
+        return sb.toString();
     }
 
     // ====================================================
@@ -1,15 +1,20 @@
 package com.example.nova.ble;
 
 import android.Manifest;
+import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanSettings;
+import android.bluetooth.le.ScanRecord;
 import android.bluetooth.le.ScanResult;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.os.Build;
+import android.os.Handler;
+import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.SparseArray;
 
@@ -17,9 +22,11 @@ import androidx.core.content.ContextCompat;
 
 import com.example.nova.model.MeshMessage;
 
-import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class BluetoothScanner {
 
@@ -29,20 +36,24 @@ public class BluetoothScanner {
     private final Context ctx;
     private final BluetoothLeScanner scanner;
     private BluetoothScannerListener listener;
+    private final boolean extendedScan;   // controller can receive BLE 5 extended adverts
 
-    // Duplicate suppression variables
-    private long lastFetchId = -1;
-    private long lastFetchTime = 0;
+    // Scan callback (main thread) only enqueues; parsing runs on MeshThread
+    private static final int INGEST_CAPACITY = 256;
+    private static final int DRAIN_BATCH = 32;   // per pass, so mesh timers interleave
+    private final ScanIngestQueue<BluetoothDevice> ingest = new ScanIngestQueue<>(INGEST_CAPACITY);
+    private final Handler worker = new Handler(MeshThread.looper());
+    private final AtomicBoolean drainPosted = new AtomicBoolean();
+    private long lastDropLogged = 0;
+    private long lastDropLogAt = 0;
 
-    private boolean shouldFetch(long id) {
-        long now = System.currentTimeMillis();
-        if (id == lastFetchId && (now - lastFetchTime) < 2500) {
-            return false;
-        }
-        lastFetchId = id;
-        lastFetchTime = now;
-        return true;
-    }
+    // Duplicate suppression: recent ids (MeshThread only)
+    private static final int RECENT_IDS = 512;
+    private static final long DUPLICATE_WINDOW_MS = 2500;
+    private final RecentIdFilter recentIds = new RecentIdFilter(RECENT_IDS, DUPLICATE_WINDOW_MS);
+
+    // wall clock, same as HopManager's scheduler (GATT outcomes land here too)
+    private final NeighbourTable neighbours = new NeighbourTable();
 
     public BluetoothScanner(Context ctx, BluetoothScannerListener l) {
         this.ctx = ctx.getApplicationContext();
@@ -51,35 +62,93 @@ public class BluetoothScanner {
 
         if (bm != null && bm.getAdapter() != null && bm.getAdapter().isEnabled()) {
             scanner = bm.getAdapter().getBluetoothLeScanner();
+            extendedScan = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                    && bm.getAdapter().isLeExtendedAdvertisingSupported();
+            batchingSupported = bm.getAdapter().isOffloadedScanBatchingSupported();
         } else {
             scanner = null;
+            extendedScan = false;
+            batchingSupported = false;
         }
 
         listener = l;
+        duty = new ScanDutyController(this.ctx, this::applyScanParams);
     }
 
     public void setListener(BluetoothScannerListener l) { listener = l; }
     public boolean isSupported() { return scanner != null; }
 
-    // ========================================================
-    // START SCAN (FULLY OEM-COMPATIBLE)
-    // ========================================================
-    public void startScan() {
-        if (scanner == null) {
-            Log.e(TAG, "Scanner NULL — Bluetooth disabled");
-            return;
-        }
+    /** Ingest counters (accepted / coalesced / dropped / high-water / lag). */
+    public ScanIngestQueue<BluetoothDevice> getIngestQueue() { return ingest; }
 
-        if (!hasScanPermission()) {
-            Log.w(TAG, "SCAN permission missing → cannot start scanning");
-            return;
+    /** Peers heard lately with link quality (written on MeshThread, readable anywhere). */
+    public NeighbourTable getNeighbours() { return neighbours; }
+
+    /** Recently heard ids with per-id duplicate/transmission counts (MeshThread only). */
+    public RecentIdFilter getRecentIds() { return recentIds; }
+
+    /** Duty-cycle controller: scan mode + report delay from traffic, battery, SOS. */
+    public ScanDutyController getDutyController() { return duty; }
+
+    public boolean isUsingHardwareFilters() { return scanning && hardwareFiltered; }
+
+    /**
+     * Company id the local ESP32 beacons advertise "MESH:" under; enables
+     * controller-side filters. Esp32Packet.ANY_COMPANY (default) keeps
+     * matching beacons under any id, in software.
+     */
+    public synchronized void setEsp32CompanyId(int companyId) {
+        if (companyId == esp32CompanyId) return;
+        esp32CompanyId = companyId;
+        if (scanning) {
+            stopScanInternal();
+            startScan(scanMode, reportDelayMs);
         }
+    }
+    public int getScanMode() { return scanMode; }
+    public long getReportDelayMs() { return reportDelayMs; }
 
-        ScanSettings settings;
+    // ========================================================
+    // SCAN CONFIGURATION
+    // ========================================================
+    // Filters run in the controller (or BT stack) so the app is only woken
+    // for NOVA headers and ESP32 beacons, not every phone/headphone/beacon.
+    // A controller filter needs the beacons' company id, so they are only
+    // installed once setEsp32CompanyId() names it; until then, and on
+    // chipsets that reject filters, the scan is unfiltered and offer()
+    // does the same job in software before anything is queued.
+    // Scan mode and report delay come from ScanDutyController.
+    private final boolean batchingSupported;   // controller can hold results (setReportDelay)
+    private volatile int esp32CompanyId = Esp32Packet.ANY_COMPANY;
+    private volatile boolean hardwareFiltered = false;
+    private volatile boolean filtersRejected = false;
+    private volatile boolean batchingRejected = false;
+    private volatile boolean scanning = false;
+    private volatile int scanMode = ScanSettings.SCAN_MODE_LOW_LATENCY;
+    private volatile long reportDelayMs = 0;
+
+    private final ScanDutyController duty;
+
+    /** Empty when the controller cannot express the match (beacon company id unknown). */
+    private List<ScanFilter> buildFilters() {
+        int companyId = esp32CompanyId;
+        if (companyId == Esp32Packet.ANY_COMPANY) return Collections.emptyList();
+
+        List<ScanFilter> filters = new ArrayList<>();
+        filters.add(new ScanFilter.Builder().setServiceData(HEADER_UUID, new byte[0]).build());
+        filters.add(new ScanFilter.Builder().setServiceData(HEADER_PACKED_UUID, new byte[0]).build());
+        if (extendedScan)
+            filters.add(new ScanFilter.Builder().setServiceData(HEADER_EXT_UUID, new byte[0]).build());
+        filters.add(new ScanFilter.Builder()
+                .setManufacturerData(companyId, Esp32Packet.PREFIX)
+                .build());
+        return filters;
+    }
 
+    private ScanSettings buildSettings(int mode, long reportDelay) {
         try {
             ScanSettings.Builder sb = new ScanSettings.Builder()
-                    .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY);
+                    .setScanMode(mode);
 
             // Samsung & Xiaomi REQUIRE MATCH_MODE_STICKY
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
@@ -93,39 +162,106 @@ public class BluetoothScanner {
             // Android 26+ PHY balanced mode
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
                 sb.setPhy(ScanSettings.PHY_LE_ALL_SUPPORTED);
+                // legacy-only by default: extended adverts (inline payloads) need this off
+                if (extendedScan) sb.setLegacy(false);
             }
 
-            settings = sb.build();
+            // controller holds results and delivers them in one onBatchScanResults
+            if (reportDelay > 0) sb.setReportDelay(reportDelay);
+
+            return sb.build();
 
         } catch (Exception e) {
             Log.e(TAG, "Scan settings failed — using fallback", e);
 
-            settings = new ScanSettings.Builder()
-                    .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
+            return new ScanSettings.Builder()
+                    .setScanMode(mode)
                     .build();
         }
+    }
+
+    // ========================================================
+    // START SCAN (FULLY OEM-COMPATIBLE)
+    // ========================================================
+    public void startScan() {
+        duty.start();   // starts at BURST
+        startScan(duty.scanModeFor(ScanDutyController.LEVEL_BURST),
+                duty.reportDelayFor(ScanDutyController.LEVEL_BURST));
+    }
+
+    private synchronized void startScan(int mode, long reportDelay) {
+        if (scanner == null) {
+            Log.e(TAG, "Scanner NULL — Bluetooth disabled");
+            return;
+        }
+
+        if (!hasScanPermission()) {
+            Log.w(TAG, "SCAN permission missing → cannot start scanning");
+            return;
+        }
+
+        if (!batchingSupported || batchingRejected) reportDelay = 0;
+
+        List<ScanFilter> filters = filtersRejected
+                ? Collections.<ScanFilter>emptyList()
+                : buildFilters();
 
         try {
-            scanner.startScan(Collections.<ScanFilter>emptyList(), settings, scanCallback);
-            Log.d(TAG, "🔍 BLE SCAN STARTED (OEM-safe)");
+            scanner.startScan(filters, buildSettings(mode, reportDelay), scanCallback);
+            scanning = true;
+            hardwareFiltered = !filters.isEmpty();
+            scanMode = mode;
+            reportDelayMs = reportDelay;
+            Log.d(TAG, "🔍 BLE SCAN STARTED (OEM-safe) mode=" + mode + " filters=" + filters.size()
+                    + " reportDelay=" + reportDelay + "ms");
         } catch (Exception e) {
             Log.e(TAG, "SCAN START ERROR", e);
+            if (fallBack()) startScan(mode, reportDelay);
         }
     }
 
     public void stopScan() {
+        duty.stop();
+        stopScanInternal();
+    }
+
+    private synchronized void stopScanInternal() {
+        scanning = false;
         if (scanner == null) return;
         try { scanner.stopScan(scanCallback); }
         catch (Exception ignored) {}
     }
 
+    // ScanDutyController.Target (MeshThread)
+    private synchronized void applyScanParams(int mode, long reportDelay) {
+        if (!scanning) return;
+        if (mode == scanMode && reportDelay == reportDelayMs) return;
+        stopScanInternal();
+        startScan(mode, reportDelay);
+    }
+
+    /** Drop batching first, then hardware filters. @return false if nothing left to drop. */
+    private boolean fallBack() {
+        if (reportDelayMs > 0 && !batchingRejected) {
+            batchingRejected = true;
+            Log.w(TAG, "Batched scan reports rejected → immediate reports");
+            return true;
+        }
+        if (!filtersRejected) {
+            filtersRejected = true;
+            Log.w(TAG, "Scan filters rejected → software filtering");
+            return true;
+        }
+        return false;
+    }
+
     private boolean hasScanPermission() {
         return ContextCompat.checkSelfPermission(ctx, Manifest.permission.BLUETOOTH_SCAN)
                 == PackageManager.PERMISSION_GRANTED;
     }
 
     // ========================================================
-    // SCAN CALLBACK
+    // SCAN CALLBACK — enqueue only, no parsing on the main thread
     // ========================================================
     private final ScanCallback scanCallback = new ScanCallback() {
 
@@ -133,114 +269,240 @@ public class BluetoothScanner {
         public void onScanResult(int type, ScanResult result) {
             super.onScanResult(type, result);
 
-            if (result.getScanRecord() == null) return;
+            if (offer(result)) postDrain();
+        }
 
-            logRaw(result);
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            super.onBatchScanResults(results);
 
-            // ESP32 manufacturer SOS packet
-            if (checkEsp32Manufacturer(result)) return;
+            boolean any = false;
+            for (ScanResult r : results) any |= offer(r);
+            if (!any) return;
 
-            // NOVA service header
-            checkServiceData(result);
+            postDrain();
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            super.onScanFailed(errorCode);
+            Log.e(TAG, "SCAN FAILED code=" + errorCode);
+
+            if (errorCode == SCAN_FAILED_ALREADY_STARTED) return;
+
+            // FEATURE_UNSUPPORTED / OUT_OF_HARDWARE_RESOURCES / INTERNAL_ERROR on filter- or batch-shy chipsets
+            if (scanning && fallBack()) {
+                final int mode = scanMode;
+                final long delay = reportDelayMs;
+                worker.post(() -> {
+                    stopScanInternal();
+                    startScan(mode, delay);
+                });
+            }
         }
     };
 
+    /** Software filter + copy into the ring. @return true if queued. */
+    private boolean offer(ScanResult result) {
+        ScanRecord record = result.getScanRecord();
+        if (record == null) return false;
+
+        // same match as buildFilters(); map lookups only, no parsing
+        byte[] header = record.getServiceData(HEADER_UUID);
+        byte[] packed = record.getServiceData(HEADER_PACKED_UUID);
+        byte[] ext = record.getServiceData(HEADER_EXT_UUID);
+        byte[] esp32 = esp32Data(record, esp32CompanyId);
+        if (header == null && packed == null && ext == null && esp32 == null) return false;
+
+        duty.onMeshAdvert();
+        return ingest.offer(result.getDevice(), result.getDevice().getAddress(), result.getRssi(),
+                SystemClock.elapsedRealtime(),
+                header, packed, record.getServiceData(HEADER_SR_UUID), ext, esp32);
+    }
+
+    private void postDrain() {
+        if (drainPosted.compareAndSet(false, true))
+            worker.post(drainTask);
+    }
+
+    /** "MESH:" manufacturer data under the beacons' company id (any id if unknown), or null. */
+    private static byte[] esp32Data(ScanRecord record, int esp32CompanyId) {
+        if (esp32CompanyId != Esp32Packet.ANY_COMPANY) {
+            byte[] d = record.getManufacturerSpecificData(esp32CompanyId);
+            return Esp32Packet.hasPrefix(d) ? d : null;
+        }
+
+        SparseArray<byte[]> mf = record.getManufacturerSpecificData();
+        if (mf == null) return null;
+        for (int i = 0; i < mf.size(); i++)
+            if (Esp32Packet.hasPrefix(mf.valueAt(i))) return mf.valueAt(i);
+        return null;
+    }
+
+    // ========================================================
+    // INGEST DRAIN (MeshThread)
+    // ========================================================
+    private final ScanIngestQueue.Sink<BluetoothDevice> processor = new ScanIngestQueue.Sink<BluetoothDevice>() {
+        @Override
+        public void accept(ScanIngestQueue.Slot<BluetoothDevice> slot) {
+            processResult(slot);
+        }
+    };
+
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drainPosted.set(false);
+
+            ingest.drain(processor, DRAIN_BATCH, SystemClock.elapsedRealtime());
+
+            // more left: yield to other mesh work, then continue
+            if (ingest.size() > 0 && drainPosted.compareAndSet(false, true))
+                worker.post(this);
+
+            long dropped = ingest.dropped();
+            long now = SystemClock.elapsedRealtime();
+            if (dropped != lastDropLogged && now - lastDropLogAt >= 5000) {
+                lastDropLogged = dropped;
+                lastDropLogAt = now;
+                Log.w(TAG, "⚠ SCAN INGEST OVERLOADED → " + ingest);
+            }
+        }
+    };
+
+    private void processResult(ScanIngestQueue.Slot<BluetoothDevice> slot) {
+        logRaw(slot);
+
+        neighbours.onAdvert(slot.address(), slot.rssi(), System.currentTimeMillis());
+
+        // ESP32 manufacturer SOS packet
+        if (checkEsp32Manufacturer(slot)) return;
+
+        // NOVA service header
+        checkServiceData(slot);
+    }
+
     // ========================================================
     // RAW DEBUG LOGS — throttled for performance
     // ========================================================
     private long lastLog = 0;
 
-    private void logRaw(ScanResult result) {
+    private void logRaw(ScanIngestQueue.Slot<BluetoothDevice> slot) {
         long now = System.currentTimeMillis();
         if (now - lastLog < 1000) return;  // throttle logs 1/sec
         lastLog = now;
 
-        Log.d(RAW_TAG, "RSSI: " + result.getRssi() +
-                " | Device: " + result.getDevice().getAddress());
+        Log.d(RAW_TAG, "RSSI: " + slot.rssi() +
+                " | Device: " + slot.address());
 
-        byte[] raw = result.getScanRecord().getBytes();
-        if (raw == null) return;
+        for (int f = 0; f < RAW_FIELDS.length; f++) {
+            byte[] raw = slot.field(f);
+            if (raw == null) continue;
 
-        StringBuilder sb = new StringBuilder();
-        for (byte b : raw) sb.append(String.format("%02X ", b));
-        Log.d(RAW_TAG, "RAW: " + sb);
+            StringBuilder sb = new StringBuilder();
+            for (byte b : raw) sb.append(String.format("%02X ", b));
+            Log.d(RAW_TAG, RAW_FIELDS[f] + ": " + sb);
+        }
     }
 
+    // by ScanIngestQueue.FIELD_*
+    private static final String[] RAW_FIELDS = { "HDR", "PACKED", "SR", "EXT", "ESP32" };
+
     // ========================================================
     // ESP32 MANUFACTURER-SOS PARSER
     // ========================================================
-    private boolean checkEsp32Manufacturer(ScanResult result) {
-
-        SparseArray<byte[]> mfMap = result.getScanRecord().getManufacturerSpecificData();
-        if (mfMap == null || mfMap.size() == 0) return false;
+    private boolean checkEsp32Manufacturer(ScanIngestQueue.Slot<BluetoothDevice> slot) {
 
-        for (int i = 0; i < mfMap.size(); i++) {
-            byte[] data = mfMap.valueAt(i);
-            if (data == null) continue;
+        byte[] data = slot.field(ScanIngestQueue.FIELD_ESP32);
+        if (data == null) return false;
 
-            String payload;
-            try { payload = new String(data); }
-            catch (Exception e) { continue; }
+        HashMap<String, String> map = Esp32Packet.parse(data);
+        if (map == null) return false;
 
-            if (!payload.startsWith("MESH:")) continue;
+        Log.d("ESP32-MESH", "PAYLOAD → " + map);
 
-            Log.d("ESP32-MESH", "PAYLOAD → " + payload);
-
-            String[] tokens = payload.substring(5).split(";");
-            HashMap<String, String> map = new HashMap<>();
-
-            for (String t : tokens) {
-                String[] kv = t.split(":", 2);
-                if (kv.length == 2) map.put(kv[0], kv[1]);
-            }
-
-            if ("SOS".equalsIgnoreCase(map.get("TYPE"))) {
-                Log.d("ESP32-MESH", "🚨 SOS RECEIVED FROM ESP32");
-                if (listener != null) listener.onMessageReceived(MeshMessage.sosFromESP32());
-                return true;
-            }
+        if (Esp32Packet.isSos(map)) {
+            Log.d("ESP32-MESH", "🚨 SOS RECEIVED FROM ESP32");
+            duty.onSos();
+            if (listener != null) listener.onMessageReceived(MeshMessage.sosFromESP32());
+            return true;
         }
 
         return false;
     }
 
     // ========================================================
-    // NOVA 10-BYTE SERVICE DATA PARSER
+    // NOVA SERVICE DATA PARSER (10-byte single, packed, extended)
     // ========================================================
-    private void checkServiceData(ScanResult result) {
+    private static final ParcelUuid HEADER_UUID =
+            new ParcelUuid(GattConstants.SERVICE_HEADER_UUID);
+    private static final ParcelUuid HEADER_PACKED_UUID =
+            new ParcelUuid(GattConstants.SERVICE_HEADER_PACKED_UUID);
+    private static final ParcelUuid HEADER_EXT_UUID =
+            new ParcelUuid(GattConstants.SERVICE_HEADER_EXT_UUID);
+    private static final ParcelUuid HEADER_SR_UUID =
+            new ParcelUuid(GattConstants.SERVICE_HEADER_SR_UUID);
+
+    private void checkServiceData(ScanIngestQueue.Slot<BluetoothDevice> slot) {
+
+        List<MeshMessage> headers = null;
+
+        byte[] data = slot.field(ScanIngestQueue.FIELD_HEADER);
+        if (data != null && data.length >= HeaderCodec.HEADER_LEN) {
+            try {
+                headers = Collections.singletonList(HeaderCodec.decode(data));
+            } catch (Exception e) {
+                Log.e(TAG, "Header parse error", e);
+            }
+        }
 
-        byte[] data = result.getScanRecord().getServiceData(
-                new android.os.ParcelUuid(GattConstants.SERVICE_HEADER_UUID)
-        );
+        byte[] packed = slot.field(ScanIngestQueue.FIELD_PACKED);
+        if (packed != null && headers == null)
+            headers = HeaderCodec.decodePacked(packed);
 
-        if (data == null || data.length < 10) return;
+        if (headers != null) {
+            // scan response: compact ciphertext for one of them → no GATT fetch
+            HeaderCodec.applyScanResponse(slot.field(ScanIngestQueue.FIELD_SCAN_RSP), headers);
 
-        try {
-            ByteBuffer bb = ByteBuffer.wrap(data);
-            bb.get();                     // version byte
-            long id = bb.getLong();       // message ID
-            int hop = bb.get() & 0xFF;
-
-            // prevent duplicate read/fetch
-            if (!shouldFetch(id)) {
-                Log.d(TAG, "⏸ DUPLICATE HEADER SKIPPED ID=" + id);
-                return;
-            }
+            // fan out: one listener call per header in the advert
+            for (MeshMessage msg : headers)
+                deliverHeader(msg, slot);
+        }
 
-            MeshMessage msg = new MeshMessage();
-            msg.id = id;
-            msg.hopCount = hop;
-            msg.bluetoothDevice = result.getDevice();
-            msg.sender = result.getDevice().getAddress();
+        byte[] ext = slot.field(ScanIngestQueue.FIELD_EXT);
+        if (ext != null) {
+            // extended advert: inline entries carry encryptedPayload → no GATT fetch
+            for (MeshMessage msg : HeaderCodec.decodeExtended(ext))
+                deliverHeader(msg, slot);
+        }
+    }
 
-            if (listener != null)
-                listener.onMessageReceived(msg);
+    private void deliverHeader(MeshMessage msg, ScanIngestQueue.Slot<BluetoothDevice> slot) {
+        long id = msg.id;
+        int hop = msg.hopCount;
 
-            Log.d(TAG, "HEADER RECEIVED → id=" + id + " hop=" + hop);
+        neighbours.onAdvertisedId(slot.address(), id);
 
-        } catch (Exception e) {
-            Log.e(TAG, "Header parse error", e);
-        }
+        // prevent duplicate read/fetch; a repeat that now carries the
+        // payload (scan response arrived) still goes through
+        int seen = recentIds.record(id, slot.address().hashCode(),
+                SystemClock.elapsedRealtime());
+        if (seen > 1 && msg.encryptedPayload == null)
+            return;
+
+        // only a new id is new traffic; a peer repeating its extended
+        // advert must not keep the scanner pinned in BURST
+        if (seen == 1) duty.onNewHeader();
+
+        msg.bluetoothDevice = slot.device();
+        msg.sender = slot.address();
+        msg.rssi = slot.rssi();
+
+        if (listener != null)
+            listener.onMessageReceived(msg);
+
+        Log.d(TAG, "HEADER RECEIVED → id=" + id + " hop=" + hop + " rssi=" + msg.rssi
+                + (msg.encryptedPayload != null ? " inline=" + msg.encryptedPayload.length : ""));
     }
 
     // Listener Interface
@@ -0,0 +1,68 @@
+package com.example.nova.ble;
+
+/**
+ * ChunkAssembler
+ * ---------------
+ * Rebuilds one payload from ChunkFrame notifications.
+ *
+ * Notifications on a single link arrive in order, so frames must come as
+ * seq 0, 1, 2, ... Frames for other ids (pushes from notifyAllSubscribed)
+ * are ignored, as is a stream joined half-way; a new seq 0 restarts.
+ * A not-held frame (batch answer) for our id ends the stream.
+ */
+public class ChunkAssembler {
+
+    public enum Result {
+        IGNORED,      // not ours / not started yet / duplicate
+        INCOMPLETE,
+        COMPLETE,
+        CORRUPT,      // gap or inconsistent length → caller should retry
+        NOT_HELD      // server answered a batch: it does not have this id
+    }
+
+    private final long id;
+
+    private byte[] buffer;
+    private int filled;
+    private int nextSeq;
+
+    public ChunkAssembler(long id) {
+        this.id = id;
+    }
+
+    public long id() { return id; }
+
+    public Result accept(byte[] frame) {
+        if (!ChunkFrame.isFrame(frame) || ChunkFrame.id(frame) != id)
+            return Result.IGNORED;
+
+        if (ChunkFrame.isNotHeld(frame))
+            return Result.NOT_HELD;
+
+        int total = ChunkFrame.total(frame);
+        int seq = ChunkFrame.seq(frame);
+        int len = frame.length - ChunkFrame.HEADER_LEN;
+
+        if (seq == 0) {
+            buffer = new byte[total];
+            filled = 0;
+            nextSeq = 0;
+        } else if (buffer == null || seq < nextSeq) {
+            return Result.IGNORED;
+        }
+
+        if (seq != nextSeq || total != buffer.length || filled + len > total)
+            return Result.CORRUPT;
+
+        System.arraycopy(frame, ChunkFrame.HEADER_LEN, buffer, filled, len);
+        filled += len;
+        nextSeq++;
+
+        return filled == total ? Result.COMPLETE : Result.INCOMPLETE;
+    }
+
+    /** Reassembled payload; valid after accept() returned COMPLETE. */
+    public byte[] payload() {
+        return buffer;
+    }
+}
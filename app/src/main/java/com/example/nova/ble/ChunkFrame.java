@@ -0,0 +1,162 @@
+package com.example.nova.ble;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ChunkFrame
+ * -----------
+ * Framing for payloads sent as GATT notifications on CHAR_FETCH_CIPHERTEXT.
+ *
+ * Request (client → CHAR_REQUEST_MESSAGE):
+ *   legacy : [id:8]                     → server notifies raw, unframed bytes
+ *   framed : [0xF1][id:8]               → server answers with frames below
+ *   batch  : [0xF2][n:1][id:8] × n      → frames for each id, in request order;
+ *                                         ids the server lacks get a not-held frame
+ *   digest : [0xF3][k:1][salt:4][bloom] → one payload framed under SYNC_ID: offers
+ *                                         for held ids the filter lacks (IdDigest)
+ *
+ * Frame (server → client, one per notification):
+ *   [0..7]   message id
+ *   [8..9]   total payload length (uint16)
+ *   [10..11] sequence number (uint16, 0-based, in order on one link)
+ *   [12..]   chunk bytes
+ *
+ * Not-held frame (batch answer only): [id:8][0x0000][0xFFFF], no data.
+ *
+ * Old servers reject the 9-byte request with GATT_INVALID_ATTRIBUTE_LENGTH;
+ * PayloadGattClient then falls back to the legacy request. The same status
+ * on a batch request makes it fall back to one framed request per id.
+ */
+public final class ChunkFrame {
+
+    public static final byte REQUEST_FRAMED = (byte) 0xF1;
+    public static final int REQUEST_FRAMED_LEN = 9;
+    public static final int REQUEST_LEGACY_LEN = 8;
+
+    public static final byte REQUEST_BATCH = (byte) 0xF2;
+    public static final int REQUEST_BATCH_HEADER_LEN = 2;
+    // 2 + 60 × 8 = 482 bytes: fits one write at the 512 MTU we request
+    public static final int MAX_BATCH_IDS = 60;
+
+    // id the answer to a digest request is framed under ("SYNC")
+    public static final long SYNC_ID = 0x53594E4300000000L;
+
+    private static final int SEQ_NOT_HELD = 0xFFFF;
+
+    public static final int HEADER_LEN = 12;
+    public static final int MAX_PAYLOAD = 0xFFFF;
+
+    private ChunkFrame() {}
+
+    // ---------------------------------------------------------
+    // REQUEST
+    // ---------------------------------------------------------
+    public static byte[] framedRequest(long id) {
+        return ByteBuffer.allocate(REQUEST_FRAMED_LEN)
+                .put(REQUEST_FRAMED)
+                .putLong(id)
+                .array();
+    }
+
+    public static byte[] legacyRequest(long id) {
+        return ByteBuffer.allocate(REQUEST_LEGACY_LEN).putLong(id).array();
+    }
+
+    public static boolean isFramedRequest(byte[] v) {
+        return v != null && v.length == REQUEST_FRAMED_LEN && v[0] == REQUEST_FRAMED;
+    }
+
+    /** Batch request for {@code ids[0..count)}. */
+    public static byte[] batchRequest(long[] ids, int count) {
+        if (count < 1 || count > MAX_BATCH_IDS)
+            throw new IllegalArgumentException("batch size: " + count);
+
+        ByteBuffer b = ByteBuffer.allocate(REQUEST_BATCH_HEADER_LEN + count * 8)
+                .put(REQUEST_BATCH)
+                .put((byte) count);
+        for (int i = 0; i < count; i++) b.putLong(ids[i]);
+        return b.array();
+    }
+
+    /** Largest batch whose request fits one ATT write at {@code mtu}. */
+    public static int maxBatchIds(int mtu) {
+        int room = mtu - 3 - REQUEST_BATCH_HEADER_LEN;
+        return Math.max(1, Math.min(MAX_BATCH_IDS, room / 8));
+    }
+
+    /** @return requested ids, or null if {@code v} is not a well-formed batch request. */
+    public static long[] batchIds(byte[] v) {
+        if (v == null || v.length < REQUEST_BATCH_HEADER_LEN || v[0] != REQUEST_BATCH)
+            return null;
+
+        int n = v[1] & 0xFF;
+        if (n < 1 || n > MAX_BATCH_IDS || v.length != REQUEST_BATCH_HEADER_LEN + n * 8)
+            return null;
+
+        ByteBuffer b = ByteBuffer.wrap(v, REQUEST_BATCH_HEADER_LEN, n * 8);
+        long[] ids = new long[n];
+        for (int i = 0; i < n; i++) ids[i] = b.getLong();
+        return ids;
+    }
+
+    // ---------------------------------------------------------
+    // FRAMES
+    // ---------------------------------------------------------
+
+    /** Split {@code payload} into frames of at most {@code frameSize} bytes each. */
+    public static List<byte[]> split(long id, byte[] payload, int frameSize) {
+        if (payload.length > MAX_PAYLOAD)
+            throw new IllegalArgumentException("payload too large: " + payload.length);
+
+        int room = frameSize - HEADER_LEN;
+        if (room <= 0)
+            throw new IllegalArgumentException("frame size too small: " + frameSize);
+
+        int count = Math.max(1, (payload.length + room - 1) / room);
+        List<byte[]> frames = new ArrayList<>(count);
+
+        for (int seq = 0; seq < count; seq++) {
+            int off = seq * room;
+            int len = Math.min(room, payload.length - off);
+
+            frames.add(ByteBuffer.allocate(HEADER_LEN + len)
+                    .putLong(id)
+                    .putShort((short) payload.length)
+                    .putShort((short) seq)
+                    .put(payload, off, len)
+                    .array());
+        }
+        return frames;
+    }
+
+    /** Batch answer for an id the server does not hold. */
+    public static byte[] notHeld(long id) {
+        return ByteBuffer.allocate(HEADER_LEN)
+                .putLong(id)
+                .putShort((short) 0)
+                .putShort((short) SEQ_NOT_HELD)
+                .array();
+    }
+
+    public static boolean isNotHeld(byte[] f) {
+        return f != null && f.length == HEADER_LEN && total(f) == 0 && seq(f) == SEQ_NOT_HELD;
+    }
+
+    public static boolean isFrame(byte[] f) {
+        return f != null && f.length >= HEADER_LEN;
+    }
+
+    public static long id(byte[] f) {
+        return ByteBuffer.wrap(f, 0, 8).getLong();
+    }
+
+    public static int total(byte[] f) {
+        return ((f[8] & 0xFF) << 8) | (f[9] & 0xFF);
+    }
+
+    public static int seq(byte[] f) {
+        return ((f[10] & 0xFF) << 8) | (f[11] & 0xFF);
+    }
+}
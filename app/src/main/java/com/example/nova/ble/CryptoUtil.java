@@ -1,14 +1,29 @@
 package com.example.nova.ble;
 
-import android.util.Log;
-
 import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
-import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * AES-GCM for mesh payloads.
+ *
+ *  - one Cipher per thread, re-initialised per call instead of a
+ *    Cipher.getInstance provider lookup each time
+ *  - nonces from one source seeded once: random 32-bit prefix || 64-bit
+ *    counter starting at a random value, so no SecureRandom per message
+ *    and no repeat within a process
+ *  - the 8-byte AAD (message id) goes through a per-thread buffer
+ *  - decrypt reads IV and ciphertext in place (offset / length views);
+ *    the ByteBuffer forms write into a caller buffer, which may be the
+ *    input's own array
+ *
+ * The byte[] AAD overloads are kept for callers with other AAD.
+ */
 public final class CryptoUtil {
     private static final String TAG = "CryptoUtil";
     // 256-bit key (replace with secure storage). For demo use only.
@@ -24,35 +39,188 @@ public final class CryptoUtil {
     private static final String TRANS = "AES/GCM/NoPadding";
     private static final int GCM_TAG_BITS = 128;
     private static final int IV_LEN = 12; // 96 bits recommended
+    public static final int OVERHEAD = IV_LEN + GCM_TAG_BITS / 8;
+
+    // Compact form for payloads that must fit a legacy scan response:
+    // nonce = id || "NOVA" (never sent), 96-bit tag. Only for ids encrypted once.
+    // 31 − service data AD header (4) − slot byte (1) − tag (12) = 14
+    public static final int COMPACT_MAX_PLAINTEXT = 14;
+    private static final int COMPACT_TAG_BITS = 96;
+    private static final int COMPACT_NONCE_SUFFIX = 0x4E4F5641;   // "NOVA"
+
+    // nonce source: seeded once per process
+    private static final int NONCE_PREFIX;
+    private static final AtomicLong NONCE_COUNTER;
+    static {
+        SecureRandom r = new SecureRandom();
+        NONCE_PREFIX = r.nextInt();
+        NONCE_COUNTER = new AtomicLong(r.nextLong());
+    }
+
+    private static final class Engine {
+        final Cipher cipher;
+        final byte[] aad = new byte[8];
+        final byte[] nonce = new byte[IV_LEN];
+
+        Engine() {
+            try {
+                cipher = Cipher.getInstance(TRANS);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(TRANS + " unavailable", e);
+            }
+        }
+
+        byte[] aad(long id) {
+            putLong(aad, 0, id);
+            return aad;
+        }
+    }
+
+    private static final ThreadLocal<Engine> ENGINE = new ThreadLocal<Engine>() {
+        @Override
+        protected Engine initialValue() {
+            return new Engine();
+        }
+    };
 
     private CryptoUtil() {}
 
+    // ---------------------------------------------------------
+    // FULL FORM: IV || ciphertext || 128-bit tag
+    // ---------------------------------------------------------
+
+    // Encrypt with the message id as AAD.
+    public static byte[] encrypt(byte[] plaintext, long id) throws Exception {
+        Engine e = ENGINE.get();
+        return seal(e, plaintext, 0, plaintext.length, e.aad(id));
+    }
+
     // Encrypt: returns IV || ciphertext (concatenated).
     public static byte[] encrypt(byte[] plaintext, byte[] aad) throws Exception {
-        Cipher cipher = Cipher.getInstance(TRANS);
-        byte[] iv = new byte[IV_LEN];
-        new SecureRandom().nextBytes(iv);
-        GCMParameterSpec spec = new GCMParameterSpec(GCM_TAG_BITS, iv);
-        cipher.init(Cipher.ENCRYPT_MODE, SECRET_KEY, spec);
-        if (aad != null) cipher.updateAAD(aad);
-        byte[] ct = cipher.doFinal(plaintext);
-        byte[] out = new byte[iv.length + ct.length];
-        System.arraycopy(iv, 0, out, 0, iv.length);
-        System.arraycopy(ct, 0, out, iv.length, ct.length);
+        return seal(ENGINE.get(), plaintext, 0, plaintext.length, aad);
+    }
+
+    private static byte[] seal(Engine e, byte[] in, int off, int len, byte[] aad) throws Exception {
+        byte[] out = new byte[OVERHEAD + len];
+        nextNonce(out, 0);
+        e.cipher.init(Cipher.ENCRYPT_MODE, SECRET_KEY, new GCMParameterSpec(GCM_TAG_BITS, out, 0, IV_LEN));
+        if (aad != null) e.cipher.updateAAD(aad);
+        e.cipher.doFinal(in, off, len, out, IV_LEN);
         return out;
     }
 
+    /**
+     * Encrypt {@code plain} (position..limit) into {@code out} as IV || ct || tag.
+     * {@code out} needs {@link #OVERHEAD} bytes more than the plaintext.
+     * Both buffers advance. @return bytes written.
+     */
+    public static int encrypt(ByteBuffer plain, ByteBuffer out, long id) throws Exception {
+        Engine e = ENGINE.get();
+        nextNonce(e.nonce, 0);
+        e.cipher.init(Cipher.ENCRYPT_MODE, SECRET_KEY, new GCMParameterSpec(GCM_TAG_BITS, e.nonce));
+        e.cipher.updateAAD(e.aad(id));
+        out.put(e.nonce);
+        return IV_LEN + e.cipher.doFinal(plain, out);
+    }
+
+    // Decrypt with the message id as AAD.
+    public static byte[] decrypt(byte[] ivAndCiphertext, long id) throws Exception {
+        Engine e = ENGINE.get();
+        return open(e, ivAndCiphertext, 0, ivAndCiphertext.length, e.aad(id));
+    }
+
+    // Decrypt a view buf[off, off + len) holding IV || ciphertext.
+    public static byte[] decrypt(byte[] buf, int off, int len, long id) throws Exception {
+        Engine e = ENGINE.get();
+        return open(e, buf, off, len, e.aad(id));
+    }
+
     // Decrypt: expects IV || ciphertext.
     public static byte[] decrypt(byte[] ivAndCiphertext, byte[] aad) throws Exception {
-        if (ivAndCiphertext == null || ivAndCiphertext.length < IV_LEN) {
+        if (ivAndCiphertext == null) throw new IllegalArgumentException("Invalid ciphertext");
+        return open(ENGINE.get(), ivAndCiphertext, 0, ivAndCiphertext.length, aad);
+    }
+
+    private static byte[] open(Engine e, byte[] buf, int off, int len, byte[] aad) throws Exception {
+        if (buf == null || len < IV_LEN) {
             throw new IllegalArgumentException("Invalid ciphertext");
         }
-        byte[] iv = Arrays.copyOfRange(ivAndCiphertext, 0, IV_LEN);
-        byte[] ct = Arrays.copyOfRange(ivAndCiphertext, IV_LEN, ivAndCiphertext.length);
-        Cipher cipher = Cipher.getInstance(TRANS);
-        GCMParameterSpec spec = new GCMParameterSpec(GCM_TAG_BITS, iv);
-        cipher.init(Cipher.DECRYPT_MODE, SECRET_KEY, spec);
-        if (aad != null) cipher.updateAAD(aad);
-        return cipher.doFinal(ct);
+        e.cipher.init(Cipher.DECRYPT_MODE, SECRET_KEY, new GCMParameterSpec(GCM_TAG_BITS, buf, off, IV_LEN));
+        if (aad != null) e.cipher.updateAAD(aad);
+        return e.cipher.doFinal(buf, off + IV_LEN, len - IV_LEN);
+    }
+
+    /**
+     * Decrypt {@code in} (position..limit, IV || ct || tag) into {@code out};
+     * {@code out} may share {@code in}'s array (in-place). Both buffers
+     * advance. @return plaintext bytes written.
+     */
+    public static int decrypt(ByteBuffer in, ByteBuffer out, long id) throws Exception {
+        if (in.remaining() < OVERHEAD) throw new IllegalArgumentException("Invalid ciphertext");
+        Engine e = ENGINE.get();
+        in.get(e.nonce);
+        e.cipher.init(Cipher.DECRYPT_MODE, SECRET_KEY, new GCMParameterSpec(GCM_TAG_BITS, e.nonce));
+        e.cipher.updateAAD(e.aad(id));
+        return e.cipher.doFinal(in, out);
+    }
+
+    // ---------------------------------------------------------
+    // COMPACT FORM: ciphertext || 96-bit tag, nonce derived from id
+    // ---------------------------------------------------------
+
+    // Compact encrypt: returns ciphertext || 96-bit tag (no IV, derived from id).
+    public static byte[] encryptCompact(byte[] plaintext, long id) throws Exception {
+        if (plaintext.length > COMPACT_MAX_PLAINTEXT)
+            throw new IllegalArgumentException("compact plaintext too long: " + plaintext.length);
+        Engine e = ENGINE.get();
+        e.cipher.init(Cipher.ENCRYPT_MODE, SECRET_KEY, new GCMParameterSpec(COMPACT_TAG_BITS, compactNonce(e, id)));
+        e.cipher.updateAAD(e.aad(id));
+        return e.cipher.doFinal(plaintext);
+    }
+
+    public static byte[] decryptCompact(byte[] ciphertext, long id) throws Exception {
+        Engine e = ENGINE.get();
+        e.cipher.init(Cipher.DECRYPT_MODE, SECRET_KEY, new GCMParameterSpec(COMPACT_TAG_BITS, compactNonce(e, id)));
+        e.cipher.updateAAD(e.aad(id));
+        return e.cipher.doFinal(ciphertext);
+    }
+
+    // Full form is at least IV + 128-bit tag; anything shorter is compact.
+    public static boolean isCompact(byte[] ciphertext) {
+        return ciphertext != null && ciphertext.length < OVERHEAD;
+    }
+
+    /**
+     * Nonce of the compact form: id || "NOVA". GCM with a repeated nonce
+     * leaks the XOR of the plaintexts and lets the tag be forged, so every
+     * id must be encrypted at most once under this key. That holds because
+     * only the originator encrypts (sendOutgoing, with a fresh random
+     * MeshMessage.createNew id) and relays forward the ciphertext as is.
+     * Never re-encrypt a message under an id that has already been sent.
+     */
+    private static byte[] compactNonce(Engine e, long id) {
+        putLong(e.nonce, 0, id);
+        putInt(e.nonce, 8, COMPACT_NONCE_SUFFIX);
+        return e.nonce;
+    }
+
+    // ---------------------------------------------------------
+    // NONCES
+    // ---------------------------------------------------------
+    private static void nextNonce(byte[] b, int off) {
+        putInt(b, off, NONCE_PREFIX);
+        putLong(b, off + 4, NONCE_COUNTER.getAndIncrement());
+    }
+
+    private static void putInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    private static void putLong(byte[] b, int off, long v) {
+        putInt(b, off, (int) (v >>> 32));
+        putInt(b, off + 4, (int) v);
     }
 }
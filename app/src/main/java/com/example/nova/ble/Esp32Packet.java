@@ -0,0 +1,51 @@
+package com.example.nova.ble;
+
+import java.util.HashMap;
+
+/**
+ * Esp32Packet
+ * ------------
+ * ESP32 beacons put "MESH:KEY:VALUE;KEY:VALUE;..." in manufacturer data.
+ * Only TYPE:SOS is acted upon today.
+ */
+public final class Esp32Packet {
+
+    // Nothing pins the company id the beacon firmware advertises under (the
+    // parser has always taken "MESH:" under any id); ANY_COMPANY means that
+    public static final int ANY_COMPANY = -1;
+    public static final byte[] PREFIX = { 'M', 'E', 'S', 'H', ':' };
+
+    private Esp32Packet() {}
+
+    /** Cheap pre-check (no allocation): does {@code data} start with "MESH:"? */
+    public static boolean hasPrefix(byte[] data) {
+        if (data == null || data.length < PREFIX.length) return false;
+        for (int i = 0; i < PREFIX.length; i++)
+            if (data[i] != PREFIX[i]) return false;
+        return true;
+    }
+
+    /** @return parsed fields, or null if {@code data} is not a MESH: packet. */
+    public static HashMap<String, String> parse(byte[] data) {
+        if (data == null) return null;
+
+        String payload;
+        try { payload = new String(data); }
+        catch (Exception e) { return null; }
+
+        if (!payload.startsWith("MESH:")) return null;
+
+        String[] tokens = payload.substring(5).split(";");
+        HashMap<String, String> map = new HashMap<>();
+
+        for (String t : tokens) {
+            String[] kv = t.split(":", 2);
+            if (kv.length == 2) map.put(kv[0], kv[1]);
+        }
+        return map;
+    }
+
+    public static boolean isSos(HashMap<String, String> fields) {
+        return fields != null && "SOS".equalsIgnoreCase(fields.get("TYPE"));
+    }
+}
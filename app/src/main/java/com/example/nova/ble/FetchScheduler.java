@@ -0,0 +1,328 @@
+package com.example.nova.ble;
+
+import com.example.nova.model.MeshMessage;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * FetchScheduler
+ * ---------------
+ * Single gate in front of MeshTransport.fetchPayload (and syncDigest,
+ * queued as a presence-class job: it never delays a payload). Without it every
+ * header started a GATT connect at once; a burst of headers turned into a
+ * connectGatt storm that mostly failed with 133/257 and then backed off in
+ * lockstep.
+ *
+ *  - concurrency: at most maxPeers peers have fetches in flight (one GATT
+ *    connection each); a peer already being served takes up to maxPerPeer
+ *    more requests on its link (PayloadGattClient batches them)
+ *  - priority: MeshMessage.priority, SOS before chat before presence
+ *  - deadlines: each job carries one (first attempt + budget for its
+ *    class); a job past its deadline goes ahead of on-time ones of the
+ *    same class, and within a peer jobs run earliest deadline first
+ *  - fairness: among peers waiting for a connection slot the one served
+ *    longest ago goes next, so one neighbour's backlog cannot starve the rest
+ *  - bounded: MAX_QUEUED jobs; when full the worst job (lowest class,
+ *    latest deadline) is refused with "QueueFull"
+ *
+ * Metrics (cumulative): queue depth and its high water, wait from submit to
+ * dispatch (mean / max, per class), deadline misses, refusals.
+ *
+ * Not thread-safe: HopManager calls it on its MeshScheduler thread, where
+ * fetch callbacks arrive too.
+ */
+public class FetchScheduler {
+
+    // deadline budget per class, from the first attempt
+    private static final long[] BUDGET_MS = { 60_000, 20_000, 5_000 };
+
+    public static final int DEFAULT_MAX_PEERS = 3;      // < PayloadGattClient.DEFAULT_MAX_LINKS: room to evict an idle link
+    public static final int DEFAULT_MAX_PER_PEER = 32;  // PayloadGattClient.MAX_QUEUED_PER_LINK
+    private static final int MAX_QUEUED = 256;
+    private static final long FAIRNESS_MEMORY_MS = 30_000;   // idle peers forgotten after this
+
+    private final MeshTransport transport;
+    private final MeshScheduler scheduler;
+    private int maxPeers;
+    private int maxPerPeer;
+
+    private static final class Job {
+        final String address;
+        final long messageId;
+        final int priority;
+        final long deadline;
+        final long queuedAt;
+        final long seq;
+        final PayloadGattClient.Callback cb;
+        byte[] digest;   // digest sync instead of a payload fetch
+
+        Job(String address, long messageId, int priority, long deadline,
+            long queuedAt, long seq, PayloadGattClient.Callback cb) {
+            this.address = address;
+            this.messageId = messageId;
+            this.priority = priority;
+            this.deadline = deadline;
+            this.queuedAt = queuedAt;
+            this.seq = seq;
+            this.cb = cb;
+        }
+    }
+
+    private static final class Peer {
+        final ArrayList<Job> queue = new ArrayList<>();   // best first
+        int inflight;
+        long lastDispatchAt = Long.MIN_VALUE;
+    }
+
+    private final Map<String, Peer> peers = new LinkedHashMap<>();
+    private int queued;
+    private int activePeers;
+    private long seq;
+    private boolean pumping;
+
+    // metrics
+    private int highWater;
+    private long dispatched;
+    private long refused;
+    private long missedDeadlines;
+    private long maxWaitMs;
+    private long syncs;
+    private final long[] dispatchedBy = new long[3];
+    private final long[] waitSumBy = new long[3];
+
+    public FetchScheduler(MeshTransport transport, MeshScheduler scheduler) {
+        this(transport, scheduler, DEFAULT_MAX_PEERS, DEFAULT_MAX_PER_PEER);
+    }
+
+    public FetchScheduler(MeshTransport transport, MeshScheduler scheduler,
+                          int maxPeers, int maxPerPeer) {
+        this.transport = transport;
+        this.scheduler = scheduler;
+        setLimits(maxPeers, maxPerPeer);
+    }
+
+    public void setLimits(int maxPeers, int maxPerPeer) {
+        this.maxPeers = Math.max(1, maxPeers);
+        this.maxPerPeer = Math.max(1, maxPerPeer);
+        pump();
+    }
+
+    /** Deadline for a fetch of class {@code priority} first tried at {@code firstAttemptAt}. */
+    public static long deadlineFor(int priority, long firstAttemptAt) {
+        return firstAttemptAt + BUDGET_MS[clamp(priority)];
+    }
+
+    // ---------------------------------------------------------
+    // SUBMIT
+    // ---------------------------------------------------------
+
+    /** Queue a fetch; {@code cb} gets exactly one outcome. */
+    public void submit(String address, long messageId, int priority, long deadline,
+                       PayloadGattClient.Callback cb) {
+        long now = scheduler.now();
+        enqueue(new Job(address, messageId, clamp(priority), deadline, now, seq++, cb));
+    }
+
+    /** Queue a digest sync with {@code address}; {@code cb} gets the encoded offers. */
+    public void submitSync(String address, byte[] digestRequest, PayloadGattClient.Callback cb) {
+        long now = scheduler.now();
+        Job job = new Job(address, ChunkFrame.SYNC_ID, MeshMessage.PRIORITY_PRESENCE,
+                deadlineFor(MeshMessage.PRIORITY_PRESENCE, now), now, seq++, cb);
+        job.digest = digestRequest;
+        enqueue(job);
+    }
+
+    private void enqueue(Job job) {
+        if (queued >= MAX_QUEUED && !evictWorseThan(job)) {
+            refused++;
+            job.cb.onError("QueueFull");
+            return;
+        }
+
+        Peer p = peers.get(job.address);
+        if (p == null) {
+            p = new Peer();
+            peers.put(job.address, p);
+        }
+        insert(p.queue, job);
+        queued++;
+        if (queued > highWater) highWater = queued;
+
+        pump();
+    }
+
+    private static void insert(ArrayList<Job> q, Job job) {
+        int i = q.size();
+        while (i > 0 && better(job, q.get(i - 1))) i--;
+        q.add(i, job);
+    }
+
+    /** Within one peer: class, then earliest deadline, then arrival. */
+    private static boolean better(Job a, Job b) {
+        if (a.priority != b.priority) return a.priority > b.priority;
+        if (a.deadline != b.deadline) return a.deadline < b.deadline;
+        return a.seq < b.seq;
+    }
+
+    private boolean evictWorseThan(Job job) {
+        Peer worstPeer = null;
+        Job worst = null;
+        for (Peer p : peers.values()) {
+            if (p.queue.isEmpty()) continue;
+            Job last = p.queue.get(p.queue.size() - 1);
+            if (worst == null || better(worst, last)) {
+                worst = last;
+                worstPeer = p;
+            }
+        }
+        if (worst == null || !better(job, worst)) return false;
+
+        worstPeer.queue.remove(worstPeer.queue.size() - 1);
+        queued--;
+        refused++;
+        worst.cb.onError("QueueFull");
+        return true;
+    }
+
+    // ---------------------------------------------------------
+    // DISPATCH
+    // ---------------------------------------------------------
+    private final Runnable pumpTask = this::pump;
+
+    private void pump() {
+        if (pumping) return;   // a synchronous callback re-entered us
+        pumping = true;
+        try {
+            Job job;
+            while ((job = next()) != null) dispatch(job);
+        } finally {
+            pumping = false;
+        }
+    }
+
+    /** Best head job among peers that may take one more request now. */
+    private Job next() {
+        long now = scheduler.now();
+        Peer best = null;
+
+        Iterator<Peer> it = peers.values().iterator();
+        while (it.hasNext()) {
+            Peer p = it.next();
+            if (p.queue.isEmpty()) {
+                if (p.inflight == 0 && (p.lastDispatchAt == Long.MIN_VALUE
+                        || now - p.lastDispatchAt > FAIRNESS_MEMORY_MS)) it.remove();
+                continue;
+            }
+            if (p.inflight > 0 ? p.inflight >= maxPerPeer : activePeers >= maxPeers) continue;
+
+            if (best == null || before(p, best, now)) best = p;
+        }
+        if (best == null) return null;
+
+        Job job = best.queue.remove(0);
+        queued--;
+        if (best.inflight++ == 0) activePeers++;
+        best.lastDispatchAt = now;
+        return job;
+    }
+
+    /** Across peers: class, then overdue first, then least recently served, then deadline. */
+    private static boolean before(Peer a, Peer b, long now) {
+        Job ja = a.queue.get(0), jb = b.queue.get(0);
+        if (ja.priority != jb.priority) return ja.priority > jb.priority;
+
+        boolean lateA = ja.deadline <= now, lateB = jb.deadline <= now;
+        if (lateA != lateB) return lateA;
+
+        if (a.lastDispatchAt != b.lastDispatchAt) return a.lastDispatchAt < b.lastDispatchAt;
+        return better(ja, jb);
+    }
+
+    private void dispatch(Job job) {
+        long now = scheduler.now();
+        long wait = now - job.queuedAt;
+
+        dispatched++;
+        dispatchedBy[job.priority]++;
+        waitSumBy[job.priority] += wait;
+        if (wait > maxWaitMs) maxWaitMs = wait;
+        if (now > job.deadline) missedDeadlines++;
+
+        PayloadGattClient.Callback done = new PayloadGattClient.Callback() {
+            @Override
+            public void onPayload(byte[] ciphertext) {
+                finished(job);
+                job.cb.onPayload(ciphertext);
+            }
+
+            @Override
+            public void onError(String reason) {
+                finished(job);
+                job.cb.onError(reason);
+            }
+        };
+
+        if (job.digest != null) {
+            syncs++;
+            transport.syncDigest(job.address, job.digest, done);
+        } else {
+            transport.fetchPayload(job.address, job.messageId, done);
+        }
+    }
+
+    private void finished(Job job) {
+        Peer p = peers.get(job.address);
+        if (p != null && --p.inflight == 0) activePeers--;
+        // after the caller's callback has run (it may submit a failover)
+        scheduler.postDelayed(pumpTask, 0);
+    }
+
+    // ---------------------------------------------------------
+    // METRICS
+    // ---------------------------------------------------------
+    public int queueDepth() { return queued; }
+    public int highWater() { return highWater; }
+    public int activePeers() { return activePeers; }
+    public long dispatched() { return dispatched; }
+    public long refused() { return refused; }
+    public long missedDeadlines() { return missedDeadlines; }
+    public long maxWaitMs() { return maxWaitMs; }
+    public long syncs() { return syncs; }
+
+    /** Mean wait from submit to dispatch for class {@code priority} (0 if none yet). */
+    public double meanWaitMs(int priority) {
+        int c = clamp(priority);
+        return dispatchedBy[c] == 0 ? 0 : waitSumBy[c] / (double) dispatchedBy[c];
+    }
+
+    /** Jobs still queued for {@code address} (not counting in-flight ones). */
+    public int queuedFor(String address) {
+        Peer p = peers.get(address);
+        return p != null ? p.queue.size() : 0;
+    }
+
+    private static int clamp(int priority) {
+        return Math.max(MeshMessage.PRIORITY_PRESENCE, Math.min(MeshMessage.PRIORITY_SOS, priority));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder()
+                .append("queued=").append(queued)
+                .append(" highWater=").append(highWater)
+                .append(" activePeers=").append(activePeers).append('/').append(maxPeers)
+                .append(" dispatched=").append(dispatched)
+                .append(" syncs=").append(syncs)
+                .append(" refused=").append(refused)
+                .append(" late=").append(missedDeadlines)
+                .append(" maxWait=").append(maxWaitMs).append("ms");
+        for (int c = MeshMessage.PRIORITY_SOS; c >= MeshMessage.PRIORITY_PRESENCE; c--)
+            if (dispatchedBy[c] > 0)
+                sb.append(' ').append(MeshMessage.priorityName(c))
+                  .append("Wait=").append(Math.round(meanWaitMs(c))).append("ms");
+        return sb.toString();
+    }
+}
@@ -10,6 +10,18 @@ public final class GattConstants {
     public static final UUID SERVICE_HEADER_UUID =
             UUID.fromString("0000FEED-0000-1000-8000-00805F9B34FB");
 
+    // HEADER SERVICE, packed form (several headers per advert, see HeaderCodec)
+    public static final UUID SERVICE_HEADER_PACKED_UUID =
+            UUID.fromString("0000FEEE-0000-1000-8000-00805F9B34FB");
+
+    // HEADER SERVICE, extended-advert form (headers + inline ciphertext, see HeaderCodec)
+    public static final UUID SERVICE_HEADER_EXT_UUID =
+            UUID.fromString("0000FEEF-0000-1000-8000-00805F9B34FB");
+
+    // SCAN RESPONSE: compact inline ciphertext for one header of a legacy advert
+    public static final UUID SERVICE_HEADER_SR_UUID =
+            UUID.fromString("0000FEF0-0000-1000-8000-00805F9B34FB");
+
     // MAIN MESH PAYLOAD GATT SERVICE
     public static final UUID SERVICE_MESH_GATT =
             UUID.fromString("0000BEEF-0000-1000-8000-00805F9B34FB");
@@ -18,7 +18,10 @@ import android.util.Log;
 import androidx.core.content.ContextCompat;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
@@ -27,8 +30,15 @@ import java.util.concurrent.ConcurrentHashMap;
  * FINAL STABLE GATT SERVER (Admin & User Compatible)
  * ---------------------------------------------------
  *  - CCCD support
- *  - Chunked NOTIFY
+ *  - Chunked NOTIFY: ChunkFrame-framed for clients that ask for it,
+ *    raw slices for legacy 8-byte requests
+ *  - One notification in flight per device (next one on onNotificationSent),
+ *    sized to the negotiated MTU
  *  - WRITE(id) triggers immediate notify-if-available
+ *  - WRITE(batch of ids) streams every held payload back-to-back,
+ *    not-held frame for the rest
+ *  - WRITE(digest) answers with offers: held ids the client's Bloom filter
+ *    lacks (HopManager.answerDigest), framed under ChunkFrame.SYNC_ID
  *  - NO infinite retry loops
  *  - No READ fallback confusion → returns FAIL (expected)
  */
@@ -45,7 +55,19 @@ public class GattServer {
 
     private final ConcurrentHashMap<String, Boolean> subscribedDevices = new ConcurrentHashMap<>();
 
+    // per-link state
+    private final ConcurrentHashMap<String, Integer> deviceMtu = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Boolean> framedDevices = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Outbox> outboxes = new ConcurrentHashMap<>();
+
     private static final int NOTIFY_CHUNK_SIZE = 490;
+    private static final int DEFAULT_MTU = 23;
+
+    // notifications queued for one device, sent one at a time
+    private static final class Outbox {
+        final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+        boolean sending;
+    }
 
     public GattServer(Context ctx) {
         this.context = ctx.getApplicationContext();
@@ -92,7 +114,7 @@ public class GattServer {
                 BluetoothGattService.SERVICE_TYPE_PRIMARY
         );
 
-        // WRITE → message ID (8 bytes)
+        // WRITE → message ID (8 bytes, framed 9, or batch, see ChunkFrame)
         requestChar = new BluetoothGattCharacteristic(
                 GattConstants.CHAR_REQUEST_MESSAGE,
                 BluetoothGattCharacteristic.PROPERTY_WRITE |
@@ -130,12 +152,21 @@ public class GattServer {
         }
         gattServer = null;
         subscribedDevices.clear();
+        deviceMtu.clear();
+        framedDevices.clear();
+        outboxes.clear();
     }
 
     // ---------------------------------------------------------
     // Notification helpers
     // ---------------------------------------------------------
-    private void notifyChunks(BluetoothDevice device, byte[] data) {
+    private int notifySize(String addr) {
+        Integer mtu = deviceMtu.get(addr);
+        int att = (mtu != null ? mtu : DEFAULT_MTU) - 3;   // ATT notify header
+        return Math.min(NOTIFY_CHUNK_SIZE, att);
+    }
+
+    private void notifyChunks(BluetoothDevice device, long msgId, byte[] data) {
 
         if (gattServer == null || device == null || data == null) return;
 
@@ -145,29 +176,127 @@ public class GattServer {
             return;
         }
 
-        if (data.length <= NOTIFY_CHUNK_SIZE) {
-            responseChar.setValue(data);
-            gattServer.notifyCharacteristicChanged(device, responseChar, false);
+        int size = notifySize(addr);
+        List<byte[]> chunks;
+
+        if (Boolean.TRUE.equals(framedDevices.get(addr))) {
+            chunks = ChunkFrame.split(msgId, data, size);
+        } else {
+            // legacy client: raw slices, it only reads the first one
+            chunks = new ArrayList<>();
+            for (int offset = 0; offset < data.length; offset += size)
+                chunks.add(Arrays.copyOfRange(data, offset, Math.min(data.length, offset + size)));
+        }
+
+        enqueue(device, chunks);
+    }
+
+    private void notifyBatch(BluetoothDevice device, long[] ids) {
+
+        if (gattServer == null) return;
+
+        String addr = device.getAddress();
+        if (!Boolean.TRUE.equals(subscribedDevices.get(addr))) {
+            Log.w(TAG, "Device NOT subscribed for notify: " + addr);
             return;
         }
 
-        int offset = 0;
-        while (offset < data.length) {
-            int len = Math.min(NOTIFY_CHUNK_SIZE, data.length - offset);
-            byte[] chunk = Arrays.copyOfRange(data, offset, offset + len);
-            responseChar.setValue(chunk);
+        HopManager hm = HopManager.hopManagerInstance;
+        int size = notifySize(addr);
+        List<byte[]> frames = new ArrayList<>();
+        int held = 0;
 
+        for (long id : ids) {
+            byte[] payload = null;
             try {
-                gattServer.notifyCharacteristicChanged(device, responseChar, false);
+                if (hm != null) payload = hm.getStoredCiphertext(id);
             } catch (Exception ignore) {}
 
-            offset += len;
+            if (payload != null && payload.length > 0) {
+                frames.addAll(ChunkFrame.split(id, payload, size));
+                held++;
+            } else {
+                frames.add(ChunkFrame.notHeld(id));
+            }
+        }
+
+        Log.d(TAG, "WRITE(batch " + ids.length + ") from " + addr + " → " + held + " held");
+        enqueue(device, frames);
+    }
+
+    private void notifyOffers(BluetoothDevice device, IdDigest digest) {
+
+        if (gattServer == null) return;
 
-            try { Thread.sleep(8); } catch (Exception ignore) {}
+        String addr = device.getAddress();
+        if (!Boolean.TRUE.equals(subscribedDevices.get(addr))) {
+            Log.w(TAG, "Device NOT subscribed for notify: " + addr);
+            return;
         }
+
+        HopManager hm = HopManager.hopManagerInstance;
+        byte[] offers = hm != null
+                ? hm.answerDigest(digest)
+                : IdDigest.encodeOffers(new ArrayList<IdDigest.Offer>());
+
+        Log.d(TAG, "WRITE(digest) from " + addr + " → " + (offers.length - 2) / IdDigest.OFFER_LEN + " offers");
+        enqueue(device, ChunkFrame.split(ChunkFrame.SYNC_ID, offers, notifySize(addr)));
     }
 
-    public void notifyAllSubscribed(byte[] payload) {
+    private void enqueue(BluetoothDevice device, List<byte[]> chunks) {
+        String addr = device.getAddress();
+
+        Outbox box = outboxes.get(addr);
+        if (box == null) {
+            Outbox fresh = new Outbox();
+            box = outboxes.putIfAbsent(addr, fresh);
+            if (box == null) box = fresh;
+        }
+
+        synchronized (box) {
+            box.queue.addAll(chunks);
+            if (box.sending) return;   // onNotificationSent will pick them up
+            box.sending = true;
+        }
+        sendNext(device, box);
+    }
+
+    private void sendNext(BluetoothDevice device, Outbox box) {
+        byte[] next;
+        synchronized (box) {
+            next = box.queue.poll();
+            if (next == null) {
+                box.sending = false;
+                return;
+            }
+        }
+
+        BluetoothGattServer server = gattServer;
+        boolean ok = false;
+
+        if (server != null) {
+            try {
+                // characteristic value is shared by all links
+                synchronized (responseChar) {
+                    responseChar.setValue(next);
+                    ok = server.notifyCharacteristicChanged(device, responseChar, false);
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "notify error: " + e);
+            }
+        }
+
+        if (!ok) {
+            // link gone or stack refused: drop the rest, client will time out and retry
+            Log.w(TAG, "notify failed → dropping queue for " + device.getAddress());
+            synchronized (box) {
+                box.queue.clear();
+                box.sending = false;
+            }
+        }
+    }
+
+    public void notifyAllSubscribed(long msgId, byte[] payload) {
 
         if (payload == null || gattServer == null) return;
 
@@ -181,7 +310,7 @@ public class GattServer {
             if (!Boolean.TRUE.equals(e.getValue())) continue;
 
             BluetoothDevice dev = manager.getAdapter().getRemoteDevice(e.getKey());
-            if (dev != null) notifyChunks(dev, payload);
+            if (dev != null) notifyChunks(dev, msgId, payload);
         }
     }
 
@@ -191,6 +320,29 @@ public class GattServer {
     private final BluetoothGattServerCallback callback =
             new BluetoothGattServerCallback() {
 
+                @Override
+                public void onConnectionStateChange(BluetoothDevice device, int status, int newState) {
+                    if (newState == BluetoothGatt.STATE_DISCONNECTED) {
+                        String addr = device.getAddress();
+                        subscribedDevices.remove(addr);
+                        deviceMtu.remove(addr);
+                        framedDevices.remove(addr);
+                        outboxes.remove(addr);
+                    }
+                }
+
+                @Override
+                public void onMtuChanged(BluetoothDevice device, int mtu) {
+                    deviceMtu.put(device.getAddress(), mtu);
+                    Log.d(TAG, "MTU " + mtu + " → " + device.getAddress());
+                }
+
+                @Override
+                public void onNotificationSent(BluetoothDevice device, int status) {
+                    Outbox box = outboxes.get(device.getAddress());
+                    if (box != null) sendNext(device, box);
+                }
+
                 // -------------------------------
                 // CCCD write
                 // -------------------------------
@@ -240,14 +392,39 @@ public class GattServer {
                         return;
                     }
 
-                    if (value == null || value.length != 8) {
+                    IdDigest digest = IdDigest.parse(value);
+                    if (digest != null) {
+                        framedDevices.put(device.getAddress(), true);
+                        gattServer.sendResponse(device, requestId,
+                                BluetoothGatt.GATT_SUCCESS, 0, null);
+                        notifyOffers(device, digest);
+                        return;
+                    }
+
+                    long[] batch = ChunkFrame.batchIds(value);
+                    if (batch != null) {
+                        framedDevices.put(device.getAddress(), true);
+                        gattServer.sendResponse(device, requestId,
+                                BluetoothGatt.GATT_SUCCESS, 0, null);
+                        notifyBatch(device, batch);
+                        return;
+                    }
+
+                    long msgId;
+
+                    if (ChunkFrame.isFramedRequest(value)) {
+                        msgId = ByteBuffer.wrap(value, 1, 8).getLong();
+                        framedDevices.put(device.getAddress(), true);
+                    } else if (value != null && value.length == ChunkFrame.REQUEST_LEGACY_LEN) {
+                        msgId = ByteBuffer.wrap(value).getLong();
+                        framedDevices.remove(device.getAddress());
+                    } else {
                         gattServer.sendResponse(device, requestId,
                                 BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH,
                                 0, null);
                         return;
                     }
 
-                    long msgId = ByteBuffer.wrap(value).getLong();
                     Log.d(TAG, "WRITE(id)=" + msgId + " from " + device.getAddress());
 
                     // Required ACK
@@ -263,7 +440,7 @@ public class GattServer {
                     } catch (Exception ignore) {}
 
                     if (payload != null && payload.length > 0) {
-                        notifyChunks(device, payload);
+                        notifyChunks(device, msgId, payload);
                         Log.d(TAG, "Immediate notify OK for id=" + msgId);
                     } else {
                         Log.d(TAG, "Payload not ready. HopManager will notify later.");
@@ -0,0 +1,246 @@
+package com.example.nova.ble;
+
+import com.example.nova.model.MeshMessage;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * HeaderCodec
+ * ------------
+ * NOVA 10-byte advert header carried as service data under
+ * GattConstants.SERVICE_HEADER_UUID:
+ *
+ *   [0]     version (low nibble) | delivery class (high nibble)
+ *   [1..8]  message id (big endian)
+ *   [9]     hop count
+ *
+ * Delivery class: 0 = chat, 1 = presence, 2 = SOS (MeshMessage.priority).
+ * Chat is 0 so adverts from builds that sent a bare version byte decode as
+ * chat; those builds skip the byte, so they read ours unchanged.
+ *
+ * Packed form, several headers in one advert, carried under
+ * GattConstants.SERVICE_HEADER_PACKED_UUID so scanners that only know the
+ * single form never see it:
+ *
+ *   [0]     version | class
+ *   then per header: [id:8][hop:1]
+ *
+ * Extended form (BLE 5 extended adverts, GattConstants.SERVICE_HEADER_EXT_UUID),
+ * headers with optional inline ciphertext:
+ *
+ *   [0]     version | class
+ *   then per header: [id:8][hop:1][len:1][ciphertext:len]   (len 0 → fetch over GATT)
+ *
+ * The packed and extended forms carry one class per advert: batches are
+ * built from headers of a single class (see sameClass).
+ *
+ * Scan response of a legacy advert (GattConstants.SERVICE_HEADER_SR_UUID),
+ * inline ciphertext for one of its headers:
+ *
+ *   [0]     slot (index of the header in the advert, 0 for the single form)
+ *   [1..]   ciphertext (compact form, see CryptoUtil.encryptCompact)
+ *
+ * Ids stay full width: the id is the GATT fetch key and the AES-GCM AAD, so
+ * a truncated id could not be resolved without an extra round trip.
+ *
+ * Pure Java (no android.*) so it can be benchmarked and simulated off-device.
+ */
+public final class HeaderCodec {
+
+    public static final int HEADER_LEN = 10;
+    public static final int PACKED_ENTRY_LEN = 9;
+
+    // legacy advert: 31 − flags (3) − 16-bit UUID list (4) − service data AD header (4)
+    public static final int LEGACY_SERVICE_DATA_MAX = 20;
+
+    private HeaderCodec() {}
+
+    // ---------------------------------------------------------
+    // VERSION / CLASS BYTE
+    // ---------------------------------------------------------
+    private static final int[] WIRE_CLASS = { 1, 0, 2 };   // by MeshMessage.priority
+    private static final int[] PRIORITY_OF_WIRE = {
+            MeshMessage.PRIORITY_CHAT, MeshMessage.PRIORITY_PRESENCE, MeshMessage.PRIORITY_SOS };
+
+    static byte versionByte(int priority) {
+        int p = Math.max(MeshMessage.PRIORITY_PRESENCE, Math.min(MeshMessage.PRIORITY_SOS, priority));
+        return (byte) (MeshMessage.VERSION | WIRE_CLASS[p] << 4);
+    }
+
+    /** Priority carried by a version byte; unknown classes decode as chat. */
+    public static int priorityOf(byte versionByte) {
+        int c = (versionByte >> 4) & 0x0F;
+        return c < PRIORITY_OF_WIRE.length ? PRIORITY_OF_WIRE[c] : MeshMessage.PRIORITY_CHAT;
+    }
+
+    /** Whether {@code b} may share a packed / extended advert with {@code a}. */
+    public static boolean sameClass(MeshMessage a, MeshMessage b) {
+        return a.priority == b.priority;
+    }
+
+    public static byte[] encode(MeshMessage msg) {
+        return ByteBuffer.allocate(HEADER_LEN)
+                .put(versionByte(msg.priority))  // version | class
+                .putLong(msg.id)                 // message id
+                .put((byte) msg.hopCount)        // hop
+                .array();
+    }
+
+    // ---------------------------------------------------------
+    // EXTENDED (inline payloads)
+    // ---------------------------------------------------------
+    public static final int EXT_ENTRY_OVERHEAD = 10;
+    public static final int MAX_INLINE_PAYLOAD = 0xFF;
+
+    /** Service data bytes the extended form may use when the whole advert is {@code advertDataMax}. */
+    public static int extendedServiceDataMax(int advertDataMax) {
+        // flags (3) + 16-bit UUID list (4) + service data AD header (4)
+        return advertDataMax - 11;
+    }
+
+    public static boolean canInline(MeshMessage m) {
+        return m.encryptedPayload != null
+                && m.encryptedPayload.length > 0
+                && m.encryptedPayload.length <= MAX_INLINE_PAYLOAD;
+    }
+
+    public static int extendedEntryLen(MeshMessage m, boolean inline) {
+        return EXT_ENTRY_OVERHEAD + (inline ? m.encryptedPayload.length : 0);
+    }
+
+    /** Encode {@code msgs}; entry i carries its ciphertext inline iff {@code inline[i]}. */
+    public static byte[] encodeExtended(List<MeshMessage> msgs, boolean[] inline) {
+        int len = 1;
+        for (int i = 0; i < msgs.size(); i++) len += extendedEntryLen(msgs.get(i), inline[i]);
+
+        ByteBuffer bb = ByteBuffer.allocate(len).put(versionByte(msgs.get(0).priority));
+        for (int i = 0; i < msgs.size(); i++) {
+            MeshMessage m = msgs.get(i);
+            bb.putLong(m.id).put((byte) m.hopCount);
+            if (inline[i]) {
+                bb.put((byte) m.encryptedPayload.length).put(m.encryptedPayload);
+            } else {
+                bb.put((byte) 0);
+            }
+        }
+        return bb.array();
+    }
+
+    /**
+     * @return one header per entry (id + hopCount, encryptedPayload for inline
+     *         entries); empty if malformed.
+     */
+    public static List<MeshMessage> decodeExtended(byte[] data) {
+        if (data == null || data.length < 1 + EXT_ENTRY_OVERHEAD) return Collections.emptyList();
+
+        int priority = priorityOf(data[0]);
+        List<MeshMessage> out = new ArrayList<>(4);
+        ByteBuffer bb = ByteBuffer.wrap(data, 1, data.length - 1);
+
+        while (bb.remaining() > 0) {
+            if (bb.remaining() < EXT_ENTRY_OVERHEAD) return Collections.emptyList();
+
+            MeshMessage msg = new MeshMessage();
+            msg.id = bb.getLong();
+            msg.hopCount = bb.get() & 0xFF;
+            msg.priority = priority;
+
+            int len = bb.get() & 0xFF;
+            if (len > bb.remaining()) return Collections.emptyList();
+            if (len > 0) {
+                msg.encryptedPayload = new byte[len];
+                bb.get(msg.encryptedPayload);
+            }
+            out.add(msg);
+        }
+        return out;
+    }
+
+    // ---------------------------------------------------------
+    // SCAN RESPONSE (legacy inline)
+    // ---------------------------------------------------------
+
+    // 31 − service data AD header with 16-bit UUID (4)
+    public static final int SCAN_RESPONSE_DATA_MAX = 27;
+
+    public static boolean fitsScanResponse(byte[] ciphertext) {
+        return ciphertext != null && ciphertext.length > 0
+                && 1 + ciphertext.length <= SCAN_RESPONSE_DATA_MAX;
+    }
+
+    public static byte[] encodeScanResponse(int slot, byte[] ciphertext) {
+        return ByteBuffer.allocate(1 + ciphertext.length)
+                .put((byte) slot)
+                .put(ciphertext)
+                .array();
+    }
+
+    /** Attach the scan-response ciphertext to its header in {@code headers}. */
+    public static void applyScanResponse(byte[] data, List<MeshMessage> headers) {
+        if (data == null || data.length < 2) return;
+
+        int slot = data[0] & 0xFF;
+        if (slot >= headers.size()) return;
+
+        MeshMessage h = headers.get(slot);
+        if (h.encryptedPayload == null)
+            h.encryptedPayload = Arrays.copyOfRange(data, 1, data.length);
+    }
+
+    /** Headers that fit in {@code budget} bytes of packed service data. */
+    public static int packedCapacity(int budget) {
+        return Math.max(0, (budget - 1) / PACKED_ENTRY_LEN);
+    }
+
+    /** Pack {@code msgs[from, from + count)}. */
+    public static byte[] encodePacked(List<MeshMessage> msgs, int from, int count) {
+        ByteBuffer bb = ByteBuffer.allocate(1 + count * PACKED_ENTRY_LEN)
+                .put(versionByte(msgs.get(from).priority));
+        for (int i = from; i < from + count; i++) {
+            MeshMessage m = msgs.get(i);
+            bb.putLong(m.id).put((byte) m.hopCount);
+        }
+        return bb.array();
+    }
+
+    /** @return one header per packed entry (id + hopCount set); empty if malformed. */
+    public static List<MeshMessage> decodePacked(byte[] data) {
+        if (data == null || data.length < 1 + PACKED_ENTRY_LEN
+                || (data.length - 1) % PACKED_ENTRY_LEN != 0)
+            return Collections.emptyList();
+
+        int n = (data.length - 1) / PACKED_ENTRY_LEN;
+        int priority = priorityOf(data[0]);
+        List<MeshMessage> out = new ArrayList<>(n);
+
+        ByteBuffer bb = ByteBuffer.wrap(data, 1, data.length - 1);
+        for (int i = 0; i < n; i++) {
+            MeshMessage msg = new MeshMessage();
+            msg.id = bb.getLong();
+            msg.hopCount = bb.get() & 0xFF;
+            msg.priority = priority;
+            out.add(msg);
+        }
+        return out;
+    }
+
+    /** @return header with id + hopCount set, or null if {@code data} is too short. */
+    public static MeshMessage decode(byte[] data) {
+        if (data == null || data.length < HEADER_LEN) return null;
+
+        ByteBuffer bb = ByteBuffer.wrap(data);
+        byte version = bb.get();      // version | class
+        long id = bb.getLong();       // message ID
+        int hop = bb.get() & 0xFF;
+
+        MeshMessage msg = new MeshMessage();
+        msg.id = id;
+        msg.hopCount = hop;
+        msg.priority = priorityOf(version);
+        return msg;
+    }
+}
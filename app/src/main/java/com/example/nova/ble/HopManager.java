@@ -2,67 +2,111 @@ package com.example.nova.ble;
 
 import static com.example.nova.model.Utils.bytesToHex;
 
-import android.Manifest;
 import android.bluetooth.BluetoothDevice;
 import android.content.Context;
-import android.content.pm.PackageManager;
-import android.os.Build;
-import android.os.Handler;
-import android.os.Looper;
 import android.util.Log;
 
-import androidx.core.content.ContextCompat;
-
 import com.example.nova.model.MeshMessage;
 import com.example.nova.model.MessageCache;
+import com.example.nova.model.PayloadCodec;
 import com.example.nova.util.NotificationHelper;
 
-import java.nio.ByteBuffer;
+import java.io.File;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Patched HopManager (FINAL)
- * - With messageFetchLock (prevents duplicate GATT fetch)
+ * - PayloadStore: one entry per message (ciphertext, fetch state, retries,
+ *   expiry) → prevents duplicate GATT fetch, timer-wheel cleanup
  * - Stable with new PayloadGattClient device lock
  * - OEM safe
- * - Bounded retry/backoff for fetchPayloadFromDevice
+ * - Bounded retry/backoff for fetchPayloadFromDevice; each attempt goes to
+ *   the best known holder of the id, a failed holder is swapped for an
+ *   untried one right away
+ * - Inline ciphertext (BLE 5 extended adverts) is processed on arrival,
+ *   no GATT fetch
+ * - Delivery class (MeshMessage.priority) from the header: fetch order,
+ *   relay timer window and payload lifetime follow it; per-class delivery
+ *   latency is recorded (header heard → listener)
+ * - Chat / SOS ciphertext is also appended to a PayloadLog (memory-mapped,
+ *   app files dir) and restored at startup, so a service restart keeps the
+ *   store-and-forward backlog; ids whose relay was not decided yet
+ *   (sent or suppressed) get their relay timer again
+ * - Anti-entropy digest sync: with a neighbour not synced lately, send a
+ *   Bloom filter of held ids, get offers for what we lack, pull those in
+ *   one batch on the same link. A healed partition reconciles its
+ *   backlogs instead of waiting for a header to be heard by luck.
+ * - Radio access via MeshTransport, timers via MeshScheduler
+ *   (the same logic runs on device and in the in-JVM mesh simulator)
  */
 public class HopManager implements BluetoothScanner.BluetoothScannerListener {
 
     private static final String TAG = "HopManager";
     private static final int MAX_HOPS = 5;
     private static final long PAYLOAD_TTL_MS = 10 * 60 * 1000L;
-    private static final long CLEAN_INTERVAL_MS = 60 * 1000L;
-
-    private final ConcurrentMap<Long, byte[]> payloadMap = new ConcurrentHashMap<>();
-    private final ConcurrentMap<Long, Long> payloadTimestamps = new ConcurrentHashMap<>();
-
-    // 🔵 NEW: Prevent duplicate fetch for same message id
-    private final ConcurrentHashMap<Long, Boolean> messageFetchLock = new ConcurrentHashMap<>();
-
-    // 🔵 NEW: retry counter for fetch attempts
-    private final ConcurrentHashMap<Long, Integer> fetchRetryCount = new ConcurrentHashMap<>();
-
-    private final Handler handler = new Handler(Looper.getMainLooper());
-    private final Random random = new Random();
+    // per class (presence, chat, SOS): stale presence goes early, SOS stays to help late joiners
+    private static final long[] PAYLOAD_TTL_BY_CLASS_MS = { 2 * 60 * 1000L, PAYLOAD_TTL_MS, 30 * 60 * 1000L };
+    // timer-wheel tick: expiry fires at most this late
+    private static final long CLEAN_INTERVAL_MS = 5 * 1000L;
+
+    // Relay timer: RELAY_MIN_DELAY_MS + uniform [0, relayWindowMs), the
+    // window scaled by delivery class.
+    // Counter-based suppression (Trickle / counter-based flooding): when the
+    // timer fires, a relay that has already heard relaySuppressK transmissions
+    // of the header (its own first reception included) stays quiet.
+    // k = 0 disables suppression: every node relays once.
+    private static final long RELAY_MIN_DELAY_MS = 120;
+    // RSSI-aware timing: the window position follows how weakly the header
+    // was heard. Weak (edge of range) fires first and covers new ground;
+    // strong (next to the sender) waits and is usually suppressed.
+    // RELAY_JITTER_SHARE of the window stays random to split similar RSSIs.
+    private static final int RSSI_WEAK_DBM = -95;
+    private static final int RSSI_STRONG_DBM = -45;
+    private static final double RELAY_JITTER_SHARE = 0.25;
+    public static final int DEFAULT_RELAY_SUPPRESS_K = 5;
+    public static final long DEFAULT_RELAY_WINDOW_MS = 180;
+    // relay window per class (presence, chat, SOS): SOS relays go out sooner
+    private static final double[] RELAY_WINDOW_SCALE = { 2.0, 1.0, 0.5 };
+
+    private final PayloadStore store;
+    // null: nothing survives a restart (simulator default, or the log failed to open)
+    private final PayloadLog log;
+
+    private final MeshScheduler scheduler;
+    private final Random random;
 
     private final MessageCache cache;
-    private final BluetoothAdvertiser advertiser;
-    private final BluetoothScanner scanner;
-    private final PayloadGattClient gattClient;
-    private final Context ctx;
+    private final MeshTransport transport;
 
-    // GATT server instance
-    private GattServer gattServer;
+    // null when running outside Android (simulator)
+    private final Context ctx;
 
     private HopListener listener;
     private volatile boolean running = false;
 
+    private volatile int relaySuppressK = DEFAULT_RELAY_SUPPRESS_K;
+    private volatile long relayWindowMs = DEFAULT_RELAY_WINDOW_MS;
+    private volatile boolean rssiRelayTiming = true;
+    private final AtomicLong relaysSent = new AtomicLong();
+    private final AtomicLong relaysSuppressed = new AtomicLong();
+
+    // per class: messages delivered to the listener, header-to-delivery latency
+    private final AtomicLongArray deliveredBy = new AtomicLongArray(3);
+    private final AtomicLongArray latencySumBy = new AtomicLongArray(3);
+    private final AtomicLongArray latencyMaxBy = new AtomicLongArray(3);
+
     public static HopManager hopManagerInstance;
 
     public interface HopListener {
@@ -72,10 +116,96 @@ public class HopManager implements BluetoothScanner.BluetoothScannerListener {
     public boolean isRunning() { return running; }
     public void setListener(HopListener l) { this.listener = l; }
 
+    /** @param k transmissions heard that cancel a pending relay (0 = always relay) */
+    public void setRelaySuppression(int k, long windowMs) {
+        this.relaySuppressK = Math.max(0, k);
+        this.relayWindowMs = Math.max(1, windowMs);
+    }
+
+    /** false: uniform relay delay regardless of RSSI. */
+    public void setRssiRelayTiming(boolean on) { this.rssiRelayTiming = on; }
+
+    /** Peers heard lately (RadarView, fetch source choice). */
+    public NeighbourTable getNeighbours() { return transport.neighbours(); }
+
+    /** Concurrent GATT peers and requests per peer for payload fetches. */
+    public void setFetchConcurrency(int maxPeers, int maxPerPeer) {
+        scheduler.postDelayed(() -> fetches.setLimits(maxPeers, maxPerPeer), 0);
+    }
+
+    /** Fetch queue depth / wait metrics (read on the scheduler thread for exact values). */
+    public FetchScheduler getFetchScheduler() { return fetches; }
+
+    /** false: no digest sync (headers heard on air are the only way to learn of ids). */
+    public void setDigestSync(boolean on) { this.digestSync = on; }
+
+    /** Digest syncs answered by a peer, and ids pulled because of them. */
+    public long getSyncs() { return syncs.get(); }
+    public long getSyncPulled() { return syncPulled.get(); }
+
+    /** false: full payloads go out uncompressed (receivers inflate either way). */
+    public void setPayloadDeflate(boolean on) { this.payloadDeflate = on; }
+
+    /** Plaintext bytes saved by payload Deflate on our own messages. */
+    public long getDeflateSaved() { return deflateSaved.get(); }
+
+    public long getRelaysSent() { return relaysSent.get(); }
+    public long getRelaysSuppressed() { return relaysSuppressed.get(); }
+
+    /** Received messages of class {@code priority} handed to the listener. */
+    public long getDelivered(int priority) { return deliveredBy.get(classIndex(priority)); }
+
+    /** Mean time from first hearing a header of class {@code priority} to delivering it. */
+    public double getDeliveryLatencyMeanMs(int priority) {
+        int c = classIndex(priority);
+        long n = deliveredBy.get(c);
+        return n == 0 ? 0 : latencySumBy.get(c) / (double) n;
+    }
+
+    public long getDeliveryLatencyMaxMs(int priority) { return latencyMaxBy.get(classIndex(priority)); }
+
     // Retry policy
     private static final int MAX_FETCH_RETRIES = 5;
     private static final long BASE_RETRY_DELAY_MS = 1500L; // backoff base
     private static final long MIN_RETRY_DELAY_MS = 400L; // legacy/minimum (not used for repeated failures)
+    private static final long FAILOVER_DELAY_MS = 50L;   // next holder: no backoff
+    private static final long HOLDER_COOLDOWN_MS = 10_000L;
+
+    // one fetch across its attempts: holders that failed it, class, deadline
+    private static final class FetchState {
+        final Set<String> tried = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final int priority;
+        final long startedAt;
+        final long deadline;
+
+        FetchState(int priority, long firstAttemptAt) {
+            this.priority = priority;
+            this.startedAt = firstAttemptAt;
+            this.deadline = FetchScheduler.deadlineFor(priority, firstAttemptAt);
+        }
+    }
+
+    private final ConcurrentHashMap<Long, FetchState> fetching = new ConcurrentHashMap<>();
+    private final FetchScheduler fetches;
+
+    // Digest sync: at most one in flight, each neighbour at most once per
+    // SYNC_INTERVAL_MS. Tried right after a fetch from a peer (link is warm)
+    // and on the cleanup tick with the newest neighbour heard lately.
+    private static final long SYNC_INTERVAL_MS = 5 * 60 * 1000L;
+    private static final long SYNC_HEARD_WITHIN_MS = 10_000L;
+    // offers per answer: what one batch request can pull
+    private static final int MAX_OFFERS = ChunkFrame.MAX_BATCH_IDS;
+    private static final int DIGEST_REQUEST_MAX = IdDigest.HEADER_LEN + IdDigest.MAX_BITS_BYTES;
+
+    private volatile boolean digestSync = true;
+    private final ConcurrentHashMap<String, Long> lastSyncAt = new ConcurrentHashMap<>();
+    private boolean syncInFlight;   // scheduler thread
+    private final AtomicLong syncs = new AtomicLong();
+    private final AtomicLong syncPulled = new AtomicLong();
+
+    // Deflate (preset dictionary) of full payloads before encrypt, skipped when no shorter
+    private volatile boolean payloadDeflate = true;
+    private final AtomicLong deflateSaved = new AtomicLong();
 
     // ----------------------------------------------------------
     // CONSTRUCTOR
@@ -86,62 +216,80 @@ public class HopManager implements BluetoothScanner.BluetoothScannerListener {
                       BluetoothScanner scanner,
                       HopListener listener) {
 
-        this.ctx = ctx.getApplicationContext();
+        this(ctx.getApplicationContext(),
+                new AndroidMeshTransport(ctx, advertiser, scanner),
+                new LooperScheduler(MeshThread.looper()),
+                new Random(),
+                cache,
+                listener,
+                openLog(ctx));
+
+        hopManagerInstance = this;
+    }
+
+    /**
+     * Transport-level constructor. {@code ctx} may be null (simulator);
+     * {@code random} drives rebroadcast jitter so simulated runs can be seeded.
+     */
+    public HopManager(Context ctx,
+                      MeshTransport transport,
+                      MeshScheduler scheduler,
+                      Random random,
+                      MessageCache cache,
+                      HopListener listener) {
+        this(ctx, transport, scheduler, random, cache, listener, null);
+    }
+
+    /** As above, restoring from and appending to {@code log} (may be null; closed by stop()). */
+    public HopManager(Context ctx,
+                      MeshTransport transport,
+                      MeshScheduler scheduler,
+                      Random random,
+                      MessageCache cache,
+                      HopListener listener,
+                      PayloadLog log) {
+
+        this.ctx = ctx;
+        this.transport = transport;
+        this.scheduler = scheduler;
+        this.random = random;
         this.cache = cache;
-        this.advertiser = advertiser;
-        this.scanner = scanner;
         this.listener = listener;
+        this.store = new PayloadStore(PAYLOAD_TTL_MS, CLEAN_INTERVAL_MS, scheduler.now());
+        this.fetches = new FetchScheduler(transport, scheduler);
+        this.log = log;
 
-        if (scanner != null)
-            scanner.setListener(this);
+        transport.setHeaderListener(this);
 
-        this.gattClient = new PayloadGattClient(this.ctx);
-        hopManagerInstance = this;
+        restoreFromLog();
 
         startGattServerIfNeeded();
 
-        handler.postDelayed(this::cleanupTask, CLEAN_INTERVAL_MS);
+        scheduler.postDelayed(this::cleanupTask, CLEAN_INTERVAL_MS);
 
         Log.d(TAG, "HopManager INIT ✔");
     }
 
-    private boolean check(String perm) {
-        return ContextCompat.checkSelfPermission(ctx, perm) == PackageManager.PERMISSION_GRANTED;
-    }
-
-    private boolean hasScanPermission() {
-        return Build.VERSION.SDK_INT >= 31 ?
-                check(Manifest.permission.BLUETOOTH_SCAN) :
-                check(Manifest.permission.ACCESS_FINE_LOCATION);
-    }
-
-    private boolean hasConnectPermission() {
-        return Build.VERSION.SDK_INT >= 31 ?
-                check(Manifest.permission.BLUETOOTH_CONNECT) : true;
-    }
-
     // ----------------------------------------------------------
     // PRESENCE BROADCAST
     // ----------------------------------------------------------
     public void broadcastPresence(String username) {
 
-        long now = System.currentTimeMillis();
-        String json = "{ \"presence\": true, \"user\": \"" + username + "\", \"time\": " + now + " }";
+        long now = scheduler.now();
+        byte[] plain = PayloadCodec.encode(PayloadCodec.TYPE_PRESENCE, username, "", System.currentTimeMillis());
 
-        MeshMessage m = MeshMessage.createNew(username, 0, json, "");
-        byte[] aad = ByteBuffer.allocate(8).putLong(m.id).array();
+        MeshMessage m = MeshMessage.createNew(username, 0, "", "");
+        m.priority = MeshMessage.PRIORITY_PRESENCE;
 
         try {
-            byte[] encrypted = CryptoUtil.encrypt(json.getBytes("UTF-8"), aad);
+            byte[] encrypted = CryptoUtil.encrypt(plain, m.id);
             m.encryptedPayload = encrypted;
 
-            payloadMap.put(m.id, encrypted);
-            payloadTimestamps.put(m.id, now);
+            store.store(m.id, encrypted, now, ttlFor(m.priority), m.priority);
 
-            if (gattServer != null)
-                gattServer.notifyAllSubscribed(encrypted);
+            transport.notifyAllSubscribed(m.id, encrypted);
 
-            advertiser.advertiseMeshMessage(m, null);
+            transport.advertise(m);
 
         } catch (Exception e) {
             Log.e("Presence", "Encrypt error: " + e.getMessage());
@@ -155,26 +303,22 @@ public class HopManager implements BluetoothScanner.BluetoothScannerListener {
 
         startGattServerIfNeeded();
 
-        if (!scanner.isSupported()) {
-            Log.e(TAG, "Scanner not supported");
-            return;
-        }
-        if (!hasScanPermission()) {
-            Log.e(TAG, "SCAN PERMISSION missing");
-            return;
-        }
+        if (!transport.startScan()) return;
 
-        scanner.startScan();
         running = true;
         Log.d(TAG, "Mesh START ✔");
     }
 
     public void stop() {
-        try { if (scanner != null) scanner.stopScan(); } catch (Exception ignored) {}
+        transport.stopScan();
+        transport.disconnectAll();
 
         stopGattServer();
         running = false;
-        hopManagerInstance = null;
+        if (hopManagerInstance == this) hopManagerInstance = null;
+
+        // the next instance (service restart) reopens it
+        if (log != null) log.close();
 
         Log.d(TAG, "HopManager stopped");
     }
@@ -189,38 +333,42 @@ public class HopManager implements BluetoothScanner.BluetoothScannerListener {
 
         long id = header.id;
 
-        if (cache.contains(String.valueOf(id))) return;
-        cache.put(String.valueOf(id));
+        // single atomic test-and-set: first sighting wins; a repeat only
+        // matters if it brings inline ciphertext we are still missing
+        if (!cache.putIfAbsent(id, scheduler.now())
+                && (header.encryptedPayload == null || store.ciphertext(id) != null))
+            return;
 
         Log.d("MESH_DEBUG", "🟨 HEADER RECEIVED → id=" + id
                 + " hop=" + header.hopCount
-                + " device=" + (header.bluetoothDevice != null ?
-                header.bluetoothDevice.getAddress() : "null"));
+                + " device=" + header.sourceAddress);
 
-        byte[] cipher = payloadMap.get(id);
+        byte[] cipher = store.ciphertext(id);
+
+        // inline ciphertext from an extended advert: no GATT round trip
+        if (cipher == null) cipher = header.encryptedPayload;
 
         if (cipher != null) {
-            processDecrypted(header, cipher);
+            processDecrypted(header, cipher, scheduler.now());
             return;
         }
 
         // FETCH if device exists & we don't already have the ciphertext
-        if (header.bluetoothDevice != null)
-            fetchPayloadFromDevice(header.bluetoothDevice, id);
+        if (header.sourceAddress != null)
+            fetchPayloadFromDevice(header.sourceAddress, id, header);
     }
 
     // ----------------------------------------------------------
     // DECRYPT PROCESS
     // ----------------------------------------------------------
-    private void processDecrypted(MeshMessage header, byte[] ciphertext) {
+    // heardAt: when the header was first heard (delivery latency per class)
+    private void processDecrypted(MeshMessage header, byte[] ciphertext, long heardAt) {
 
         if (ciphertext == null) return;
 
-        payloadMap.put(header.id, ciphertext);
-        payloadTimestamps.put(header.id, System.currentTimeMillis());
+        store.store(header.id, ciphertext, scheduler.now(), ttlFor(header.priority), header.priority);
 
-        if (gattServer != null)
-            gattServer.notifyAllSubscribed(ciphertext);
+        transport.notifyAllSubscribed(header.id, ciphertext);
 
         Log.d("MESH_DEBUG", "🟧 DECRYPT-START → id=" + header.id);
 
@@ -235,13 +383,16 @@ public class HopManager implements BluetoothScanner.BluetoothScannerListener {
 
                 MeshMessage m = parseEspPlaintext(header, asString);
                 if (m == null) return;
+                persist(m, ciphertext, false);
+
+                deliver(m, heardAt);
 
-                if (listener != null)
-                    listener.onNewMessage(m);
+                noteSos(m);
 
-                NotificationHelper.showNotification(
-                        ctx, "ESP Alert", m.payload, null
-                );
+                if (ctx != null)
+                    NotificationHelper.showNotification(
+                            ctx, "ESP Alert", m.payload, null
+                    );
 
                 if (m.hopCount < MAX_HOPS)
                     scheduleRebroadcast(m);
@@ -249,17 +400,27 @@ public class HopManager implements BluetoothScanner.BluetoothScannerListener {
                 return;
             }
 
-            // AES decrypt path
-            byte[] aad = ByteBuffer.allocate(8).putLong(header.id).array();
-            byte[] plain = CryptoUtil.decrypt(ciphertext, aad);
+            if (CryptoUtil.isCompact(ciphertext)) {
+                // compact path (short messages, scan-response sized)
+                byte[] plain = CryptoUtil.decryptCompact(ciphertext, header.id);
+                MeshMessage.parseCompactInto(header, plain);
+                Log.d("MESH_PAYLOAD", "🟩 DECRYPTED (compact) → " + header.payload);
+            } else {
+                // AES decrypt path
+                byte[] plain = CryptoUtil.decrypt(ciphertext, header.id);
+
+                // binary codec, or the JSON envelope of an older peer
+                int type = PayloadCodec.decodeInto(header, plain);
+                if (type == PayloadCodec.TYPE_SOS) header.priority = MeshMessage.PRIORITY_SOS;
+                Log.d("MESH_PAYLOAD", "🟩 DECRYPTED (type " + type + ") → " + header.payload);
+            }
 
-            String json = new String(plain, "UTF-8");
-            Log.d("MESH_PAYLOAD", "🟩 DECRYPTED → " + json);
+            // only what decrypted: a restart would otherwise relay what we rejected
+            persist(header, ciphertext, false);
 
-            MeshMessage.parseJsonInto(header, json);
+            deliver(header, heardAt);
 
-            if (listener != null)
-                listener.onNewMessage(header);
+            noteSos(header);
 
             if (header.hopCount < MAX_HOPS)
                 scheduleRebroadcast(header);
@@ -269,6 +430,35 @@ public class HopManager implements BluetoothScanner.BluetoothScannerListener {
         }
     }
 
+    private void deliver(MeshMessage m, long heardAt) {
+        int c = classIndex(m.priority);
+        long latency = Math.max(0, scheduler.now() - heardAt);
+        deliveredBy.incrementAndGet(c);
+        latencySumBy.addAndGet(c, latency);
+        long max = latencyMaxBy.get(c);
+        while (latency > max && !latencyMaxBy.compareAndSet(c, max, latency))
+            max = latencyMaxBy.get(c);
+
+        if (listener != null)
+            listener.onNewMessage(m);
+    }
+
+    // SOS sent or received: keep the scanner in its high-duty level for a while
+    private void noteSos(MeshMessage m) {
+        if (m != null
+                && (m.priority == MeshMessage.PRIORITY_SOS || "SOS".equalsIgnoreCase(m.payload))
+                && transport instanceof AndroidMeshTransport)
+            ((AndroidMeshTransport) transport).onSosActivity();
+    }
+
+    private static int classIndex(int priority) {
+        return Math.max(MeshMessage.PRIORITY_PRESENCE, Math.min(MeshMessage.PRIORITY_SOS, priority));
+    }
+
+    private static long ttlFor(int priority) {
+        return PAYLOAD_TTL_BY_CLASS_MS[classIndex(priority)];
+    }
+
     private MeshMessage parseEspPlaintext(MeshMessage header, String raw) {
         try {
             java.util.Map<String, String> map = new java.util.HashMap<>();
@@ -284,9 +474,11 @@ public class HopManager implements BluetoothScanner.BluetoothScannerListener {
             MeshMessage m = new MeshMessage();
             m.id = header.id;
             m.hopCount = header.hopCount;
+            m.priority = header.priority;
             m.sender = map.getOrDefault("SRC", "ESP32");
             m.payload = map.getOrDefault("MSG", raw);
             m.bluetoothDevice = header.bluetoothDevice;
+            m.sourceAddress = header.sourceAddress;
             m.timestamp = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US)
                     .format(new Date());
             return m;
@@ -301,23 +493,41 @@ public class HopManager implements BluetoothScanner.BluetoothScannerListener {
     // OUTGOING
     // ----------------------------------------------------------
     public MeshMessage sendOutgoing(String sender, int hop, String text) {
+        return sendOutgoing(sender, hop, text, MeshMessage.PRIORITY_CHAT);
+    }
+
+    /** @param priority MeshMessage.PRIORITY_*; carried in the header to every hop */
+    public MeshMessage sendOutgoing(String sender, int hop, String text, int priority) {
 
-        String ts = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US).format(new Date());
+        long sentAt = System.currentTimeMillis();
+        String ts = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US).format(new Date(sentAt));
         MeshMessage m = MeshMessage.createNew(sender, hop, text, ts);
+        m.priority = priority;
 
-        cache.put(String.valueOf(m.id));
+        cache.put(m.id, scheduler.now());
 
         try {
-            byte[] aad = ByteBuffer.allocate(8).putLong(m.id).array();
-            byte[] jsonBytes = MeshMessage.buildJsonPayload(sender, text, ts);
+            // short messages (SOS, OK, status codes) fit a scan response in compact form
+            byte[] compact = MeshMessage.buildCompactPayload(sender, text, CryptoUtil.COMPACT_MAX_PLAINTEXT);
+
+            if (compact != null) {
+                m.encryptedPayload = CryptoUtil.encryptCompact(compact, m.id);
+            } else {
+                byte[] plain = PayloadCodec.encode(PayloadCodec.typeFor(priority), sender, text, sentAt);
+                if (payloadDeflate) {
+                    byte[] packed = PayloadCodec.deflate(plain);
+                    deflateSaved.addAndGet(plain.length - packed.length);
+                    plain = packed;
+                }
 
-            m.encryptedPayload = CryptoUtil.encrypt(jsonBytes, aad);
+                m.encryptedPayload = CryptoUtil.encrypt(plain, m.id);
+            }
 
-            payloadMap.put(m.id, m.encryptedPayload);
-            payloadTimestamps.put(m.id, System.currentTimeMillis());
+            store.store(m.id, m.encryptedPayload, scheduler.now(), ttlFor(m.priority), m.priority);
+            // our own advert is the first transmission: nothing to relay after a restart
+            persist(m, m.encryptedPayload, true);
 
-            if (gattServer != null)
-                gattServer.notifyAllSubscribed(m.encryptedPayload);
+            transport.notifyAllSubscribed(m.id, m.encryptedPayload);
 
             startGattServerIfNeeded();
 
@@ -326,7 +536,7 @@ public class HopManager implements BluetoothScanner.BluetoothScannerListener {
             return null;
         }
 
-        advertiser.advertiseMeshMessage(m, null);
+        transport.advertise(m);
         Log.i(TAG, "OUTGOING id=" + m.id);
 
         return m;
@@ -336,8 +546,19 @@ public class HopManager implements BluetoothScanner.BluetoothScannerListener {
     // REBROADCAST
     // ----------------------------------------------------------
     private void scheduleRebroadcast(MeshMessage h) {
-        handler.postDelayed(() -> rebroadcast(h),
-                120 + random.nextInt(180));
+        scheduler.postDelayed(() -> rebroadcast(h), relayDelay(h));
+    }
+
+    private long relayDelay(MeshMessage h) {
+        double pos = random.nextDouble();
+
+        if (rssiRelayTiming && h.rssi != MeshMessage.RSSI_UNKNOWN) {
+            double strength = (h.rssi - RSSI_WEAK_DBM) / (double) (RSSI_STRONG_DBM - RSSI_WEAK_DBM);
+            strength = Math.max(0, Math.min(1, strength));
+            pos = (1 - RELAY_JITTER_SHARE) * strength + RELAY_JITTER_SHARE * pos;
+        }
+        double window = relayWindowMs * RELAY_WINDOW_SCALE[classIndex(h.priority)];
+        return RELAY_MIN_DELAY_MS + (long) (pos * window);
     }
 
     private void rebroadcast(MeshMessage old) {
@@ -347,11 +568,29 @@ public class HopManager implements BluetoothScanner.BluetoothScannerListener {
         MeshMessage m = old.copy();
         m.hopCount++;
 
-        byte[] cipher = payloadMap.get(m.id);
+        byte[] cipher = store.ciphertext(m.id);
         if (cipher == null) return;
 
+        // enough neighbours already put it on air: ours would be redundant
+        int k = relaySuppressK;
+        if (k > 0) {
+            int heard = transport.transmissionsHeard(m.id);
+            if (heard >= k) {
+                relaysSuppressed.incrementAndGet();
+                Log.d(TAG, "🤫 RELAY SUPPRESSED id=" + m.id + " heard=" + heard);
+                // decided: a restart must not bring it back
+                if (log != null) log.markRelayed(m.id);
+                return;
+            }
+        }
+
+        // STORED → RELAYED exactly once per id
+        if (!store.markRelayed(m.id)) return;
+        if (log != null) log.markRelayed(m.id);
+
         m.encryptedPayload = cipher;
-        advertiser.advertiseMeshMessage(m, null);
+        transport.advertise(m);
+        relaysSent.incrementAndGet();
 
         Log.d(TAG, "REBROADCAST id=" + m.id + " hop=" + m.hopCount);
     }
@@ -359,42 +598,17 @@ public class HopManager implements BluetoothScanner.BluetoothScannerListener {
     // ----------------------------------------------------------
     // GATT SERVER MANAGEMENT
     // ----------------------------------------------------------
-    private final Object gattLock = new Object();
-
     private void startGattServerIfNeeded() {
-        synchronized (gattLock) {
-            if (gattServer != null) return;
-            if (!hasConnectPermission()) return;
-
-            try {
-                gattServer = new GattServer(ctx);
-                gattServer.start();
-                Log.d(TAG, "GattServer started");
-            } catch (Exception e) {
-                Log.e(TAG, "Failed to start GattServer", e);
-                gattServer = null;
-            }
-        }
+        transport.startServer();
     }
 
     public void stopGattServer() {
-        synchronized (gattLock) {
-            if (gattServer != null) {
-                try {
-                    gattServer.stop();
-                    Log.d(TAG, "GattServer stopped");
-                } catch (Exception e) {
-                    Log.e(TAG, "Error stopping GattServer", e);
-                } finally {
-                    gattServer = null;
-                }
-            }
-        }
+        transport.stopServer();
     }
 
     public byte[] getStoredCiphertext(long id) {
         try {
-            return payloadMap.get(id);
+            return store.ciphertext(id);
         } catch (Exception e) {
             Log.e("HopManager", "getStoredCiphertext error: " + e);
             return null;
@@ -408,110 +622,365 @@ public class HopManager implements BluetoothScanner.BluetoothScannerListener {
 
         if (dev == null) return;
 
-        // 🔵 Prevent duplicate fetch attempts
-        synchronized (messageFetchLock) {
-            if (messageFetchLock.putIfAbsent(id, true) != null) {
+        if (transport instanceof AndroidMeshTransport)
+            ((AndroidMeshTransport) transport).rememberDevice(dev);
+
+        fetchPayloadFromDevice(dev.getAddress(), id);
+    }
+
+    public void fetchPayloadFromDevice(String devAddr, long id) {
+        fetchPayloadFromDevice(devAddr, id, null);
+    }
+
+    // devAddr: the advertiser that triggered the fetch, used when no better
+    // holder is known. heard: that header (for its RSSI); may be null
+    private void fetchPayloadFromDevice(String devAddr, long id, MeshMessage heard) {
+
+        if (devAddr == null) return;
+
+        // 🔵 Prevent duplicate fetch attempts (one lookup, atomic claim)
+        switch (store.beginFetch(id, MAX_FETCH_RETRIES, scheduler.now())) {
+            case IN_PROGRESS:
                 Log.d("MESH_DEBUG", "Fetch already in-progress for id=" + id);
                 return; // already fetching this id
-            }
+            case HAVE_PAYLOAD:
+                fetching.remove(id);
+                return;
+            case EXHAUSTED:
+                Log.w("MESH_DEBUG", "Max retries reached for id=" + id + " — aborting fetch");
+                fetching.remove(id);
+                return;
+            default:
+                break;
         }
 
-        int currentRetry = fetchRetryCount.getOrDefault(id, 0);
-        if (currentRetry >= MAX_FETCH_RETRIES) {
-            Log.w("MESH_DEBUG", "Max retries reached for id=" + id + " — aborting fetch");
-            // ensure lock removed to avoid deadlocks
-            messageFetchLock.remove(id);
-            return;
-        }
+        PayloadStore.Entry entry = store.get(id);
+        int currentRetry = entry != null ? entry.retries() : 0;
 
-        String devAddr = dev != null ? dev.getAddress() : "null";
-        Log.d("MESH_DEBUG", "🟦 GATT-FETCH START → id=" + id
-                + " from " + devAddr + " retry=" + currentRetry);
+        FetchState state = fetchStateFor(id,
+                heard != null ? heard.priority : MeshMessage.PRIORITY_CHAT);
+        Set<String> tried = state.tried;
+        String src = pickHolder(id, devAddr, tried);
 
-        gattClient.fetchPayload(dev, id, new PayloadGattClient.Callback() {
+        Log.d("MESH_DEBUG", "🟦 GATT-FETCH QUEUED → id=" + id
+                + " from " + src + " retry=" + currentRetry
+                + " queued=" + fetches.queueDepth());
+
+        fetches.submit(src, id, state.priority, state.deadline, new PayloadGattClient.Callback() {
 
             @Override
             public void onPayload(byte[] cipher) {
 
                 Log.d("MESH_DEBUG", "🟩 GATT-FETCH SUCCESS → id=" + id);
 
-                try {
-                    // reset retry counter
-                    fetchRetryCount.remove(id);
+                transport.neighbours().onGattResult(src, true, scheduler.now());
+                fetching.remove(id);
 
-                    payloadMap.put(id, cipher);
-                    payloadTimestamps.put(id, System.currentTimeMillis());
-                    cache.put(String.valueOf(id));
+                // link to src is up: reconcile the rest of its backlog on it
+                maybeSyncWith(src);
 
-                    MeshMessage h = new MeshMessage();
-                    h.id = id;
-                    h.hopCount = 0;
-                    h.bluetoothDevice = dev;
+                // inline copy (scan response / extended advert) won the race
+                if (store.ciphertext(id) != null) return;
 
-                    processDecrypted(h, cipher);
+                // FETCHING → STORED, retry counter reset
+                store.store(id, cipher, scheduler.now(), ttlFor(state.priority), state.priority);
+                cache.put(id, scheduler.now());
 
-                } finally {
-                    messageFetchLock.remove(id);
-                }
+                MeshMessage h = new MeshMessage();
+                h.id = id;
+                h.hopCount = 0;
+                h.sourceAddress = src;
+                h.priority = state.priority;
+                // RSSI of the header we heard drives the relay timer
+                if (heard != null) h.rssi = heard.rssi;
+
+                processDecrypted(h, cipher, state.startedAt);
             }
 
             @Override
             public void onError(String reason) {
 
-                int nextRetry = fetchRetryCount.getOrDefault(id, 0) + 1;
-                fetchRetryCount.put(id, nextRetry);
+                // FETCHING → ABSENT, releases the claim for the next attempt
+                int nextRetry = store.fetchFailed(id);
+
+                // local refusals say nothing about the peer
+                if (!isLocalRefusal(reason)) {
+                    transport.neighbours().onGattResult(src, false, scheduler.now());
+                    tried.add(src);
+                }
 
                 Log.w("MESH_DEBUG", "❌ GATT-FETCH FAIL → id=" + id
-                        + " dev=" + devAddr
+                        + " dev=" + src
                         + " reason=" + reason
                         + " retry=" + nextRetry);
 
-                // release lock for this id (so other threads aren't blocked)
-                messageFetchLock.remove(id);
-
                 // If retries exceeded, abort further attempts
                 if (nextRetry >= MAX_FETCH_RETRIES) {
                     Log.w("MESH_DEBUG", "Aborting fetch for id=" + id + " after " + nextRetry + " attempts");
+                    fetching.remove(id);
                     return;
                 }
 
-                // Backoff: increase delay with each retry to avoid flooding BLE stack
-                long delay = BASE_RETRY_DELAY_MS + (nextRetry * 300L);
-
-                // For transient 'DeviceBusy' or 'GATT_FAIL_257' prefer slightly longer backoff
-                if (reason != null && (reason.contains("DeviceBusy") || reason.contains("GATT_FAIL_257"))) {
-                    delay += 800;
+                long delay;
+                String next = pickHolder(id, devAddr, tried);
+                if (!tried.contains(next) && !next.equals(src)) {
+                    // another holder we have not tried: go now
+                    delay = FAILOVER_DELAY_MS;
+                    Log.d("MESH_DEBUG", "🔀 FETCH FAILOVER → id=" + id + " " + src + " → " + next);
+                } else {
+                    // Backoff: increase delay with each retry to avoid flooding BLE stack
+                    delay = BASE_RETRY_DELAY_MS + (nextRetry * 300L);
+
+                    // For transient 'DeviceBusy' or 'GATT_FAIL_257' prefer slightly longer backoff
+                    if (reason != null && (reason.contains("DeviceBusy") || reason.contains("GATT_FAIL_257"))) {
+                        delay += 800;
+                    }
                 }
 
                 // Schedule retry
-                handler.postDelayed(() ->
-                        fetchPayloadFromDevice(dev, id), delay);
+                scheduler.postDelayed(() ->
+                        fetchPayloadFromDevice(devAddr, id, heard), delay);
             }
         });
     }
 
+    private FetchState fetchStateFor(long id, int priority) {
+        FetchState st = fetching.get(id);
+        if (st == null) {
+            st = new FetchState(priority, scheduler.now());
+            FetchState prev = fetching.putIfAbsent(id, st);
+            if (prev != null) st = prev;
+        }
+        return st;
+    }
+
+    /** Errors raised on our side (queue / pool / device lookup, or our own link shutdown). */
+    private static boolean isLocalRefusal(String reason) {
+        return "QueueFull".equals(reason)
+                || "Closed".equals(reason)
+                || "SyncUnsupported".equals(reason)
+                || "PoolFull".equals(reason)
+                || "UnknownDevice".equals(reason)
+                || "PermissionsMissing".equals(reason);
+    }
+
     // ----------------------------------------------------------
-    // CLEANUP
+    // HOLDER CHOICE
     // ----------------------------------------------------------
-    private void cleanupTask() {
 
-        long now = System.currentTimeMillis();
+    /**
+     * Best holder of {@code id}: peers that advertised it lately plus the
+     * advertiser we fetched for. Holders not yet tried for this id come
+     * first; among equals the higher {@link #holderScore} wins.
+     */
+    private String pickHolder(long id, String fallback, Set<String> tried) {
+        long now = scheduler.now();
+        List<NeighbourTable.Neighbour> holders = transport.neighbours().holdersOf(id);
+
+        String best = fallback;
+        boolean bestFresh = !tried.contains(fallback);
+        double bestScore = holderScore(transport.neighbours().get(fallback), now);
+
+        for (NeighbourTable.Neighbour n : holders) {
+            if (n.address.equals(fallback)) continue;
+            boolean fresh = !tried.contains(n.address);
+            if (bestFresh && !fresh) continue;
+            double score = holderScore(n, now);
+            if ((fresh && !bestFresh) || score > bestScore) {
+                best = n.address;
+                bestFresh = fresh;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Recent GATT success (0..1) plus link strength (0..0.5 from RSSI);
+     * a peer that failed within HOLDER_COOLDOWN_MS loses a point per
+     * consecutive failure. Unknown peers rate as a fair link with no history.
+     */
+    private static double holderScore(NeighbourTable.Neighbour n, long now) {
+        if (n == null) return 1.25;
+
+        double link = (n.rssi() - RSSI_WEAK_DBM) / (double) (RSSI_STRONG_DBM - RSSI_WEAK_DBM);
+        double score = n.successRatio() + 0.5 * Math.max(0, Math.min(1, link));
+
+        long failedAt = n.lastFailureAt();
+        if (failedAt >= 0 && now - failedAt < HOLDER_COOLDOWN_MS)
+            score -= n.consecutiveFailures();
+        return score;
+    }
+
+    // ----------------------------------------------------------
+    // DIGEST SYNC
+    // ----------------------------------------------------------
+
+    /** Sync with {@code address} unless one is running or it was synced lately. Scheduler thread. */
+    private void maybeSyncWith(String address) {
+        if (!digestSync || syncInFlight || address == null) return;
+
+        long now = scheduler.now();
+        Long last = lastSyncAt.get(address);
+        if (last != null && now - last < SYNC_INTERVAL_MS) return;
+
+        lastSyncAt.put(address, now);
+        syncInFlight = true;
+
+        List<PayloadStore.Entry> held = store.held();
+        IdDigest digest = IdDigest.forIds(held.size(), random.nextInt());
+        for (PayloadStore.Entry e : held) digest.add(e.id);
+
+        Log.d(TAG, "🔄 DIGEST SYNC → " + address + " held=" + held.size());
+
+        fetches.submitSync(address, digest.toRequest(DIGEST_REQUEST_MAX), new PayloadGattClient.Callback() {
+            @Override
+            public void onPayload(byte[] answer) {
+                syncInFlight = false;
+                List<IdDigest.Offer> offers = IdDigest.decodeOffers(answer);
+                if (offers == null) {
+                    Log.w(TAG, "❌ DIGEST SYNC bad answer from " + address);
+                    return;
+                }
+                syncs.incrementAndGet();
+                pullOffers(address, offers);
+            }
+
+            @Override
+            public void onError(String reason) {
+                syncInFlight = false;
+                Log.w(TAG, "❌ DIGEST SYNC FAIL → " + address + " reason=" + reason);
+            }
+        });
+    }
+
+    // fetches to one peer queue on one link: PayloadGattClient sends them as one batch
+    private void pullOffers(String address, List<IdDigest.Offer> offers) {
+        long now = scheduler.now();
+        int pulled = 0;
 
-        for (Long id : payloadTimestamps.keySet()) {
+        for (IdDigest.Offer o : offers) {
+            if (o.priority == MeshMessage.PRIORITY_PRESENCE) continue;
+            if (store.ciphertext(o.id) != null) continue;
 
-            Long ts = payloadTimestamps.get(id);
+            MeshMessage h = new MeshMessage();
+            h.id = o.id;
+            h.priority = o.priority;
+            h.sourceAddress = address;
+
+            cache.putIfAbsent(o.id, now);
+            fetchPayloadFromDevice(address, o.id, h);
+            pulled++;
+        }
+
+        syncPulled.addAndGet(pulled);
+        Log.d(TAG, "🔄 DIGEST SYNC ← " + address + " offers=" + offers.size() + " pulling=" + pulled);
+    }
+
+    /** Periodic: newest neighbour heard within SYNC_HEARD_WITHIN_MS and not synced lately. */
+    private void syncTick() {
+        if (!digestSync || syncInFlight) return;
+
+        long now = scheduler.now();
+        NeighbourTable.Neighbour best = null;
+        for (NeighbourTable.Neighbour n : transport.neighbours().snapshot()) {
+            if (now - n.lastSeen() > SYNC_HEARD_WITHIN_MS) continue;
+            Long last = lastSyncAt.get(n.address);
+            if (last != null && now - last < SYNC_INTERVAL_MS) continue;
+            if (best == null || n.firstSeen() > best.firstSeen()) best = n;
+        }
+        if (best != null) maybeSyncWith(best.address);
+
+        for (Map.Entry<String, Long> e : lastSyncAt.entrySet())
+            if (now - e.getValue() >= SYNC_INTERVAL_MS) lastSyncAt.remove(e.getKey(), e.getValue());
+    }
+
+    /**
+     * Answer to a digest request: held ids (presence excluded) the filter
+     * lacks, SOS before chat, at most MAX_OFFERS. Any thread (GattServer: binder).
+     */
+    public byte[] answerDigest(IdDigest digest) {
+        long now = scheduler.now();
+        List<PayloadStore.Entry> held = store.held();
+
+        List<IdDigest.Offer> offers = new ArrayList<>();
+        for (int p = MeshMessage.PRIORITY_SOS; p > MeshMessage.PRIORITY_PRESENCE; p--) {
+            for (PayloadStore.Entry e : held) {
+                if (offers.size() >= MAX_OFFERS) break;
+                if (e.priority() != p || e.expiresAt() <= now) continue;
+                if (digest.mightContain(e.id)) continue;
+                offers.add(new IdDigest.Offer(e.id, p));
+            }
+        }
+        return IdDigest.encodeOffers(offers);
+    }
 
-            if (ts != null && now - ts > PAYLOAD_TTL_MS) {
+    // ----------------------------------------------------------
+    // PERSISTENCE
+    // ----------------------------------------------------------
+    private static PayloadLog openLog(Context ctx) {
+        try {
+            return PayloadLog.open(new File(ctx.getFilesDir(), "payload-log"));
+        } catch (PayloadLog.InUseException e) {
+            // another HopManager in this process (MeshService / BLEManager) owns it
+            Log.w(TAG, "⚠️ payload log held by another instance, running without it: " + e.getMessage());
+            return null;
+        } catch (IOException e) {
+            Log.e(TAG, "❌ payload log unavailable, backlog will not survive a restart: " + e.getMessage());
+            return null;
+        }
+    }
 
-                payloadMap.remove(id);
-                payloadTimestamps.remove(id);
-                messageFetchLock.remove(id);
-                fetchRetryCount.remove(id);
+    // presence is stale by the time a restarted service would relay it
+    private void persist(MeshMessage h, byte[] ciphertext, boolean relayed) {
+        if (log == null || h.priority == MeshMessage.PRIORITY_PRESENCE) return;
+        log.append(h.id, h.priority, h.hopCount,
+                scheduler.now() + ttlFor(h.priority), relayed, ciphertext);
+    }
 
-                Log.d(TAG, "CLEAN: removed id=" + id);
+    /** Reload unexpired ciphertext; ids without a relay decision get their relay timer again. */
+    private void restoreFromLog() {
+        if (log == null) return;
+
+        long now = scheduler.now();
+        int relays = 0;
+        List<PayloadLog.Record> records = log.live(now);
+
+        for (PayloadLog.Record r : records) {
+            store.store(r.id, r.ciphertext, now, r.expiresAt - now, r.priority);
+            cache.put(r.id, now);   // heard again: no fetch, no second delivery
+
+            if (r.relayed) {   // sent or suppressed before the restart
+                store.markRelayed(r.id);
+            } else if (r.hop < MAX_HOPS) {
+                MeshMessage h = new MeshMessage();
+                h.id = r.id;
+                h.hopCount = r.hop;
+                h.priority = r.priority;
+                scheduleRebroadcast(h);
+                relays++;
             }
         }
 
-        handler.postDelayed(this::cleanupTask, CLEAN_INTERVAL_MS);
+        Log.d(TAG, "📼 RESTORED " + records.size() + " payloads (" + relays + " to relay) in "
+                + log.openMs() + "ms open");
+    }
+
+    // ----------------------------------------------------------
+    // CLEANUP
+    // ----------------------------------------------------------
+    private void cleanupTask() {
+
+        for (Long id : store.expire(scheduler.now())) {
+            fetching.remove(id);
+            Log.d(TAG, "CLEAN: removed id=" + id);
+        }
+
+        // flush to storage, drop expired records (compaction is rate-limited inside)
+        if (log != null) log.maintain(scheduler.now());
+
+        syncTick();
+
+        scheduler.postDelayed(this::cleanupTask, CLEAN_INTERVAL_MS);
     }
 }
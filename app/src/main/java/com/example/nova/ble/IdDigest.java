@@ -0,0 +1,162 @@
+package com.example.nova.ble;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * IdDigest
+ * ---------
+ * Bloom filter over the message ids a node holds, in the form it travels in
+ * a digest request (anti-entropy sync, see ChunkFrame):
+ *
+ *   [0xF3][k:1][salt:4][bits: 2^n bytes, 8..256]
+ *
+ *  - ~10 bits per id when built, so ≈1% false positives up to ~200 ids;
+ *    more ids just raise the rate
+ *  - index i of an id = (h1 + i·h2) mod bits, bits a power of two, so the
+ *    filter can be folded in half (OR the halves) to fit a smaller MTU
+ *    without rebuilding it
+ *  - the salt is fresh per request: an id hidden by a false positive in
+ *    one sync is very likely visible in the next
+ *
+ * The answer is a list of offers (ids the server holds that the filter
+ * lacks): [count:2][id:8 class:1] × count.
+ */
+public final class IdDigest {
+
+    public static final byte REQUEST_DIGEST = (byte) 0xF3;
+    public static final int HEADER_LEN = 6;
+    public static final int MAX_BITS_BYTES = 256;   // 6 + 256 fits one write at the 512 MTU we request
+    private static final int MIN_BITS_BYTES = 8;
+    private static final int BITS_PER_ID = 10;
+    private static final int MAX_HASHES = 6;
+
+    public static final int OFFER_LEN = 9;
+
+    private final byte[] bits;
+    private final int k;
+    private final int salt;
+
+    private IdDigest(byte[] bits, int k, int salt) {
+        this.bits = bits;
+        this.k = k;
+        this.salt = salt;
+    }
+
+    /** Empty filter sized for {@code expectedIds}. */
+    public static IdDigest forIds(int expectedIds, int salt) {
+        int want = (Math.max(1, expectedIds) * BITS_PER_ID + 7) / 8;
+        int bytes = Math.max(MIN_BITS_BYTES,
+                Math.min(MAX_BITS_BYTES, Integer.highestOneBit(want - 1) << 1));
+        int k = (int) Math.round(bytes * 8.0 / Math.max(1, expectedIds) * Math.log(2));
+        return new IdDigest(new byte[bytes], Math.max(1, Math.min(MAX_HASHES, k)), salt);
+    }
+
+    public void add(long id) {
+        long h = mix(id ^ (salt * 0x9E3779B97F4A7C15L));
+        int h1 = (int) h, h2 = (int) (h >>> 32) | 1;
+        int mask = bits.length * 8 - 1;
+        for (int i = 0; i < k; i++) {
+            int b = (h1 + i * h2) & mask;
+            bits[b >>> 3] |= (byte) (1 << (b & 7));
+        }
+    }
+
+    public boolean mightContain(long id) {
+        long h = mix(id ^ (salt * 0x9E3779B97F4A7C15L));
+        int h1 = (int) h, h2 = (int) (h >>> 32) | 1;
+        int mask = bits.length * 8 - 1;
+        for (int i = 0; i < k; i++) {
+            int b = (h1 + i * h2) & mask;
+            if ((bits[b >>> 3] & (1 << (b & 7))) == 0) return false;
+        }
+        return true;
+    }
+
+    // ---------------------------------------------------------
+    // REQUEST
+    // ---------------------------------------------------------
+
+    /** Wire form no longer than {@code maxLen} (folded as needed, never below 8 bytes of bits). */
+    public byte[] toRequest(int maxLen) {
+        byte[] b = bits;
+        while (b.length > MIN_BITS_BYTES && HEADER_LEN + b.length > maxLen) {
+            byte[] half = new byte[b.length / 2];
+            for (int i = 0; i < half.length; i++) half[i] = (byte) (b[i] | b[i + half.length]);
+            b = half;
+        }
+        return ByteBuffer.allocate(HEADER_LEN + b.length)
+                .put(REQUEST_DIGEST)
+                .put((byte) k)
+                .putInt(salt)
+                .put(b)
+                .array();
+    }
+
+    /** Fold an already encoded request to at most {@code maxLen} bytes. */
+    public static byte[] fit(byte[] request, int maxLen) {
+        if (request.length <= maxLen) return request;
+        IdDigest d = parse(request);
+        return d != null ? d.toRequest(maxLen) : request;
+    }
+
+    public static boolean isRequest(byte[] v) {
+        return v != null && v.length >= HEADER_LEN + MIN_BITS_BYTES && v[0] == REQUEST_DIGEST;
+    }
+
+    /** @return the filter, or null if {@code v} is not a well-formed digest request. */
+    public static IdDigest parse(byte[] v) {
+        if (!isRequest(v)) return null;
+
+        int k = v[1] & 0xFF;
+        int len = v.length - HEADER_LEN;
+        if (k < 1 || k > MAX_HASHES || len > MAX_BITS_BYTES || Integer.bitCount(len) != 1)
+            return null;
+
+        byte[] bits = new byte[len];
+        System.arraycopy(v, HEADER_LEN, bits, 0, len);
+        return new IdDigest(bits, k, ByteBuffer.wrap(v, 2, 4).getInt());
+    }
+
+    // ---------------------------------------------------------
+    // OFFERS (answer)
+    // ---------------------------------------------------------
+    public static final class Offer {
+        public final long id;
+        public final int priority;
+
+        public Offer(long id, int priority) {
+            this.id = id;
+            this.priority = priority;
+        }
+    }
+
+    public static byte[] encodeOffers(List<Offer> offers) {
+        ByteBuffer b = ByteBuffer.allocate(2 + offers.size() * OFFER_LEN)
+                .putShort((short) offers.size());
+        for (Offer o : offers)
+            b.putLong(o.id).put((byte) o.priority);
+        return b.array();
+    }
+
+    /** @return offers, or null if {@code v} is malformed. */
+    public static List<Offer> decodeOffers(byte[] v) {
+        if (v == null || v.length < 2) return null;
+        ByteBuffer b = ByteBuffer.wrap(v);
+        int n = b.getShort() & 0xFFFF;
+        if (v.length != 2 + n * OFFER_LEN) return null;
+
+        List<Offer> out = new ArrayList<>(n);
+        for (int i = 0; i < n; i++)
+            out.add(new Offer(b.getLong(), b.get()));
+        return out;
+    }
+
+    // splitmix64 finaliser
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,35 @@
+package com.example.nova.ble;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * MeshScheduler backed by a Handler on a looper (main by default; HopManager uses MeshThread).
+ */
+public class LooperScheduler implements MeshScheduler {
+
+    private final Handler handler;
+
+    public LooperScheduler() {
+        this(Looper.getMainLooper());
+    }
+
+    public LooperScheduler(Looper looper) {
+        this.handler = new Handler(looper);
+    }
+
+    @Override
+    public void postDelayed(Runnable r, long delayMs) {
+        handler.postDelayed(r, delayMs);
+    }
+
+    @Override
+    public void removeCallbacks(Runnable r) {
+        handler.removeCallbacks(r);
+    }
+
+    @Override
+    public long now() {
+        return System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,18 @@
+package com.example.nova.ble;
+
+/**
+ * MeshScheduler
+ * --------------
+ * Timer + clock used by HopManager for jitter, retries and cleanup.
+ * LooperScheduler runs on the Android main looper; the mesh simulator
+ * runs on a virtual clock so runs are reproducible.
+ */
+public interface MeshScheduler {
+
+    void postDelayed(Runnable r, long delayMs);
+
+    void removeCallbacks(Runnable r);
+
+    /** Current time in ms (wall clock on device, virtual in simulation). */
+    long now();
+}
@@ -0,0 +1,26 @@
+package com.example.nova.ble;
+
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+/**
+ * Single background looper for mesh work: scan result parsing, HopManager
+ * timers and GATT client callbacks. Keeps the main thread for UI only.
+ *
+ * Started lazily, lives for the process.
+ */
+public final class MeshThread {
+
+    private static HandlerThread thread;
+
+    private MeshThread() {}
+
+    public static synchronized Looper looper() {
+        if (thread == null) {
+            thread = new HandlerThread("nova-mesh", Process.THREAD_PRIORITY_FOREGROUND);
+            thread.start();
+        }
+        return thread.getLooper();
+    }
+}
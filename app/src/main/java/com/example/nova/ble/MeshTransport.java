@@ -0,0 +1,63 @@
+package com.example.nova.ble;
+
+import com.example.nova.model.MeshMessage;
+
+/**
+ * MeshTransport
+ * --------------
+ * Radio side of HopManager. Everything HopManager needs from BLE goes
+ * through here:
+ *  - header scanning   (BluetoothScanner)
+ *  - header adverts    (BluetoothAdvertiser)
+ *  - payload fetch     (PayloadGattClient)
+ *  - payload serving   (GattServer)
+ *
+ * AndroidMeshTransport wires the real stack. The in-JVM mesh simulator
+ * (app/src/test, package com.example.nova.sim) supplies an in-memory one.
+ *
+ * Peers are identified by their address string (MAC on Android).
+ */
+public interface MeshTransport {
+
+    /** Headers seen on air are delivered here (header.sourceAddress is set). */
+    void setHeaderListener(BluetoothScanner.BluetoothScannerListener listener);
+
+    /**
+     * Distinct transmissions of {@code messageId} heard lately, including
+     * the one delivered to the listener (see RecentIdFilter). 0 if unknown.
+     */
+    int transmissionsHeard(long messageId);
+
+    /** Peers heard lately with link quality; times are MeshScheduler.now(). */
+    NeighbourTable neighbours();
+
+    boolean isScanSupported();
+
+    /** @return false when scanning could not be started (radio off, permission missing). */
+    boolean startScan();
+
+    void stopScan();
+
+    /** Put the header of {@code msg} on air. */
+    void advertise(MeshMessage msg);
+
+    /** Fetch the ciphertext for {@code messageId} from the peer at {@code address}. */
+    void fetchPayload(String address, long messageId, PayloadGattClient.Callback cb);
+
+    /**
+     * Send an IdDigest request to the peer at {@code address}; {@code cb}
+     * gets its answer (IdDigest.decodeOffers) as the payload.
+     */
+    void syncDigest(String address, byte[] digestRequest, PayloadGattClient.Callback cb);
+
+    /** Close any client links kept open between fetches. */
+    void disconnectAll();
+
+    /** Start serving stored payloads to peers (idempotent). */
+    void startServer();
+
+    void stopServer();
+
+    /** Push a ciphertext to every peer currently subscribed to notifications. */
+    void notifyAllSubscribed(long messageId, byte[] payload);
+}
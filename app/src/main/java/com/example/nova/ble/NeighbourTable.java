@@ -0,0 +1,179 @@
+package com.example.nova.ble;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * NeighbourTable
+ * ---------------
+ * Peers heard lately, keyed by address, with link-quality history:
+ *  - last seen, smoothed RSSI (EWMA), advert rate (EWMA of inter-arrival)
+ *  - GATT outcomes: totals, last 16 as a bit history, consecutive failures
+ *  - the last few message ids the peer advertised
+ *
+ * Writers: BluetoothScanner (adverts, MeshThread) and the fetch path
+ * (GATT outcomes, MeshThread). Readers may be anywhere (UI): entries live in
+ * a ConcurrentHashMap and their fields are volatile, so a reader sees each
+ * field current, though not necessarily a consistent set.
+ *
+ * Aging: entries unseen for AGE_OUT_MS are dropped by prune(), which the
+ * write path runs at most every PRUNE_EVERY_MS.
+ *
+ * Pure Java (no android.*): the simulator feeds one per virtual node.
+ */
+public class NeighbourTable {
+
+    public static final long AGE_OUT_MS = 60_000;
+    private static final long PRUNE_EVERY_MS = 5_000;
+    private static final double RSSI_ALPHA = 0.25;
+    private static final double RATE_ALPHA = 0.2;
+    private static final int RECENT_IDS = 8;
+    private static final int HISTORY_BITS = 16;
+
+    public static final class Neighbour {
+        public final String address;
+
+        volatile long firstSeen;
+        volatile long lastSeen;
+        volatile double rssi;               // smoothed dBm
+        volatile double advertIntervalMs;   // smoothed; 0 until two adverts
+        volatile long adverts;
+
+        volatile int gattOk;
+        volatile int gattFail;
+        volatile int consecutiveFailures;
+        volatile int history;               // bit i = outcome i fetches ago (1 = ok)
+        volatile int historyLen;
+        volatile long lastFailureAt = -1;
+
+        private final long[] recentIds = new long[RECENT_IDS];
+        private int recentCount;
+        private int recentNext;
+
+        Neighbour(String address, long now) {
+            this.address = address;
+            this.firstSeen = now;
+        }
+
+        public long firstSeen() { return firstSeen; }
+        public long lastSeen() { return lastSeen; }
+        public double rssi() { return rssi; }
+        public long adverts() { return adverts; }
+        public int gattOk() { return gattOk; }
+        public int gattFail() { return gattFail; }
+        public int consecutiveFailures() { return consecutiveFailures; }
+        public long lastFailureAt() { return lastFailureAt; }
+
+        /** Adverts per second (0 until two adverts were heard). */
+        public double advertRate() {
+            double iv = advertIntervalMs;
+            return iv <= 0 ? 0 : 1000.0 / iv;
+        }
+
+        /** Share of recent fetches that worked; 1 when there is no history yet. */
+        public double successRatio() {
+            int n = historyLen;
+            if (n == 0) return 1.0;
+            return Integer.bitCount(history & ((1 << n) - 1)) / (double) n;
+        }
+
+        public synchronized boolean advertised(long id) {
+            for (int i = 0; i < recentCount; i++)
+                if (recentIds[i] == id) return true;
+            return false;
+        }
+
+        synchronized void addId(long id) {
+            for (int i = 0; i < recentCount; i++)
+                if (recentIds[i] == id) return;
+            recentIds[recentNext] = id;
+            recentNext = (recentNext + 1) % RECENT_IDS;
+            if (recentCount < RECENT_IDS) recentCount++;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Neighbour> byAddress = new ConcurrentHashMap<>();
+    private volatile long lastPrune = 0;
+
+    // ---------------------------------------------------------
+    // WRITE PATH
+    // ---------------------------------------------------------
+
+    /** Any advert from {@code address} (duplicates too). */
+    public Neighbour onAdvert(String address, int rssi, long now) {
+        Neighbour n = byAddress.get(address);
+        if (n == null) {
+            n = new Neighbour(address, now);
+            n.rssi = rssi;
+            Neighbour prev = byAddress.putIfAbsent(address, n);
+            if (prev != null) n = prev;
+        } else {
+            n.rssi += RSSI_ALPHA * (rssi - n.rssi);
+            long iv = now - n.lastSeen;
+            n.advertIntervalMs = n.advertIntervalMs <= 0
+                    ? iv
+                    : n.advertIntervalMs + RATE_ALPHA * (iv - n.advertIntervalMs);
+        }
+        n.lastSeen = now;
+        n.adverts++;
+
+        if (now - lastPrune >= PRUNE_EVERY_MS) prune(now);
+        return n;
+    }
+
+    /** {@code address} advertised header {@code id}. */
+    public void onAdvertisedId(String address, long id) {
+        Neighbour n = byAddress.get(address);
+        if (n != null) n.addId(id);
+    }
+
+    /** Outcome of one GATT fetch from {@code address}. */
+    public void onGattResult(String address, boolean ok, long now) {
+        Neighbour n = byAddress.get(address);
+        if (n == null) return;
+
+        n.history = (n.history << 1) | (ok ? 1 : 0);
+        if (n.historyLen < HISTORY_BITS) n.historyLen++;
+
+        if (ok) {
+            n.gattOk++;
+            n.consecutiveFailures = 0;
+        } else {
+            n.gattFail++;
+            n.consecutiveFailures++;
+            n.lastFailureAt = now;
+        }
+    }
+
+    public void prune(long now) {
+        lastPrune = now;
+        for (Neighbour n : byAddress.values())
+            if (now - n.lastSeen > AGE_OUT_MS) byAddress.remove(n.address, n);
+    }
+
+    // ---------------------------------------------------------
+    // READ PATH (any thread)
+    // ---------------------------------------------------------
+
+    public Neighbour get(String address) {
+        return byAddress.get(address);
+    }
+
+    public int size() {
+        return byAddress.size();
+    }
+
+    /** Live entries (not yet pruned), in no particular order. */
+    public List<Neighbour> snapshot() {
+        return new ArrayList<>(byAddress.values());
+    }
+
+    /** Neighbours whose recent adverts included {@code id}. */
+    public List<Neighbour> holdersOf(long id) {
+        List<Neighbour> out = new ArrayList<>();
+        for (Neighbour n : byAddress.values())
+            if (n.advertised(id)) out.add(n);
+        return out;
+    }
+}
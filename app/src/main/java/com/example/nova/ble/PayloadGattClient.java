@@ -11,28 +11,45 @@ import android.content.Context;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Handler;
-import android.os.Looper;
 import android.util.Log;
 
 import androidx.core.content.ContextCompat;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * FINAL PayloadGattClient (Stable)
+ * FINAL PayloadGattClient (Stable, pooled)
  * ----------------------------------
  *  - Matches updated HopManager & GattServer
- *  - Fully supports chunked NOTIFY
+ *  - Fully supports chunked NOTIFY: framed request → ChunkAssembler
+ *    reassembles every frame before succeeding; falls back to the legacy
+ *    8-byte request (single raw notify) when the server rejects framing
+ *  - Connection pool: one link per peer, kept open for idleMs after its
+ *    last fetch. Discovered characteristics, enabled CCCD and the
+ *    framed/legacy decision are reused, so a follow-up fetch to the same
+ *    peer is one write + notifications.
+ *  - At most maxLinks open links; the least recently used idle link is
+ *    closed to make room
+ *  - Requests to the same peer queue on its link; everything queued when
+ *    the link frees up goes out as one batch write (ids demultiplexed from
+ *    the framed answer stream). Servers that reject batches get one framed
+ *    request per id.
+ *  - Digest sync (syncDigest): an IdDigest request rides the same queue on
+ *    its own write; the answer (offers) completes it like a payload
  *  - OEM crash-safe (Oppo, Vivo, MIUI)
- *  - Strict device-busy lock (prevents races)
- *  - Bounded retry (2 retries max)
+ *  - Bounded retry (2 retries max) when an established link drops; a peer
+ *    that fails to connect (GATT 133/257, timeout) is reported at once so
+ *    HopManager can fail over to another holder
  *  - Clean timeout handling
  *  - Safe GATT close
- *  - Immediate return on error
+ *
+ * All link state lives on the mesh worker handler (MeshThread); GATT callbacks are
+ * posted there.
  */
 public class PayloadGattClient {
 
@@ -40,12 +57,22 @@ public class PayloadGattClient {
 
     private static final long TIMEOUT_MS = 9000;
     private static final int RETRY_LIMIT = 2;
+    private static final int MAX_QUEUED_PER_LINK = 32;
+
+    public static final int DEFAULT_MAX_LINKS = 4;
+    public static final long DEFAULT_IDLE_MS = 15_000;
+
+    private static final UUID CCCD_UUID =
+            UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
 
     private final Context ctx;
-    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Handler handler = new Handler(MeshThread.looper());
 
-    // Prevent parallel GATT operations to same device
-    private final ConcurrentHashMap<String, Boolean> deviceBusy = new ConcurrentHashMap<>();
+    private final int maxLinks;
+    private final long idleMs;
+
+    // address → link, access-ordered (eldest = least recently used). Handler thread only.
+    private final LinkedHashMap<String, Link> links = new LinkedHashMap<>(8, 0.75f, true);
 
     public interface Callback {
         void onPayload(byte[] ciphertext);
@@ -53,7 +80,13 @@ public class PayloadGattClient {
     }
 
     public PayloadGattClient(Context ctx) {
+        this(ctx, DEFAULT_MAX_LINKS, DEFAULT_IDLE_MS);
+    }
+
+    public PayloadGattClient(Context ctx, int maxLinks, long idleMs) {
         this.ctx = ctx.getApplicationContext();
+        this.maxLinks = Math.max(1, maxLinks);
+        this.idleMs = idleMs;
     }
 
     private boolean hasAllPermissions() {
@@ -68,236 +101,477 @@ public class PayloadGattClient {
     // PUBLIC CALL
     // ----------------------------------------------------------
     public void fetchPayload(BluetoothDevice device, long msgId, Callback cb) {
-        fetchInternal(device, msgId, cb, 0);
+
+        if (device == null) {
+            cb.onError("Device null");
+            return;
+        }
+
+        handler.post(() -> submit(device, new Request(msgId, cb, null)));
     }
 
-    // ----------------------------------------------------------
-    // INTERNAL with RETRY + DEVICE LOCK
-    // ----------------------------------------------------------
-    private void fetchInternal(BluetoothDevice device, long messageId, Callback cb, int retryCount) {
+    /** Send a digest request; {@code cb} gets the encoded offers (IdDigest.decodeOffers). */
+    public void syncDigest(BluetoothDevice device, byte[] digestRequest, Callback cb) {
 
         if (device == null) {
             cb.onError("Device null");
             return;
         }
 
-        final String addr = device.getAddress();
+        handler.post(() -> submit(device, new Request(ChunkFrame.SYNC_ID, cb, digestRequest)));
+    }
 
-        // Device-level LOCK
-        if (deviceBusy.putIfAbsent(addr, true) != null) {
-            cb.onError("DeviceBusy");
-            return;
+    /** Close every pooled link and fail whatever is queued on them. */
+    public void closeAll() {
+        handler.post(() -> {
+            for (Link l : new ArrayList<>(links.values()))
+                l.shutdown("Closed", false);
+            links.clear();
+        });
+    }
+
+    // ----------------------------------------------------------
+    // REQUEST
+    // ----------------------------------------------------------
+    private static final class Request {
+        final long messageId;
+        final Callback cb;
+        final ChunkAssembler assembler;
+        final byte[] digest;   // digest request instead of an id request; null for fetches
+        int attempt;
+
+        Request(long messageId, Callback cb, byte[] digest) {
+            this.messageId = messageId;
+            this.cb = cb;
+            this.assembler = new ChunkAssembler(messageId);
+            this.digest = digest;
         }
+    }
+
+    // ----------------------------------------------------------
+    // POOL
+    // ----------------------------------------------------------
+    private void submit(BluetoothDevice device, Request req) {
 
         if (!hasAllPermissions()) {
-            deviceBusy.remove(addr);
-            cb.onError("PermissionsMissing");
+            req.cb.onError("PermissionsMissing");
             return;
         }
 
-        final AtomicBoolean done = new AtomicBoolean(false);
-        final BluetoothGatt[] gRef = new BluetoothGatt[1];
+        String addr = device.getAddress();
+        Link link = links.get(addr);   // also marks it most recently used
 
-        // TIMEOUT HANDLER
-        Runnable timeoutRunnable = () -> {
-            if (done.compareAndSet(false, true)) {
-                deviceBusy.remove(addr);
-                cb.onError("Timeout");
-                safeClose(gRef[0]);
+        if (link == null) {
+            if (!makeRoom()) {
+                Log.w(TAG, "Pool full (" + links.size() + " busy links) → " + addr);
+                req.cb.onError("PoolFull");
+                return;
+            }
+            link = new Link(device);
+            links.put(addr, link);
+            link.connect();
+        }
+
+        link.enqueue(req);
+    }
+
+    /** Ensure a slot for one more link, closing the LRU idle one if needed. */
+    private boolean makeRoom() {
+        if (links.size() < maxLinks) return true;
+
+        Iterator<Link> it = links.values().iterator();
+        while (it.hasNext()) {
+            Link l = it.next();
+            if (l.isIdle()) {
+                Log.d(TAG, "Evict LRU link → " + l.addr);
+                it.remove();
+                l.shutdown("Evicted", false);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // ----------------------------------------------------------
+    // LINK
+    // ----------------------------------------------------------
+    private final class Link {
+
+        final BluetoothDevice device;
+        final String addr;
+
+        BluetoothGatt gatt;
+        BluetoothGattCharacteristic reqChar;
+        BluetoothGattCharacteristic respChar;
+
+        boolean ready = false;
+        boolean closed = false;
+        boolean legacy = false;     // server rejected framed requests
+        boolean batching = true;    // cleared when the server rejects batch requests
+        boolean sentBatch = false;  // last write was a batch request
+        int mtu = 23;
+
+        final ArrayDeque<Request> pending = new ArrayDeque<>();
+        final ArrayList<Request> inflight = new ArrayList<>();
+
+        final Runnable idleClose = () -> {
+            if (isIdle()) {
+                Log.d(TAG, "Idle close → " + Link.this.addr);
+                links.remove(Link.this.addr);
+                shutdown("Idle", false);
             }
         };
-        handler.postDelayed(timeoutRunnable, TIMEOUT_MS);
 
-        try {
-            Log.d(TAG, "Connecting GATT → " + addr + " retry=" + retryCount);
-
-            gRef[0] = device.connectGatt(ctx, false, new BluetoothGattCallback() {
-
-                BluetoothGattCharacteristic reqChar;
-                BluetoothGattCharacteristic respChar;
-
-                // ----------------------------------------------------------
-                // CONNECTION STATE
-                // ----------------------------------------------------------
-                @Override
-                public void onConnectionStateChange(BluetoothGatt g, int status, int newState) {
-
-                    if (done.get()) return;
-
-                    if (status != BluetoothGatt.GATT_SUCCESS) {
-                        Log.w(TAG, "❌ GATT ERROR=" + status);
-
-                        safeClose(g);
-                        deviceBusy.remove(addr);
-
-                        if (retryCount < RETRY_LIMIT) {
-                            handler.postDelayed(
-                                    () -> fetchInternal(device, messageId, cb, retryCount + 1),
-                                    300
-                            );
-                        } else {
-                            cb.onError("GATT_FAIL_" + status);
-                        }
-                        return;
-                    }
-
-                    if (newState == BluetoothGatt.STATE_CONNECTED) {
-                        Log.d(TAG, "Connected → requesting MTU");
-                        g.requestMtu(512);
-                    } else if (newState == BluetoothGatt.STATE_DISCONNECTED) {
-                        deviceBusy.remove(addr);
-
-                        if (done.compareAndSet(false, true)) {
-                            cb.onError("Disconnected");
-                        }
-                        safeClose(g);
-                    }
-                }
+        final Runnable timeout = () -> {
+            Log.w(TAG, "Timeout on link " + Link.this.addr);
+            drop("Timeout");
+        };
 
-                // ----------------------------------------------------------
-                // MTU
-                // ----------------------------------------------------------
-                @Override
-                public void onMtuChanged(BluetoothGatt g, int mtu, int status) {
-                    handler.postDelayed(g::discoverServices, 200);
-                }
+        Link(BluetoothDevice device) {
+            this.device = device;
+            this.addr = device.getAddress();
+        }
 
-                // ----------------------------------------------------------
-                // SERVICES
-                // ----------------------------------------------------------
-                @Override
-                public void onServicesDiscovered(BluetoothGatt g, int status) {
+        boolean isIdle() {
+            return inflight.isEmpty() && pending.isEmpty();
+        }
 
-                    if (done.get()) return;
+        void enqueue(Request req) {
+            if (pending.size() >= MAX_QUEUED_PER_LINK) {
+                req.cb.onError("DeviceBusy");
+                return;
+            }
+            handler.removeCallbacks(idleClose);
+            pending.add(req);
+            pump();
+        }
 
-                    if (status != BluetoothGatt.GATT_SUCCESS) {
-                        fail("Service discovery fail", g);
-                        return;
-                    }
+        // ---------------- connection setup ----------------
+        void connect() {
+            Log.d(TAG, "Connecting GATT → " + addr);
+            handler.postDelayed(timeout, TIMEOUT_MS);
+
+            try {
+                gatt = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+                        ? device.connectGatt(ctx, false, callback, BluetoothDevice.TRANSPORT_LE)
+                        : device.connectGatt(ctx, false, callback);
+            } catch (Exception e) {
+                drop("Exception: " + e.getMessage());
+            }
+        }
 
-                    BluetoothGattService svc = g.getService(GattConstants.SERVICE_MESH_GATT);
-                    if (svc == null) {
-                        fail("Service missing", g);
-                        return;
-                    }
+        void onConnectionState(BluetoothGatt g, int status, int newState) {
+            if (closed) return;
 
-                    reqChar = svc.getCharacteristic(GattConstants.CHAR_REQUEST_MESSAGE);
-                    respChar = svc.getCharacteristic(GattConstants.CHAR_FETCH_CIPHERTEXT);
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.w(TAG, "❌ GATT ERROR=" + status + " → " + addr);
+                drop("GATT_FAIL_" + status);
+                return;
+            }
 
-                    if (reqChar == null || respChar == null) {
-                        fail("Characteristics missing", g);
-                        return;
-                    }
+            if (newState == BluetoothGatt.STATE_CONNECTED) {
+                Log.d(TAG, "Connected → requesting MTU");
+                g.requestMtu(512);
+            } else if (newState == BluetoothGatt.STATE_DISCONNECTED) {
+                drop("Disconnected");
+            }
+        }
 
-                    // Enable notification
-                    g.setCharacteristicNotification(respChar, true);
+        void onMtu(BluetoothGatt g, int newMtu, int status) {
+            if (closed) return;
+            if (status == BluetoothGatt.GATT_SUCCESS) mtu = newMtu;
+            handler.postDelayed(() -> {
+                if (!closed) g.discoverServices();
+            }, 200);
+        }
 
-                    BluetoothGattDescriptor cccd =
-                            respChar.getDescriptor(UUID.fromString("00002902-0000-1000-8000-00805f9b34fb"));
+        void onServices(BluetoothGatt g, int status) {
+            if (closed) return;
 
-                    if (cccd == null) {
-                        fail("CCCD missing", g);
-                        return;
-                    }
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                drop("Service discovery fail");
+                return;
+            }
 
-                    cccd.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                    boolean ok = g.writeDescriptor(cccd);
+            BluetoothGattService svc = g.getService(GattConstants.SERVICE_MESH_GATT);
+            if (svc == null) {
+                drop("Service missing");
+                return;
+            }
 
-                    if (!ok) fail("CCCD write failed", g);
-                }
+            reqChar = svc.getCharacteristic(GattConstants.CHAR_REQUEST_MESSAGE);
+            respChar = svc.getCharacteristic(GattConstants.CHAR_FETCH_CIPHERTEXT);
 
-                // ----------------------------------------------------------
-                // CCCD WRITTEN → WRITE messageId
-                // ----------------------------------------------------------
-                @Override
-                public void onDescriptorWrite(BluetoothGatt g, BluetoothGattDescriptor d, int status) {
+            if (reqChar == null || respChar == null) {
+                drop("Characteristics missing");
+                return;
+            }
 
-                    if (done.get()) return;
+            // Enable notification
+            g.setCharacteristicNotification(respChar, true);
 
-                    if (status != BluetoothGatt.GATT_SUCCESS) {
-                        fail("Descriptor write error=" + status, g);
-                        return;
-                    }
+            BluetoothGattDescriptor cccd = respChar.getDescriptor(CCCD_UUID);
+            if (cccd == null) {
+                drop("CCCD missing");
+                return;
+            }
 
-                    // Build 8-byte msgId
-                    byte[] idBytes = ByteBuffer.allocate(8)
-                            .order(ByteOrder.BIG_ENDIAN)
-                            .putLong(messageId)
-                            .array();
+            cccd.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+            if (!g.writeDescriptor(cccd)) drop("CCCD write failed");
+        }
 
-                    reqChar.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
-                    reqChar.setValue(idBytes);
+        void onDescriptor(int status) {
+            if (closed) return;
 
-                    boolean ok = g.writeCharacteristic(reqChar);
-                    if (!ok) fail("writeCharacteristic failed", g);
-                }
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                drop("Descriptor write error=" + status);
+                return;
+            }
 
-                @Override
-                public void onCharacteristicWrite(BluetoothGatt g, BluetoothGattCharacteristic c, int status) {
-                    Log.d(TAG, "MessageID written status=" + status);
-                }
+            // link is set up: characteristics + CCCD stay valid for its lifetime
+            ready = true;
+            handler.removeCallbacks(timeout);
+            Log.d(TAG, "Link READY → " + addr);
+            pump();
+        }
 
-                // ----------------------------------------------------------
-                // NOTIFICATION
-                // ----------------------------------------------------------
-                @Override
-                public void onCharacteristicChanged(BluetoothGatt g, BluetoothGattCharacteristic c) {
-                    if (done.get()) return;
+        // ---------------- requests ----------------
+        void pump() {
+            if (!ready || closed || !inflight.isEmpty()) return;
 
-                    if (!c.getUuid().equals(GattConstants.CHAR_FETCH_CIPHERTEXT))
-                        return;
+            if (pending.isEmpty()) {
+                handler.postDelayed(idleClose, idleMs);
+                return;
+            }
 
-                    byte[] chunk = c.getValue();
+            handler.postDelayed(timeout, TIMEOUT_MS);
 
-                    if (chunk == null || chunk.length == 0) {
-                        fail("Empty chunk", g);
-                        return;
-                    }
+            if (pending.peek().digest != null) {
+                Request r = pending.poll();
+                inflight.add(r);
+                sentBatch = false;
+                Log.d(TAG, "Digest sync → " + addr);
+                writeRequest(IdDigest.fit(r.digest, mtu - 3));
+                return;
+            }
 
-                    // SUCCESS → return chunk
-                    succeed(chunk, g);
-                }
+            int n = legacy || !batching
+                    ? 1
+                    : Math.min(pending.size(), ChunkFrame.maxBatchIds(mtu));
+
+            // a digest request goes out on its own write
+            long[] ids = new long[n];
+            int count = 0;
+            while (count < n && pending.peek() != null && pending.peek().digest == null) {
+                Request r = pending.poll();
+                inflight.add(r);
+                ids[count++] = r.messageId;
+            }
+            n = count;
+
+            sentBatch = n > 1;
+            if (sentBatch) {
+                Log.d(TAG, "Batch fetch " + n + " ids → " + addr);
+                writeRequest(ChunkFrame.batchRequest(ids, n));
+            } else {
+                writeRequest(legacy
+                        ? ChunkFrame.legacyRequest(ids[0])
+                        : ChunkFrame.framedRequest(ids[0]));
+            }
+        }
 
-                // ----------------------------------------------------------
-                // SUCCESS
-                // ----------------------------------------------------------
-                private void succeed(byte[] data, BluetoothGatt g) {
+        void writeRequest(byte[] request) {
+            reqChar.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+            reqChar.setValue(request);
 
-                    if (done.compareAndSet(false, true)) {
+            if (!gatt.writeCharacteristic(reqChar)) drop("writeCharacteristic failed");
+        }
 
-                        handler.removeCallbacks(timeoutRunnable);
-                        deviceBusy.remove(addr);
+        void onWrite(int status) {
+            Log.d(TAG, "MessageID written status=" + status);
+
+            if (closed || inflight.isEmpty()) return;
+            if (status == BluetoothGatt.GATT_SUCCESS) return;
+
+            if (status != BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH) {
+                // not permitted, insufficient auth/encryption, 133...: no answer is coming.
+                // Fail the batch now instead of at TIMEOUT_MS and free the pooled link;
+                // requests still queued behind it get the usual same-peer retry.
+                String error = "Write error=" + status;
+                List<Request> refused = new ArrayList<>(inflight);
+                inflight.clear();
+                drop(error);
+                for (Request r : refused) r.cb.onError(error);
+                return;
+            }
 
-                        handler.post(() -> {
-                            cb.onPayload(data);
-                            safeClose(g);
-                        });
-                    }
-                }
+            if (inflight.get(0).digest != null) {
+                // server predates digest sync
+                complete(inflight.get(0), null, "SyncUnsupported");
+            } else if (sentBatch) {
+                // server predates batching: requeue all but the first, ask for it alone
+                batching = false;
+                sentBatch = false;
+                while (inflight.size() > 1)
+                    pending.addFirst(inflight.remove(inflight.size() - 1));
+                writeRequest(ChunkFrame.framedRequest(inflight.get(0).messageId));
+            } else if (!legacy) {
+                // old server: only understands the bare 8-byte id
+                legacy = true;
+                writeRequest(ChunkFrame.legacyRequest(inflight.get(0).messageId));
+            }
+        }
+
+        void onNotify(BluetoothGattCharacteristic c, byte[] chunk) {
+            if (closed || inflight.isEmpty()) return;
+
+            if (!c.getUuid().equals(GattConstants.CHAR_FETCH_CIPHERTEXT))
+                return;
 
-                // ----------------------------------------------------------
-                // FAIL
-                // ----------------------------------------------------------
-                private void fail(String reason, BluetoothGatt g) {
+            if (legacy) {
+                // legacy requests are never batched
+                Request r = inflight.get(0);
+                if (chunk == null || chunk.length == 0) complete(r, null, "Empty chunk");
+                else complete(r, chunk, null);
+                return;
+            }
+
+            if (!ChunkFrame.isFrame(chunk)) return;
+
+            Request r = inflightFor(ChunkFrame.id(chunk));
+            if (r == null) return;   // push for an id we did not ask for
+
+            switch (r.assembler.accept(chunk)) {
+                case COMPLETE:
+                    complete(r, r.assembler.payload(), null);
+                    break;
+                case CORRUPT:
+                    complete(r, null, "Chunk sequence error");
+                    break;
+                case NOT_HELD:
+                    complete(r, null, "NotHeld");
+                    break;
+                case INCOMPLETE:
+                    // stream is moving: give the rest of the batch a fresh timeout
+                    handler.removeCallbacks(timeout);
+                    handler.postDelayed(timeout, TIMEOUT_MS);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private Request inflightFor(long id) {
+            for (int i = 0; i < inflight.size(); i++)
+                if (inflight.get(i).messageId == id) return inflight.get(i);
+            return null;
+        }
 
-                    if (done.compareAndSet(false, true)) {
+        /** Complete one in-flight request; the link stays up for the next batch. */
+        void complete(Request r, byte[] payload, String error) {
+            inflight.remove(r);
 
-                        handler.removeCallbacks(timeoutRunnable);
-                        deviceBusy.remove(addr);
+            handler.removeCallbacks(timeout);
+            if (!inflight.isEmpty()) handler.postDelayed(timeout, TIMEOUT_MS);
 
-                        cb.onError(reason);
-                        safeClose(g);
-                    }
+            if (payload != null) r.cb.onPayload(payload);
+            else r.cb.onError(error);
+
+            pump();
+        }
+
+        // ---------------- teardown ----------------
+
+        /**
+         * Connection-level failure: close, then retry or fail everything queued.
+         * A link that was up (CCCD written) and then dropped is worth another
+         * go on the same peer, whatever status the drop came with (8, 19, 22
+         * or a clean 0). Failures before that point (133/257, timeout,
+         * connectGatt throwing) mostly repeat, so those go back to the caller.
+         */
+        void drop(String reason) {
+            if (closed) return;
+
+            links.remove(addr);
+
+            boolean retrySame = ready;
+            List<Request> victims = takeAll();
+            shutdown(reason, true);
+
+            for (Request r : victims) {
+                if (retrySame && r.attempt < RETRY_LIMIT) {
+                    r.attempt++;
+                    handler.postDelayed(() -> submit(device, r), 300);
+                } else {
+                    r.cb.onError(reason);
                 }
+            }
+        }
+
+        void shutdown(String reason, boolean requestsTaken) {
+            if (closed) return;
+            closed = true;
+
+            handler.removeCallbacks(timeout);
+            handler.removeCallbacks(idleClose);
 
-            });
+            if (!requestsTaken)
+                for (Request r : takeAll()) r.cb.onError(reason);
 
-        } catch (Exception e) {
-            handler.removeCallbacks(timeoutRunnable);
-            deviceBusy.remove(addr);
-            cb.onError("Exception: " + e.getMessage());
-            safeClose(gRef[0]);
+            safeClose(gatt);
         }
+
+        private List<Request> takeAll() {
+            List<Request> all = new ArrayList<>(inflight.size() + pending.size());
+            all.addAll(inflight);
+            all.addAll(pending);
+            inflight.clear();
+            pending.clear();
+            return all;
+        }
+
+        // ---------------- GATT callbacks → handler ----------------
+        final BluetoothGattCallback callback = new BluetoothGattCallback() {
+
+            @Override
+            public void onConnectionStateChange(BluetoothGatt g, int status, int newState) {
+                handler.post(() -> onConnectionState(g, status, newState));
+            }
+
+            @Override
+            public void onMtuChanged(BluetoothGatt g, int mtu, int status) {
+                handler.post(() -> onMtu(g, mtu, status));
+            }
+
+            @Override
+            public void onServicesDiscovered(BluetoothGatt g, int status) {
+                handler.post(() -> onServices(g, status));
+            }
+
+            @Override
+            public void onDescriptorWrite(BluetoothGatt g, BluetoothGattDescriptor d, int status) {
+                handler.post(() -> onDescriptor(status));
+            }
+
+            @Override
+            public void onCharacteristicWrite(BluetoothGatt g, BluetoothGattCharacteristic c, int status) {
+                handler.post(() -> onWrite(status));
+            }
+
+            @Override
+            public void onCharacteristicChanged(BluetoothGatt g, BluetoothGattCharacteristic c) {
+                // pre-33: copy now, the characteristic value is reused for the next notify
+                byte[] v = c.getValue();
+                byte[] copy = v != null ? v.clone() : null;
+                handler.post(() -> onNotify(c, copy));
+            }
+
+            // API 33+: value is passed in, no race on the shared characteristic
+            @Override
+            public void onCharacteristicChanged(BluetoothGatt g, BluetoothGattCharacteristic c, byte[] value) {
+                handler.post(() -> onNotify(c, value));
+            }
+        };
     }
 
     // ----------------------------------------------------------
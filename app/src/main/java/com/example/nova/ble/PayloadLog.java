@@ -0,0 +1,642 @@
+package com.example.nova.ble;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * PayloadLog
+ * -----------
+ * Crash-safe copy of the ciphertext a node carries, so a MeshService
+ * restart (process killed, onTaskRemoved restart) does not drop its
+ * store-and-forward backlog. PayloadStore stays the working set; this log
+ * only has to survive the process.
+ *
+ *  - append-only segments of segmentBytes, memory-mapped: an append is a
+ *    few puts into the page cache, no syscall. The kernel keeps the pages
+ *    when the process dies; maintain() forces them to storage every few
+ *    seconds, and a segment is forced when it is sealed.
+ *  - record: len | crc32 | id | expiresAt | priority | hop | flags | ciphertext.
+ *    len is written last, so a record is either whole or stops the scan;
+ *    the crc (flags excluded) catches a tail torn by power loss.
+ *  - flags holds "relay decided" (sent or suppressed), flipped in place,
+ *    so a restarted node does not put those ids on air again
+ *  - index: open-addressed id → (segment, offset, expiresAt) in primitive
+ *    arrays, rebuilt at open by walking record headers. Only the newest
+ *    segment (the one that can have a torn tail) is crc-checked, so a
+ *    restart reads headers, not the whole backlog.
+ *  - compaction: a sealed segment with no live record is deleted; one that
+ *    is less than half live has its live records copied to the head, then
+ *    is deleted. Past maxSegments the oldest segment is dropped.
+ *
+ * Expiry times are on the caller's clock (HopManager: MeshScheduler.now(),
+ * wall time on device), so they stay valid across restarts.
+ *
+ * Thread-safe (all methods synchronized). After close() every call is a
+ * no-op, so tasks of a stopped HopManager cannot touch a reopened log.
+ *
+ * One writer per directory: the constructor takes a lock on dir/lock and
+ * throws {@link InUseException} while another PayloadLog (this process or
+ * another) holds it. Two writers would append over each other at their
+ * own write positions and delete segments the other still maps.
+ */
+public class PayloadLog implements Closeable {
+
+    private static final String TAG = "PayloadLog";
+
+    public static final int DEFAULT_SEGMENT_BYTES = 1 << 20;   // 1 MiB
+    public static final int DEFAULT_MAX_SEGMENTS = 8;
+    private static final long COMPACT_INTERVAL_MS = 30_000;
+    private static final String SUFFIX = ".seg";
+    private static final String LOCK_FILE = "lock";
+
+    /** The directory is already open in another PayloadLog. */
+    public static final class InUseException extends IOException {
+        InUseException(File dir) {
+            super(dir + " is open in another PayloadLog");
+        }
+    }
+
+    // record layout
+    private static final int OFF_LEN = 0;
+    private static final int OFF_CRC = 4;
+    private static final int OFF_ID = 8;
+    private static final int OFF_EXPIRES = 16;
+    private static final int OFF_PRIORITY = 24;
+    private static final int OFF_HOP = 25;
+    private static final int OFF_FLAGS = 26;
+    private static final int HEADER_BYTES = 27;
+    private static final int CRC_FIELDS = 18;   // id .. hop
+
+    private static final int FLAG_RELAYED = 1;
+
+    /** One live record, copied out of the mapping. */
+    public static final class Record {
+        public final long id;
+        public final long expiresAt;
+        public final int priority;
+        public final int hop;
+        public final boolean relayed;
+        public final byte[] ciphertext;
+
+        Record(long id, long expiresAt, int priority, int hop, boolean relayed, byte[] ciphertext) {
+            this.id = id;
+            this.expiresAt = expiresAt;
+            this.priority = priority;
+            this.hop = hop;
+            this.relayed = relayed;
+            this.ciphertext = ciphertext;
+        }
+    }
+
+    private static final class Segment {
+        final int seq;
+        final File file;
+        final RandomAccessFile raf;
+        final MappedByteBuffer buf;
+        int writePos;
+
+        Segment(int seq, File file, RandomAccessFile raf, MappedByteBuffer buf) {
+            this.seq = seq;
+            this.file = file;
+            this.raf = raf;
+            this.buf = buf;
+        }
+
+        int capacity() { return buf.capacity(); }
+    }
+
+    private final File dir;
+    private final RandomAccessFile lockFile;
+    private final FileLock lock;
+    private final int segmentBytes;
+    private final int maxSegments;
+
+    private final ArrayList<Segment> segments = new ArrayList<>();   // oldest first; last = head
+    private final Index index = new Index(1024);
+    private final CRC32 crc = new CRC32();
+    private final byte[] fields = new byte[CRC_FIELDS];
+    private byte[] scratch = new byte[512];
+
+    private boolean closed;
+    private boolean dirty;
+    private long lastCompactAt = Long.MIN_VALUE;
+
+    // metrics
+    private final long openMs;
+    private final int recovered;
+    private int tornTails;
+    private long appends;
+    private long rewritten;
+    private long segmentsDropped;
+    private long recordsLost;
+
+    public static PayloadLog open(File dir) throws IOException {
+        return new PayloadLog(dir, DEFAULT_SEGMENT_BYTES, DEFAULT_MAX_SEGMENTS);
+    }
+
+    public PayloadLog(File dir, int segmentBytes, int maxSegments) throws IOException {
+        long t0 = System.nanoTime();
+
+        this.dir = dir;
+        this.segmentBytes = Math.max(4096, segmentBytes);
+        this.maxSegments = Math.max(2, maxSegments);
+
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("cannot create " + dir);
+
+        this.lockFile = new RandomAccessFile(new File(dir, LOCK_FILE), "rw");
+        this.lock = tryLock(lockFile, dir);
+
+        try {
+            int[] seqs = listSegments(dir);
+            for (int i = 0; i < seqs.length; i++) {
+                Segment s = map(seqs[i], false);
+                segments.add(s);
+                scan(s, i == seqs.length - 1);
+            }
+            if (segments.isEmpty()) segments.add(map(0, true));
+        } catch (IOException | RuntimeException e) {
+            for (Segment s : segments) closeQuietly(s);
+            releaseLock();
+            throw e;
+        }
+
+        this.recovered = index.size;
+        this.openMs = (System.nanoTime() - t0) / 1_000_000;
+
+        Log.d(TAG, "📼 opened " + dir.getName() + ": " + recovered + " records in "
+                + segments.size() + " segments, " + openMs + "ms"
+                + (tornTails > 0 ? " (torn tail dropped)" : ""));
+    }
+
+    // ---------------------------------------------------------
+    // WRITE PATH
+    // ---------------------------------------------------------
+
+    /**
+     * Persist the ciphertext of {@code id}. One record per id: a second
+     * append while the first is live is ignored.
+     * @return false if ignored, closed, or the record cannot fit a segment
+     */
+    public synchronized boolean append(long id, int priority, int hop, long expiresAt,
+                                       boolean relayed, byte[] ciphertext) {
+        if (closed || ciphertext == null || ciphertext.length == 0) return false;
+        if (HEADER_BYTES + ciphertext.length > segmentBytes) return false;
+        if (index.find(id) >= 0) return false;
+
+        try {
+            Segment s = headFor(HEADER_BYTES + ciphertext.length);
+            int off = s.writePos;
+            MappedByteBuffer b = s.buf;
+
+            b.putLong(off + OFF_ID, id);
+            b.putLong(off + OFF_EXPIRES, expiresAt);
+            b.put(off + OFF_PRIORITY, (byte) priority);
+            b.put(off + OFF_HOP, (byte) hop);
+            b.put(off + OFF_FLAGS, (byte) (relayed ? FLAG_RELAYED : 0));
+            for (int i = 0; i < ciphertext.length; i++)
+                b.put(off + HEADER_BYTES + i, ciphertext[i]);
+
+            b.putInt(off + OFF_CRC, crcOf(id, expiresAt, priority, hop, ciphertext, 0, ciphertext.length));
+            b.putInt(off + OFF_LEN, ciphertext.length);   // commit
+
+            s.writePos = off + HEADER_BYTES + ciphertext.length;
+            index.put(id, loc(s.seq, off), expiresAt);
+            appends++;
+            dirty = true;
+            return true;
+
+        } catch (IOException e) {
+            Log.e(TAG, "append failed: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /** {@code id} was relayed or its relay suppressed; a restart will not relay it. */
+    public synchronized void markRelayed(long id) {
+        if (closed) return;
+        int slot = index.find(id);
+        if (slot < 0) return;
+
+        long loc = index.locs[slot];
+        Segment s = segment(seqOf(loc));
+        if (s == null) return;
+
+        int at = offsetOf(loc) + OFF_FLAGS;
+        s.buf.put(at, (byte) (s.buf.get(at) | FLAG_RELAYED));
+        dirty = true;
+    }
+
+    // ---------------------------------------------------------
+    // READ PATH
+    // ---------------------------------------------------------
+
+    /** Records not expired at {@code now}, oldest first (restore at startup). */
+    public synchronized List<Record> live(long now) {
+        List<Record> out = new ArrayList<>();
+        if (closed) return out;
+
+        for (Segment s : segments) {
+            int pos = 0;
+            while (pos < s.writePos) {
+                int len = s.buf.getInt(pos + OFF_LEN);
+                long id = s.buf.getLong(pos + OFF_ID);
+                long expiresAt = s.buf.getLong(pos + OFF_EXPIRES);
+
+                int slot = index.find(id);
+                if (expiresAt > now && slot >= 0 && index.locs[slot] == loc(s.seq, pos)) {
+                    byte[] cipher = new byte[len];
+                    for (int i = 0; i < len; i++) cipher[i] = s.buf.get(pos + HEADER_BYTES + i);
+                    out.add(new Record(id, expiresAt,
+                            s.buf.get(pos + OFF_PRIORITY),
+                            s.buf.get(pos + OFF_HOP),
+                            (s.buf.get(pos + OFF_FLAGS) & FLAG_RELAYED) != 0,
+                            cipher));
+                }
+                pos += HEADER_BYTES + len;
+            }
+        }
+        return out;
+    }
+
+    public synchronized int size() { return index.size; }
+
+    // ---------------------------------------------------------
+    // MAINTENANCE
+    // ---------------------------------------------------------
+
+    /** Periodic upkeep (HopManager cleanup tick): force dirty pages, compact every 30 s. */
+    public synchronized void maintain(long now) {
+        if (closed) return;
+        if (lastCompactAt == Long.MIN_VALUE || now - lastCompactAt >= COMPACT_INTERVAL_MS) {
+            lastCompactAt = now;
+            compact(now);
+        }
+        sync();
+    }
+
+    /** Drop expired records; delete or rewrite sparse sealed segments. */
+    public synchronized void compact(long now) {
+        if (closed) return;
+
+        // expired out of the index, live bytes per segment
+        long[] expired = new long[16];
+        int nExpired = 0;
+        int first = segments.get(0).seq;
+        long[] liveBytes = new long[segments.get(segments.size() - 1).seq - first + 1];
+
+        for (int i = 0; i < index.locs.length; i++) {
+            long loc = index.locs[i];
+            if (loc == 0) continue;
+            if (index.expires[i] <= now) {
+                if (nExpired == expired.length) expired = Arrays.copyOf(expired, nExpired * 2);
+                expired[nExpired++] = index.ids[i];
+                continue;
+            }
+            Segment s = segment(seqOf(loc));
+            if (s != null)
+                liveBytes[s.seq - first] += HEADER_BYTES + s.buf.getInt(offsetOf(loc) + OFF_LEN);
+        }
+        for (int i = 0; i < nExpired; i++) index.remove(expired[i]);
+
+        // sealed segments only: the head is still being written
+        Segment head = segments.get(segments.size() - 1);
+        for (Segment s : new ArrayList<>(segments)) {
+            if (s == head) continue;
+            long live = liveBytes[s.seq - first];
+            if (live * 2 >= s.capacity()) continue;
+
+            try {
+                if (live > 0) rewrite(s, now);
+                if (segments.contains(s)) delete(s);   // a roll may have dropped it already
+            } catch (IOException e) {
+                Log.e(TAG, "compaction failed: " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    /** Force dirty pages of the head segment to storage. */
+    public synchronized void sync() {
+        if (closed || !dirty) return;
+        segments.get(segments.size() - 1).buf.force();
+        dirty = false;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) return;
+        sync();
+        closed = true;
+        for (Segment s : segments) closeQuietly(s);
+        segments.clear();
+        releaseLock();
+    }
+
+    // null from tryLock: another process; OverlappingFileLockException: this one
+    private static FileLock tryLock(RandomAccessFile f, File dir) throws IOException {
+        FileLock l;
+        try {
+            l = f.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            l = null;
+        } catch (IOException e) {
+            f.close();
+            throw e;
+        }
+        if (l == null) {
+            f.close();
+            throw new InUseException(dir);
+        }
+        return l;
+    }
+
+    private void releaseLock() {
+        try { lock.release(); } catch (IOException ignored) {}
+        try { lockFile.close(); } catch (IOException ignored) {}
+    }
+
+    // copy the live records of a sealed segment to the head
+    private void rewrite(Segment s, long now) throws IOException {
+        int pos = 0;
+        while (pos < s.writePos) {
+            int len = s.buf.getInt(pos + OFF_LEN);
+            int size = HEADER_BYTES + len;
+            long id = s.buf.getLong(pos + OFF_ID);
+
+            int slot = index.find(id);
+            if (slot >= 0 && index.locs[slot] == loc(s.seq, pos) && index.expires[slot] > now) {
+                Segment head = headFor(size);
+                if (head == s) throw new IOException("segment rewrites into itself");
+                if (!segments.contains(s)) return;   // dropped by that roll (log full)
+                int off = head.writePos;
+
+                if (scratch.length < size) scratch = new byte[Math.max(size, scratch.length * 2)];
+                for (int i = 0; i < size; i++) scratch[i] = s.buf.get(pos + i);
+                for (int i = OFF_CRC; i < size; i++) head.buf.put(off + i, scratch[i]);
+                head.buf.putInt(off + OFF_LEN, len);   // commit
+
+                head.writePos = off + size;
+                index.locs[slot] = loc(head.seq, off);
+                rewritten++;
+                dirty = true;
+            }
+            pos += size;
+        }
+    }
+
+    // ---------------------------------------------------------
+    // SEGMENTS
+    // ---------------------------------------------------------
+
+    /** Head segment with {@code bytes} free, rolling to a new one if needed. */
+    private Segment headFor(int bytes) throws IOException {
+        Segment head = segments.get(segments.size() - 1);
+        if (head.capacity() - head.writePos >= bytes) return head;
+
+        // sealed: make it durable before anything depends on the new head
+        head.buf.force();
+        Segment next = map(head.seq + 1, true);
+        segments.add(next);
+
+        while (segments.size() > maxSegments) {
+            Segment oldest = segments.get(0);
+            int lost = dropIndexed(oldest);
+            recordsLost += lost;
+            segmentsDropped++;
+            Log.w(TAG, "⚠️ log full: dropped segment " + oldest.seq + " (" + lost + " records)");
+            delete(oldest);
+        }
+        return next;
+    }
+
+    private Segment map(int seq, boolean create) throws IOException {
+        File f = new File(dir, String.format("%08d%s", seq, SUFFIX));
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            if (create) raf.setLength(segmentBytes);
+            long size = raf.length();
+            if (size < HEADER_BYTES || size > Integer.MAX_VALUE)
+                throw new IOException("bad segment size " + size + ": " + f);
+            MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            return new Segment(seq, f, raf, buf);
+        } catch (IOException e) {
+            try { raf.close(); } catch (IOException ignored) {}
+            throw e;
+        }
+    }
+
+    /** Walk record headers into the index; {@code verify}: crc-check and cut a torn tail. */
+    private void scan(Segment s, boolean verify) {
+        MappedByteBuffer b = s.buf;
+        int cap = s.capacity();
+        int pos = 0;
+
+        while (cap - pos >= HEADER_BYTES) {
+            int len = b.getInt(pos + OFF_LEN);
+            if (len <= 0 || len > cap - pos - HEADER_BYTES) break;
+            if (verify && !crcMatches(b, pos, len)) break;
+
+            // newest copy wins (rewritten records come later)
+            index.put(b.getLong(pos + OFF_ID), loc(s.seq, pos), b.getLong(pos + OFF_EXPIRES));
+            pos += HEADER_BYTES + len;
+        }
+
+        if (verify && cap - pos >= 4 && b.getInt(pos + OFF_LEN) != 0) {
+            b.putInt(pos + OFF_LEN, 0);
+            tornTails++;
+        }
+        s.writePos = pos;
+    }
+
+    private int dropIndexed(Segment s) {
+        int n = 0;
+        int pos = 0;
+        while (pos < s.writePos) {
+            long id = s.buf.getLong(pos + OFF_ID);
+            int slot = index.find(id);
+            if (slot >= 0 && index.locs[slot] == loc(s.seq, pos)) {
+                index.remove(id);
+                n++;
+            }
+            pos += HEADER_BYTES + s.buf.getInt(pos + OFF_LEN);
+        }
+        return n;
+    }
+
+    private void delete(Segment s) {
+        segments.remove(s);
+        closeQuietly(s);
+        if (!s.file.delete()) Log.w(TAG, "could not delete " + s.file);
+    }
+
+    private Segment segment(int seq) {
+        int i = seq - segments.get(0).seq;   // seqs are consecutive except for deleted ones
+        if (i >= 0 && i < segments.size() && segments.get(i).seq == seq) return segments.get(i);
+        for (Segment s : segments)
+            if (s.seq == seq) return s;
+        return null;
+    }
+
+    private static int[] listSegments(File dir) {
+        String[] names = dir.list();
+        if (names == null) return new int[0];
+
+        int[] seqs = new int[names.length];
+        int n = 0;
+        for (String name : names) {
+            if (!name.endsWith(SUFFIX)) continue;
+            try {
+                seqs[n++] = Integer.parseInt(name.substring(0, name.length() - SUFFIX.length()));
+            } catch (NumberFormatException ignored) {}
+        }
+        seqs = Arrays.copyOf(seqs, n);
+        Arrays.sort(seqs);
+        return seqs;
+    }
+
+    private static void closeQuietly(Segment s) {
+        try { s.raf.close(); } catch (IOException ignored) {}
+    }
+
+    // ---------------------------------------------------------
+    // CRC
+    // ---------------------------------------------------------
+    private int crcOf(long id, long expiresAt, int priority, int hop,
+                      byte[] data, int off, int len) {
+        for (int i = 0; i < 8; i++) {
+            fields[i] = (byte) (id >>> (56 - 8 * i));
+            fields[8 + i] = (byte) (expiresAt >>> (56 - 8 * i));
+        }
+        fields[16] = (byte) priority;
+        fields[17] = (byte) hop;
+
+        crc.reset();
+        crc.update(fields, 0, CRC_FIELDS);
+        crc.update(data, off, len);
+        return (int) crc.getValue();
+    }
+
+    private boolean crcMatches(MappedByteBuffer b, int pos, int len) {
+        if (scratch.length < len) scratch = new byte[Math.max(len, scratch.length * 2)];
+        for (int i = 0; i < len; i++) scratch[i] = b.get(pos + HEADER_BYTES + i);
+
+        int want = crcOf(b.getLong(pos + OFF_ID), b.getLong(pos + OFF_EXPIRES),
+                b.get(pos + OFF_PRIORITY), b.get(pos + OFF_HOP), scratch, 0, len);
+        return want == b.getInt(pos + OFF_CRC);
+    }
+
+    // ---------------------------------------------------------
+    // INDEX
+    // ---------------------------------------------------------
+
+    // location = segment seq << 32 | offset, +1 so that 0 marks an empty slot
+    private static long loc(int seq, int offset) { return (((long) seq << 32) | offset) + 1; }
+    private static int seqOf(long loc) { return (int) ((loc - 1) >>> 32); }
+    private static int offsetOf(long loc) { return (int) (loc - 1); }
+
+    /** id → location, expiry. Open addressing, linear probing, backward-shift delete. */
+    private static final class Index {
+        long[] ids;
+        long[] locs;      // 0 = empty
+        long[] expires;
+        int mask;
+        int size;
+
+        Index(int capacity) {
+            alloc(Integer.highestOneBit(Math.max(16, capacity) - 1) << 1);
+        }
+
+        private void alloc(int cap) {
+            ids = new long[cap];
+            locs = new long[cap];
+            expires = new long[cap];
+            mask = cap - 1;
+        }
+
+        private int slot(long id) {
+            int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        int find(long id) {
+            for (int i = slot(id); locs[i] != 0; i = (i + 1) & mask)
+                if (ids[i] == id) return i;
+            return -1;
+        }
+
+        void put(long id, long loc, long expiresAt) {
+            int i = slot(id);
+            while (locs[i] != 0 && ids[i] != id) i = (i + 1) & mask;
+            if (locs[i] == 0) {
+                if ((size + 1) * 4 > locs.length * 3) {
+                    grow();
+                    put(id, loc, expiresAt);
+                    return;
+                }
+                size++;
+            }
+            ids[i] = id;
+            locs[i] = loc;
+            expires[i] = expiresAt;
+        }
+
+        void remove(long id) {
+            int i = find(id);
+            if (i < 0) return;
+            size--;
+
+            // shift later members of the probe run back into the hole
+            int hole = i;
+            for (int j = (i + 1) & mask; locs[j] != 0; j = (j + 1) & mask) {
+                int home = slot(ids[j]);
+                if (((j - home) & mask) >= ((j - hole) & mask)) {
+                    ids[hole] = ids[j];
+                    locs[hole] = locs[j];
+                    expires[hole] = expires[j];
+                    hole = j;
+                }
+            }
+            locs[hole] = 0;
+        }
+
+        private void grow() {
+            long[] oi = ids, ol = locs, oe = expires;
+            alloc(locs.length * 2);
+            size = 0;
+            for (int i = 0; i < ol.length; i++)
+                if (ol[i] != 0) put(oi[i], ol[i], oe[i]);
+        }
+    }
+
+    // ---------------------------------------------------------
+    // METRICS
+    // ---------------------------------------------------------
+    public long openMs() { return openMs; }
+    public int recovered() { return recovered; }
+    public long appends() { return appends; }
+    public long recordsLost() { return recordsLost; }
+
+    @Override
+    public synchronized String toString() {
+        return "records=" + index.size
+                + " segments=" + segments.size() + "/" + maxSegments
+                + " appends=" + appends
+                + " rewritten=" + rewritten
+                + " dropped=" + segmentsDropped + "(" + recordsLost + " records)"
+                + " open=" + openMs + "ms recovered=" + recovered
+                + (tornTails > 0 ? " tornTails=" + tornTails : "");
+    }
+}
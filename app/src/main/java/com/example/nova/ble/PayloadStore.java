@@ -0,0 +1,267 @@
+package com.example.nova.ble;
+
+import com.example.nova.model.MeshMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * PayloadStore
+ * -------------
+ * One record per message id, replacing HopManager's former
+ * payloadMap / payloadTimestamps / messageFetchLock / fetchRetryCount.
+ *
+ *  - one map lookup per event (header, fetch start/end, GATT read)
+ *  - state transitions happen under the entry's own lock, so there is no
+ *    window where "fetching" and "stored" disagree
+ *  - expiry via a hashed timer wheel: insert is O(1), advance() only looks
+ *    at the buckets whose tick has passed. Refreshing an entry just moves
+ *    its expiresAt; the wheel re-buckets it lazily when its old slot fires.
+ *  - lifetime per entry: the store default unless the caller passes one
+ *    (HopManager keeps SOS longer and presence shorter)
+ *  - class per entry, for the offers of a digest sync
+ *
+ * Thread-safe: HopManager uses it from its MeshScheduler thread (MeshThread
+ * on a device), GattServer from binder threads.
+ */
+public class PayloadStore {
+
+    public enum State {
+        ABSENT,     // known id, no ciphertext, no fetch running (waiting for retry / gave up)
+        FETCHING,   // GATT fetch in flight
+        STORED,     // ciphertext held
+        RELAYED     // ciphertext held and rebroadcast done
+    }
+
+    public enum FetchStart {
+        STARTED,
+        IN_PROGRESS,
+        HAVE_PAYLOAD,
+        EXHAUSTED
+    }
+
+    public static final class Entry {
+        public final long id;
+
+        byte[] ciphertext;
+        State state = State.ABSENT;
+        int retries;
+        long ttlMs;
+        int priority = MeshMessage.PRIORITY_CHAT;
+        volatile long expiresAt;
+        boolean removed;   // expired out of the map; writers must re-obtain
+
+        Entry(long id) {
+            this.id = id;
+        }
+
+        public synchronized byte[] ciphertext() { return ciphertext; }
+        public synchronized State state() { return state; }
+        public synchronized int retries() { return retries; }
+        public synchronized int priority() { return priority; }
+        public long expiresAt() { return expiresAt; }
+    }
+
+    private final ConcurrentHashMap<Long, Entry> entries = new ConcurrentHashMap<>();
+    private final long ttlMs;
+    private final TimerWheel wheel;
+
+    /**
+     * @param ttlMs     lifetime after the last store / fetch activity
+     * @param tickMs    wheel resolution (how late an expiry may fire)
+     * @param now       current time on the caller's clock
+     */
+    public PayloadStore(long ttlMs, long tickMs, long now) {
+        this.ttlMs = ttlMs;
+        // span ≥ ttl so entries normally expire on their first visit
+        int slots = Integer.highestOneBit((int) Math.max(1, ttlMs / tickMs)) << 1;
+        this.wheel = new TimerWheel(tickMs, slots, now);
+    }
+
+    // ---------------------------------------------------------
+    // LOOKUPS
+    // ---------------------------------------------------------
+    public byte[] ciphertext(long id) {
+        Entry e = entries.get(id);
+        return e == null ? null : e.ciphertext();
+    }
+
+    public Entry get(long id) {
+        return entries.get(id);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /** Entries holding ciphertext right now, in no particular order. */
+    public List<Entry> held() {
+        List<Entry> out = new ArrayList<>();
+        for (Entry e : entries.values())
+            if (e.ciphertext() != null) out.add(e);
+        return out;
+    }
+
+    // ---------------------------------------------------------
+    // TRANSITIONS
+    // ---------------------------------------------------------
+
+    /** Record ciphertext for {@code id} (own message, fetched or inline). */
+    public Entry store(long id, byte[] ciphertext, long now) {
+        return store(id, ciphertext, now, ttlMs);
+    }
+
+    /** As {@link #store(long, byte[], long)}, kept for {@code entryTtlMs} after its last activity. */
+    public Entry store(long id, byte[] ciphertext, long now, long entryTtlMs) {
+        while (true) {
+            Entry e = obtain(id, now);
+            synchronized (e) {
+                if (e.removed) continue;
+                e.ciphertext = ciphertext;
+                if (e.state != State.RELAYED) e.state = State.STORED;
+                e.retries = 0;
+                e.ttlMs = entryTtlMs;
+                e.expiresAt = now + entryTtlMs;
+                return e;
+            }
+        }
+    }
+
+    /** As above, also recording the delivery class of {@code id}. */
+    public Entry store(long id, byte[] ciphertext, long now, long entryTtlMs, int priority) {
+        Entry e = store(id, ciphertext, now, entryTtlMs);
+        synchronized (e) {
+            e.priority = priority;
+        }
+        return e;
+    }
+
+    /** Claim the fetch for {@code id}; only STARTED means the caller should connect. */
+    public FetchStart beginFetch(long id, int maxRetries, long now) {
+        while (true) {
+            Entry e = obtain(id, now);
+            synchronized (e) {
+                if (e.removed) continue;
+                if (e.ciphertext != null) return FetchStart.HAVE_PAYLOAD;
+                if (e.state == State.FETCHING) return FetchStart.IN_PROGRESS;
+                if (e.retries >= maxRetries) return FetchStart.EXHAUSTED;
+
+                e.state = State.FETCHING;
+                e.expiresAt = now + e.ttlMs;
+                return FetchStart.STARTED;
+            }
+        }
+    }
+
+    /** @return retry count after this failure. */
+    public int fetchFailed(long id) {
+        Entry e = entries.get(id);
+        if (e == null) return Integer.MAX_VALUE;
+        synchronized (e) {
+            if (e.state == State.FETCHING) e.state = State.ABSENT;
+            return ++e.retries;
+        }
+    }
+
+    /** @return false if the message was already relayed or is not stored. */
+    public boolean markRelayed(long id) {
+        Entry e = entries.get(id);
+        if (e == null) return false;
+        synchronized (e) {
+            if (e.state != State.STORED) return false;
+            e.state = State.RELAYED;
+            return true;
+        }
+    }
+
+    // ---------------------------------------------------------
+    // EXPIRY
+    // ---------------------------------------------------------
+
+    /** Drop every entry whose expiry has passed. @return ids removed. */
+    public List<Long> expire(long now) {
+        List<Entry> due = wheel.advance(now);
+        List<Long> removed = new ArrayList<>(due.size());
+        for (Entry e : due) {
+            synchronized (e) {
+                // refreshed between the wheel pass and here → keep
+                if (e.expiresAt > now) {
+                    wheel.schedule(e);
+                    continue;
+                }
+                e.removed = true;
+            }
+            if (entries.remove(e.id, e)) removed.add(e.id);
+        }
+        return removed;
+    }
+
+    private Entry obtain(long id, long now) {
+        Entry e = entries.get(id);
+        if (e != null) return e;
+
+        Entry fresh = new Entry(id);
+        fresh.ttlMs = ttlMs;
+        fresh.expiresAt = now + ttlMs;
+
+        e = entries.putIfAbsent(id, fresh);
+        if (e != null) return e;
+
+        wheel.schedule(fresh);
+        return fresh;
+    }
+
+    // ---------------------------------------------------------
+    // HASHED TIMER WHEEL
+    // ---------------------------------------------------------
+    private static final class TimerWheel {
+
+        private final long tickMs;
+        private final ArrayList<Entry>[] slots;
+        private final int mask;
+        private ArrayList<Entry> spare = new ArrayList<>();
+        private long cursor;   // last tick processed
+
+        @SuppressWarnings("unchecked")
+        TimerWheel(long tickMs, int slotCount, long now) {
+            this.tickMs = tickMs;
+            this.slots = new ArrayList[slotCount];
+            for (int i = 0; i < slotCount; i++) slots[i] = new ArrayList<>();
+            this.mask = slotCount - 1;
+            this.cursor = now / tickMs;
+        }
+
+        synchronized void schedule(Entry e) {
+            long tick = (e.expiresAt + tickMs - 1) / tickMs;
+            if (tick <= cursor) tick = cursor + 1;
+            slots[(int) (tick & mask)].add(e);
+        }
+
+        synchronized List<Entry> advance(long now) {
+            long target = now / tickMs;
+            if (target <= cursor) return new ArrayList<>(0);
+
+            // after a long stall every bucket is visited once, not once per missed tick
+            long steps = Math.min(target - cursor, slots.length);
+            long start = cursor;
+            cursor = target;   // re-scheduled entries land after target
+
+            List<Entry> due = new ArrayList<>();
+            for (long t = start + 1; t <= start + steps; t++) {
+                int i = (int) (t & mask);
+                ArrayList<Entry> bucket = slots[i];
+                if (bucket.isEmpty()) continue;
+
+                slots[i] = spare;
+                for (Entry e : bucket) {
+                    if (e.expiresAt <= now) due.add(e);
+                    else schedule(e);
+                }
+                bucket.clear();
+                spare = bucket;
+            }
+            return due;
+        }
+    }
+}
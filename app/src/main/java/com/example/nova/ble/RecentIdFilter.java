@@ -0,0 +1,183 @@
+package com.example.nova.ble;
+
+import java.util.Arrays;
+
+/**
+ * RecentIdFilter
+ * ---------------
+ * Time-windowed set of recently heard message ids, in front of
+ * HopManager. Replaces the old single last-id check, which let every
+ * repeat through as soon as two ids were being advertised nearby.
+ *
+ *  - two generations of open-addressed tables (primitive arrays, linear
+ *    probing); the older one is cleared and reused when the current one is
+ *    windowMs old or ¾ full → no allocation after construction
+ *  - an id is a duplicate for windowMs after its first sighting, then
+ *    passes once more (so a header still on air after a failed fetch is
+ *    retried) and starts a new window
+ *  - per id it counts every sighting and "transmissions": sightings from a
+ *    different advertiser, or from the same one after an advertising
+ *    session. The scanner hears each session several times, so
+ *    transmissions are what relay policies should look at. They keep
+ *    adding up across windows for as long as the id is heard at least
+ *    once per window (a relay decision may come after a slow fetch).
+ *
+ * Not thread-safe: used from MeshThread only (simulator: one thread).
+ */
+public class RecentIdFilter {
+
+    // one BluetoothAdvertiser session: repeats inside it are the same transmission
+    private static final long SAME_SOURCE_GAP_MS = 500;
+
+    private final long windowMs;
+    private final int mask;
+    private final int maxLoad;
+
+    // generation tables (cur = being filled, prev = one window older)
+    private Table cur, prev;
+    private long genStart;
+
+    private long suppressed;
+
+    private static final class Table {
+        final long[] ids;
+        final long[] first;      // first sighting in the current dedupe window
+        final long[] last;       // most recent sighting
+        final int[] count;       // sightings; 0 = empty slot
+        final int[] heard;       // transmissions
+        final int[] source;      // last advertiser (address hash)
+        int size;
+
+        Table(int cap) {
+            ids = new long[cap];
+            first = new long[cap];
+            last = new long[cap];
+            count = new int[cap];
+            heard = new int[cap];
+            source = new int[cap];
+        }
+
+        void clear() {
+            Arrays.fill(count, 0);
+            size = 0;
+        }
+    }
+
+    /** @param capacity ids per generation (tables are sized at 2–4× that, power of two) */
+    public RecentIdFilter(int capacity, long windowMs) {
+        int cap = Integer.highestOneBit(Math.max(8, capacity) - 1) << 2;
+        this.windowMs = windowMs;
+        this.mask = cap - 1;
+        this.maxLoad = cap * 3 / 4;
+        this.cur = new Table(cap);
+        this.prev = new Table(cap);
+    }
+
+    // ---------------------------------------------------------
+    // RECORD
+    // ---------------------------------------------------------
+
+    /**
+     * Record one sighting of {@code id} from advertiser {@code source}.
+     * @return sightings in the current window including this one (1 = pass it on).
+     */
+    public int record(long id, int source, long now) {
+        rotateIfDue(now);
+
+        int i = find(cur, id);
+        if (i < 0) {
+            i = insert(id);
+            int p = find(prev, id);
+            if (p < 0 || now - prev.last[p] >= windowMs) {
+                cur.first[i] = now;
+                cur.last[i] = now;
+                cur.count[i] = 1;
+                cur.heard[i] = 1;
+                cur.source[i] = source;
+                return 1;
+            }
+            // still being heard: carry it over
+            cur.first[i] = prev.first[p];
+            cur.last[i] = prev.last[p];
+            cur.count[i] = prev.count[p];
+            cur.heard[i] = prev.heard[p];
+            cur.source[i] = prev.source[p];
+        }
+
+        if (source != cur.source[i] || now - cur.last[i] >= SAME_SOURCE_GAP_MS)
+            cur.heard[i]++;
+        cur.last[i] = now;
+        cur.source[i] = source;
+
+        if (now - cur.first[i] >= windowMs) {
+            // window over: pass once more; transmissions keep adding up
+            cur.first[i] = now;
+            cur.count[i] = 1;
+            return 1;
+        }
+
+        cur.count[i]++;
+        suppressed++;
+        return cur.count[i];
+    }
+
+    // ---------------------------------------------------------
+    // QUERIES
+    // ---------------------------------------------------------
+
+    /** Sightings of {@code id} in its current window (0 = not recent). */
+    public int count(long id, long now) {
+        int i = find(cur, id);
+        if (i >= 0) return now - cur.first[i] < windowMs ? cur.count[i] : 0;
+        i = find(prev, id);
+        return i >= 0 && now - prev.first[i] < windowMs ? prev.count[i] : 0;
+    }
+
+    /** Duplicates of {@code id} suppressed in its current window. */
+    public int suppressedCount(long id, long now) {
+        return Math.max(0, count(id, now) - 1);
+    }
+
+    /** Distinct transmissions of {@code id} since it started being heard (0 = not heard lately). */
+    public int transmissions(long id, long now) {
+        int i = find(cur, id);
+        if (i >= 0) return now - cur.last[i] < windowMs ? cur.heard[i] : 0;
+        i = find(prev, id);
+        return i >= 0 && now - prev.last[i] < windowMs ? prev.heard[i] : 0;
+    }
+
+    /** Total duplicates suppressed since construction. */
+    public long suppressed() { return suppressed; }
+
+    // ---------------------------------------------------------
+    // TABLE
+    // ---------------------------------------------------------
+    private void rotateIfDue(long now) {
+        if (now - genStart < windowMs && cur.size < maxLoad) return;
+        Table t = prev;
+        prev = cur;
+        cur = t;
+        cur.clear();
+        genStart = now;
+    }
+
+    private int slot(long id) {
+        int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private int find(Table t, long id) {
+        for (int i = slot(id); t.count[i] != 0; i = (i + 1) & mask)
+            if (t.ids[i] == id) return i;
+        return -1;
+    }
+
+    private int insert(long id) {
+        int i = slot(id);
+        while (cur.count[i] != 0) i = (i + 1) & mask;
+        cur.ids[i] = id;
+        cur.count[i] = 1;   // occupied; caller sets the real fields
+        cur.size++;
+        return i;
+    }
+}
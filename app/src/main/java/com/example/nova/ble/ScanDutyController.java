@@ -0,0 +1,309 @@
+package com.example.nova.ble;
+
+import android.bluetooth.le.ScanSettings;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * ScanDutyController
+ * -------------------
+ * Picks the scan duty level for BluetoothScanner from recent mesh traffic,
+ * battery and SOS state:
+ *
+ *  BURST     LOW_LATENCY, immediate reports   new headers, SOS, charging
+ *  BALANCED  BALANCED, immediate reports      mesh traffic in the last minute
+ *  LOW_POWER LOW_POWER, batched reports       quiet mesh
+ *
+ * New headers push straight to BURST; the level then decays one step per
+ * hold period. Low battery caps at BALANCED, critical battery at LOW_POWER,
+ * an active SOS overrides both.
+ *
+ * Android allows ~5 scan starts per 30 s per app, so level switches are at
+ * least MIN_SWITCH_GAP_MS apart; a wanted switch inside the gap is deferred.
+ *
+ * Transitions are counted and time per level accumulated (see getters /
+ * toString) for tuning latency vs battery.
+ *
+ * All state on MeshThread except the volatile traffic/SOS timestamps.
+ */
+public class ScanDutyController {
+
+    private static final String TAG = "ScanDuty";
+
+    public static final int LEVEL_LOW_POWER = 0;
+    public static final int LEVEL_BALANCED = 1;
+    public static final int LEVEL_BURST = 2;
+    private static final String[] LEVEL_NAMES = { "LOW_POWER", "BALANCED", "BURST" };
+
+    // tuning
+    private static final long BURST_HOLD_MS = 15_000;      // after last new header
+    private static final long ACTIVE_HOLD_MS = 60_000;     // after last mesh advert
+    private static final long SOS_HOLD_MS = 5 * 60_000;
+    private static final long MIN_SWITCH_GAP_MS = 6_000;
+    private static final long TICK_MS = 5_000;
+    private static final long LOW_POWER_REPORT_DELAY_MS = 5_000;
+    private static final int LOW_BATTERY_PCT = 20;
+    private static final int CRITICAL_BATTERY_PCT = 8;
+
+    /** Applies a level; BluetoothScanner restarts its scan. */
+    public interface Target {
+        void applyScanParams(int scanMode, long reportDelayMs);
+    }
+
+    public interface TransitionListener {
+        void onTransition(int from, int to, String reason);
+    }
+
+    private final Context ctx;
+    private final Target target;
+    private final Handler handler = new Handler(MeshThread.looper());
+    private TransitionListener transitionListener;
+
+    // inputs
+    private volatile long lastNewHeaderAt = -1;
+    private volatile long lastTrafficAt = -1;
+    private volatile long sosUntil = -1;
+    private volatile int batteryPct = -1;   // unknown until the first broadcast
+    private volatile boolean charging = false;
+
+    // state (MeshThread)
+    private boolean started = false;
+    private int level = LEVEL_BURST;        // start hot, decay if quiet
+    private long levelSince = 0;
+    private long lastSwitchAt = -MIN_SWITCH_GAP_MS;
+
+    // metrics
+    private long transitions = 0;
+    private final long[] entries = new long[3];
+    private final long[] timeInLevelMs = new long[3];
+    private String lastReason = "start";
+
+    public ScanDutyController(Context ctx, Target target) {
+        this.ctx = ctx != null ? ctx.getApplicationContext() : null;
+        this.target = target;
+    }
+
+    public void setTransitionListener(TransitionListener l) { transitionListener = l; }
+
+    // ---------------------------------------------------------
+    // LIFECYCLE
+    // ---------------------------------------------------------
+
+    /** Called by BluetoothScanner before its first scan start; returns immediately. */
+    public void start() {
+        handler.post(() -> {
+            if (started) return;
+            started = true;
+
+            long now = SystemClock.elapsedRealtime();
+            level = LEVEL_BURST;
+            levelSince = now;
+            lastSwitchAt = now;
+            lastTrafficAt = now;
+            entries[LEVEL_BURST]++;
+
+            registerBattery();
+            handler.postDelayed(tick, TICK_MS);
+        });
+    }
+
+    public void stop() {
+        handler.post(() -> {
+            if (!started) return;
+            started = false;
+            accumulate(SystemClock.elapsedRealtime());
+            handler.removeCallbacks(tick);
+            unregisterBattery();
+        });
+    }
+
+    public int currentLevel() { return level; }
+
+    public int scanModeFor(int lvl) {
+        switch (lvl) {
+            case LEVEL_BURST: return ScanSettings.SCAN_MODE_LOW_LATENCY;
+            case LEVEL_BALANCED: return ScanSettings.SCAN_MODE_BALANCED;
+            default: return ScanSettings.SCAN_MODE_LOW_POWER;
+        }
+    }
+
+    public long reportDelayFor(int lvl) {
+        return lvl == LEVEL_LOW_POWER ? LOW_POWER_REPORT_DELAY_MS : 0;
+    }
+
+    // ---------------------------------------------------------
+    // INPUTS (any thread)
+    // ---------------------------------------------------------
+
+    /** Any mesh advert (duplicates too). Scan callback thread: timestamp only. */
+    public void onMeshAdvert() {
+        lastTrafficAt = SystemClock.elapsedRealtime();
+    }
+
+    /** A header we had not seen recently. */
+    public void onNewHeader() {
+        long now = SystemClock.elapsedRealtime();
+        lastNewHeaderAt = now;
+        lastTrafficAt = now;
+        if (level != LEVEL_BURST) postEvaluate();
+    }
+
+    /** SOS sent, received or relayed: stay in BURST for SOS_HOLD_MS. */
+    public void onSos() {
+        sosUntil = SystemClock.elapsedRealtime() + SOS_HOLD_MS;
+        if (level != LEVEL_BURST) postEvaluate();
+    }
+
+    // ---------------------------------------------------------
+    // DECISION
+    // ---------------------------------------------------------
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            if (!started) return;
+            evaluate();
+            handler.postDelayed(this, TICK_MS);
+        }
+    };
+
+    private final Runnable evaluateTask = this::evaluate;
+
+    private void postEvaluate() {
+        handler.removeCallbacks(evaluateTask);
+        handler.post(evaluateTask);
+    }
+
+    private void evaluate() {
+        if (!started) return;
+
+        long now = SystemClock.elapsedRealtime();
+        String[] reason = new String[1];
+        int want = decide(now, reason);
+        if (want == level) return;
+
+        if (now - lastSwitchAt < MIN_SWITCH_GAP_MS) {
+            // too soon after the last restart; come back when allowed
+            handler.removeCallbacks(evaluateTask);
+            handler.postDelayed(evaluateTask, lastSwitchAt + MIN_SWITCH_GAP_MS - now);
+            return;
+        }
+
+        int from = level;
+        accumulate(now);
+        level = want;
+        levelSince = now;
+        lastSwitchAt = now;
+        transitions++;
+        entries[want]++;
+        lastReason = reason[0];
+
+        Log.d(TAG, "🔁 " + LEVEL_NAMES[from] + " → " + LEVEL_NAMES[want] + " (" + reason[0] + ")");
+
+        target.applyScanParams(scanModeFor(want), reportDelayFor(want));
+
+        TransitionListener l = transitionListener;
+        if (l != null) l.onTransition(from, want, reason[0]);
+    }
+
+    int decide(long now, String[] reason) {
+        if (sosUntil > now) { reason[0] = "sos"; return LEVEL_BURST; }
+        if (charging) { reason[0] = "charging"; return LEVEL_BURST; }
+
+        int want;
+        if (lastNewHeaderAt >= 0 && now - lastNewHeaderAt < BURST_HOLD_MS) {
+            want = LEVEL_BURST;
+            reason[0] = "new headers";
+        } else if (lastTrafficAt >= 0 && now - lastTrafficAt < ACTIVE_HOLD_MS) {
+            // new headers count as traffic too, so BURST decays via BALANCED
+            want = LEVEL_BALANCED;
+            reason[0] = "mesh traffic";
+        } else {
+            want = LEVEL_LOW_POWER;
+            reason[0] = "quiet";
+        }
+
+        int pct = batteryPct;
+        if (pct >= 0 && pct <= CRITICAL_BATTERY_PCT) {
+            want = LEVEL_LOW_POWER;
+            reason[0] = "battery " + pct + "%";
+        } else if (pct >= 0 && pct <= LOW_BATTERY_PCT && want == LEVEL_BURST) {
+            want = LEVEL_BALANCED;
+            reason[0] = "battery " + pct + "%";
+        }
+        return want;
+    }
+
+    // ---------------------------------------------------------
+    // BATTERY
+    // ---------------------------------------------------------
+    private final BroadcastReceiver batteryReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context c, Intent i) {
+            readBattery(i);
+        }
+    };
+
+    private void readBattery(Intent i) {
+        if (i == null) return;
+        int lvl = i.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = i.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        int status = i.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+
+        if (lvl >= 0 && scale > 0) batteryPct = lvl * 100 / scale;
+        charging = status == BatteryManager.BATTERY_STATUS_CHARGING
+                || status == BatteryManager.BATTERY_STATUS_FULL;
+    }
+
+    private void registerBattery() {
+        if (ctx == null) return;
+        try {
+            // sticky: returns the current state right away
+            readBattery(ctx.registerReceiver(batteryReceiver,
+                    new IntentFilter(Intent.ACTION_BATTERY_CHANGED)));
+        } catch (Exception e) {
+            Log.w(TAG, "Battery receiver failed: " + e.getMessage());
+        }
+    }
+
+    private void unregisterBattery() {
+        if (ctx == null) return;
+        try { ctx.unregisterReceiver(batteryReceiver); }
+        catch (Exception ignored) {}
+    }
+
+    // ---------------------------------------------------------
+    // METRICS
+    // ---------------------------------------------------------
+    private void accumulate(long now) {
+        timeInLevelMs[level] += now - levelSince;
+        levelSince = now;
+    }
+
+    public long getTransitions() { return transitions; }
+    public long getEntries(int lvl) { return entries[lvl]; }
+    public String getLastReason() { return lastReason; }
+
+    /** Time spent in {@code lvl} so far, including the current stretch. */
+    public long getTimeInLevelMs(int lvl) {
+        long t = timeInLevelMs[lvl];
+        if (started && lvl == level) t += SystemClock.elapsedRealtime() - levelSince;
+        return t;
+    }
+
+    @Override
+    public String toString() {
+        return "level=" + LEVEL_NAMES[level]
+                + " transitions=" + transitions
+                + " burst=" + getTimeInLevelMs(LEVEL_BURST) + "ms"
+                + " balanced=" + getTimeInLevelMs(LEVEL_BALANCED) + "ms"
+                + " lowPower=" + getTimeInLevelMs(LEVEL_LOW_POWER) + "ms"
+                + " battery=" + batteryPct + "%" + (charging ? "+" : "")
+                + " last=" + lastReason;
+    }
+}
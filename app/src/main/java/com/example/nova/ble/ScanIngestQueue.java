@@ -0,0 +1,220 @@
+package com.example.nova.ble;
+
+/**
+ * ScanIngestQueue
+ * ----------------
+ * Bounded hand-off between the scan callback (main thread) and the mesh
+ * worker that parses results and feeds HopManager.
+ *
+ *  - ring of preallocated slots; offer() copies the few fields the worker
+ *    parses (advertiser, RSSI, NOVA service data, ESP32 manufacturer data)
+ *    into the slot's own buffers, so no ScanResult is kept alive in the ring
+ *  - a buffer only grows when a field is longer than any seen in that slot
+ *    before (an extended advert past EXT_FIELD_BYTES); otherwise no
+ *    allocation per offer
+ *  - all parsing happens on the consumer side
+ *  - critical sections are a few field writes and short copies, so a plain
+ *    lock is cheaper than it looks and keeps multi-field slots consistent
+ *
+ * Overload policy (ring full):
+ *  1. coalesce: if the newest queued result is from the same advertiser
+ *     (same key), it is replaced by the incoming one. Adverts repeat every
+ *     ~100 ms, so the newer result carries everything the older one did.
+ *  2. otherwise drop the incoming result. Whatever is already queued may be
+ *     the only copy of a header; the incoming advertiser will repeat.
+ *
+ * Counters are cumulative since construction.
+ *
+ * Pure Java (no android.*) so it can be exercised off-device; D is the
+ * platform's device handle (BluetoothDevice), kept for the GATT fetch.
+ */
+public class ScanIngestQueue<D> {
+
+    // copied fields, by index into Slot's buffers
+    public static final int FIELD_HEADER = 0;     // single header service data
+    public static final int FIELD_PACKED = 1;     // packed headers
+    public static final int FIELD_SCAN_RSP = 2;   // compact ciphertext from the scan response
+    public static final int FIELD_EXT = 3;        // extended advert (inline payloads)
+    public static final int FIELD_ESP32 = 4;      // "MESH:" manufacturer data
+    static final int FIELDS = 5;
+
+    private static final int LEGACY_FIELD_BYTES = 31;   // a whole legacy advert
+    private static final int EXT_FIELD_BYTES = 256;
+
+    public interface Sink<D> {
+        void accept(Slot<D> slot);
+    }
+
+    /** One queued advert. Valid only inside Sink.accept; the slot is reused after. */
+    public static final class Slot<D> {
+        D device;
+        String address;
+        int rssi;
+        long queuedAt;
+        final byte[][] bufs = new byte[FIELDS][];
+        final int[] lens = new int[FIELDS];   // -1: absent
+
+        Slot() {
+            for (int f = 0; f < FIELDS; f++) {
+                bufs[f] = new byte[f == FIELD_EXT ? EXT_FIELD_BYTES : LEGACY_FIELD_BYTES];
+                lens[f] = -1;
+            }
+        }
+
+        public D device() { return device; }
+        public String address() { return address; }
+        public int rssi() { return rssi; }
+
+        public boolean has(int field) {
+            return lens[field] >= 0;
+        }
+
+        /** Copy of {@code field}, or null if the advert did not carry it. */
+        public byte[] field(int field) {
+            int n = lens[field];
+            if (n < 0) return null;
+            byte[] out = new byte[n];
+            System.arraycopy(bufs[field], 0, out, 0, n);
+            return out;
+        }
+
+        void set(int field, byte[] src) {
+            if (src == null) {
+                lens[field] = -1;
+                return;
+            }
+            if (src.length > bufs[field].length) bufs[field] = new byte[src.length];
+            System.arraycopy(src, 0, bufs[field], 0, src.length);
+            lens[field] = src.length;
+        }
+
+        void fill(D device, String address, int rssi, long now,
+                  byte[] header, byte[] packed, byte[] scanRsp, byte[] ext, byte[] esp32) {
+            this.device = device;
+            this.address = address;
+            this.rssi = rssi;
+            this.queuedAt = now;
+            set(FIELD_HEADER, header);
+            set(FIELD_PACKED, packed);
+            set(FIELD_SCAN_RSP, scanRsp);
+            set(FIELD_EXT, ext);
+            set(FIELD_ESP32, esp32);
+        }
+
+        void clear() {
+            device = null;   // let the device handle go
+            address = null;
+        }
+    }
+
+    private final Slot<D>[] slots;
+    private final int mask;
+
+    private long head;   // next slot to drain
+    private long tail;   // next slot to fill
+
+    // counters
+    private long accepted;
+    private long coalesced;
+    private long dropped;
+    private int highWater;
+    private long maxLagMs;
+
+    @SuppressWarnings("unchecked")
+    public ScanIngestQueue(int capacity) {
+        int cap = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.slots = new Slot[cap];
+        for (int i = 0; i < cap; i++) slots[i] = new Slot<>();
+        this.mask = cap - 1;
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+
+    // ---------------------------------------------------------
+    // PRODUCER
+    // ---------------------------------------------------------
+
+    /**
+     * Queue a copy of one advert's mesh fields (null = absent).
+     * @return false if the result was dropped.
+     */
+    public synchronized boolean offer(D device, String address, int rssi, long now,
+                                      byte[] header, byte[] packed, byte[] scanRsp,
+                                      byte[] ext, byte[] esp32) {
+        int size = (int) (tail - head);
+
+        if (size == slots.length) {
+            // never the head slot (capacity ≥ 2), which the sink may be reading
+            Slot<D> last = slots[(int) ((tail - 1) & mask)];
+            if (address != null && address.equals(last.address)) {
+                last.fill(device, address, rssi, now, header, packed, scanRsp, ext, esp32);
+                coalesced++;
+                return true;
+            }
+            dropped++;
+            return false;
+        }
+
+        slots[(int) (tail & mask)].fill(device, address, rssi, now, header, packed, scanRsp, ext, esp32);
+        tail++;
+
+        accepted++;
+        if (size + 1 > highWater) highWater = size + 1;
+        return true;
+    }
+
+    // ---------------------------------------------------------
+    // CONSUMER (one thread)
+    // ---------------------------------------------------------
+
+    /** Hand up to {@code max} queued results to {@code sink}, oldest first. @return count drained. */
+    public int drain(Sink<D> sink, int max, long now) {
+        int n = 0;
+        while (n < max) {
+            Slot<D> slot;
+            synchronized (this) {
+                if (head == tail) break;
+
+                slot = slots[(int) (head & mask)];
+                long lag = now - slot.queuedAt;
+                if (lag > maxLagMs) maxLagMs = lag;
+            }
+            try {
+                sink.accept(slot);
+            } finally {
+                // release the slot only now: until head moves the producer cannot reuse it
+                synchronized (this) {
+                    slot.clear();
+                    head++;
+                }
+            }
+            n++;
+        }
+        return n;
+    }
+
+    public synchronized int size() {
+        return (int) (tail - head);
+    }
+
+    // ---------------------------------------------------------
+    // COUNTERS
+    // ---------------------------------------------------------
+    public synchronized long accepted() { return accepted; }
+    public synchronized long coalesced() { return coalesced; }
+    public synchronized long dropped() { return dropped; }
+    public synchronized int highWater() { return highWater; }
+    public synchronized long maxLagMs() { return maxLagMs; }
+
+    @Override
+    public synchronized String toString() {
+        return "accepted=" + accepted
+                + " coalesced=" + coalesced
+                + " dropped=" + dropped
+                + " queued=" + (tail - head) + "/" + slots.length
+                + " highWater=" + highWater
+                + " maxLag=" + maxLagMs + "ms";
+    }
+}
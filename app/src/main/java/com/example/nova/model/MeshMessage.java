@@ -6,6 +6,9 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -31,6 +34,28 @@ public class MeshMessage {
     // device reference for GATT
     public BluetoothDevice bluetoothDevice;
 
+    // address of the peer the header was heard from (transport-neutral)
+    public String sourceAddress;
+
+    // signal strength the header was heard at (dBm); drives relay timing
+    public static final int RSSI_UNKNOWN = Integer.MIN_VALUE;
+    public int rssi = RSSI_UNKNOWN;
+
+    // delivery class, carried in the advert header; higher goes first in
+    // every queue (advertising, fetch, relay timer) and is kept longer
+    public static final int PRIORITY_PRESENCE = 0;
+    public static final int PRIORITY_CHAT = 1;
+    public static final int PRIORITY_SOS = 2;
+    public int priority = PRIORITY_CHAT;
+
+    public static String priorityName(int p) {
+        switch (p) {
+            case PRIORITY_SOS: return "sos";
+            case PRIORITY_PRESENCE: return "presence";
+            default: return "chat";
+        }
+    }
+
     // ---------------------------------------------------------
     // Create outgoing (normal app) message
     // ---------------------------------------------------------
@@ -52,7 +77,8 @@ public class MeshMessage {
     }
 
     // ---------------------------------------------------------
-    // Build JSON (to encrypt)
+    // Build JSON (to encrypt) - the envelope before PayloadCodec;
+    // still read from older peers, no longer sent
     // ---------------------------------------------------------
     public static byte[] buildJsonPayload(String sender,
                                           String message,
@@ -71,6 +97,37 @@ public class MeshMessage {
         }
     }
 
+    // ---------------------------------------------------------
+    // Compact payload (short messages): sender 0x00 text, UTF-8.
+    // No timestamp: the receiver stamps arrival time.
+    // ---------------------------------------------------------
+    public static byte[] buildCompactPayload(String sender, String message, int maxLen) {
+        if (sender == null || message == null || sender.indexOf('\0') >= 0) return null;
+
+        byte[] s = sender.getBytes(StandardCharsets.UTF_8);
+        byte[] t = message.getBytes(StandardCharsets.UTF_8);
+        if (s.length + 1 + t.length > maxLen) return null;
+
+        byte[] out = new byte[s.length + 1 + t.length];
+        System.arraycopy(s, 0, out, 0, s.length);
+        System.arraycopy(t, 0, out, s.length + 1, t.length);
+        return out;
+    }
+
+    public static void parseCompactInto(MeshMessage m, byte[] plain) {
+        int sep = 0;
+        while (sep < plain.length && plain[sep] != 0) sep++;
+
+        if (sep < plain.length) {
+            m.sender = new String(plain, 0, sep, StandardCharsets.UTF_8);
+            m.payload = new String(plain, sep + 1, plain.length - sep - 1, StandardCharsets.UTF_8);
+        } else {
+            m.sender = "Unknown";
+            m.payload = new String(plain, StandardCharsets.UTF_8);
+        }
+        m.timestamp = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US).format(new Date());
+    }
+
     // ---------------------------------------------------------
     // Parse JSON after decrypt
     // ---------------------------------------------------------
@@ -100,6 +157,9 @@ public class MeshMessage {
         m.payload = this.payload;
         m.timestamp = this.timestamp;
         m.bluetoothDevice = this.bluetoothDevice;
+        m.sourceAddress = this.sourceAddress;
+        m.rssi = this.rssi;
+        m.priority = this.priority;
         return m;
     }
 
@@ -124,6 +184,7 @@ public class MeshMessage {
         m.hopCount = 0;
         m.sender = "ESP32";
         m.payload = "SOS";   // plain text alert
+        m.priority = PRIORITY_SOS;
         m.timestamp = String.valueOf(System.currentTimeMillis());
 
         // no encryption
@@ -1,31 +1,194 @@
 package com.example.nova.model;
 
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * MessageCache
+ * -------------
+ * Dedup set of message ids ("have I seen this header?").
+ *
+ *  - long keys, no boxing, no per-call allocation
+ *  - lock-free: open addressing (linear probing) over an AtomicLongArray,
+ *    insert is a single CAS → putIfAbsent is an atomic test-and-set
+ *  - eviction by generations: ids go into the current table; when it is
+ *    full (maxSize) or older than ttlMs it becomes the previous table and a
+ *    fresh one takes over. Lookups check both, so an id is remembered for
+ *    at least min(ttlMs, time to see maxSize new ids) and at most twice that.
+ *
+ * Best effort across a rotation: a header racing the swap may be accepted
+ * twice; HopManager's payload store catches that case. A table filled by
+ * inserts racing past maxSize rotates early; an id is never reported new
+ * without being recorded.
+ */
 public class MessageCache {
+
+    // HopManager keeps payloads 10 min; remember ids at least that long
+    public static final long DEFAULT_TTL_MS = 15 * 60 * 1000L;
+
+    private static final long EMPTY = 0L;
+    private static final long UNSTAMPED = Long.MIN_VALUE;
+
     private final int maxSize;
-    private final Map<String, Long> map;
+    private final long ttlMs;
+    final AtomicReference<Generations> gens;   // package-private for tests
 
     public MessageCache(int maxSize) {
+        this(maxSize, DEFAULT_TTL_MS);
+    }
+
+    public MessageCache(int maxSize, long ttlMs) {
         this.maxSize = Math.max(64, maxSize);
-        this.map = new LinkedHashMap<String, Long>(maxSize, 0.75f, true) {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
-                return size() > MessageCache.this.maxSize;
-            }
-        };
+        this.ttlMs = ttlMs;
+        // first generation is stamped on first use, with the caller's clock
+        this.gens = new AtomicReference<>(new Generations(
+                new Table(this.maxSize, UNSTAMPED), new Table(this.maxSize, UNSTAMPED)));
+    }
+
+    // ---------------------------------------------------------
+    // PUBLIC API
+    // ---------------------------------------------------------
+
+    /** @return true if {@code id} was not present and is now recorded. */
+    public boolean putIfAbsent(long id) {
+        return putIfAbsent(id, System.currentTimeMillis());
+    }
+
+    public boolean putIfAbsent(long id, long now) {
+        while (true) {
+            Generations g = rotateIfNeeded(now);
+            if (g.previous.contains(id)) return false;
+
+            int r = g.current.add(id);
+            if (r != Table.FULL) return r == Table.ADDED;
+
+            // saturated by inserts racing past maxSize: retire it rather
+            // than call an unrecorded id new, and retry in a fresh table
+            gens.compareAndSet(g, new Generations(new Table(maxSize, now), g.current));
+        }
+    }
+
+    public void put(long id) {
+        putIfAbsent(id);
+    }
+
+    public void put(long id, long now) {
+        putIfAbsent(id, now);
+    }
+
+    public boolean contains(long id) {
+        Generations g = gens.get();
+        return g.current.contains(id) || g.previous.contains(id);
     }
 
-    public synchronized boolean contains(String id) {
-        return map.containsKey(id);
+    /** Ids currently remembered (approximate under concurrent inserts). */
+    public int size() {
+        Generations g = gens.get();
+        return g.current.count.get() + g.previous.count.get();
     }
 
-    public synchronized void put(String id) {
-        map.put(id, System.currentTimeMillis());
+    // ---------------------------------------------------------
+    // GENERATIONS
+    // ---------------------------------------------------------
+    private Generations rotateIfNeeded(long now) {
+        while (true) {
+            Generations g = gens.get();
+            Table cur = g.current;
+
+            long born = cur.createdAt;
+            if (born == UNSTAMPED) cur.createdAt = born = now;
+
+            if (cur.count.get() < maxSize && now - born < ttlMs)
+                return g;
+
+            Generations next = new Generations(new Table(maxSize, now), cur);
+            if (gens.compareAndSet(g, next))
+                return next;
+        }
     }
 
-    public synchronized int size() {
-        return map.size();
+    static final class Generations {
+        final Table current;
+        final Table previous;
+
+        Generations(Table current, Table previous) {
+            this.current = current;
+            this.previous = previous;
+        }
+    }
+
+    // ---------------------------------------------------------
+    // OPEN-ADDRESSING TABLE (insert-only)
+    // ---------------------------------------------------------
+    static final class Table {
+        static final int ADDED = 0;
+        static final int PRESENT = 1;
+        static final int FULL = 2;   // every slot taken, id not among them
+
+        final AtomicLongArray slots;
+        final int mask;
+        volatile long createdAt;
+        final AtomicInteger count = new AtomicInteger();
+
+        // id 0 collides with the EMPTY marker → tracked on the side
+        final AtomicBoolean hasZero = new AtomicBoolean();
+
+        Table(int maxSize, long createdAt) {
+            // load factor ≤ 0.5 keeps probe chains short
+            int cap = Integer.highestOneBit(maxSize * 2 - 1) << 1;
+            this.slots = new AtomicLongArray(cap);
+            this.mask = cap - 1;
+            this.createdAt = createdAt;
+        }
+
+        boolean contains(long id) {
+            if (id == EMPTY) return hasZero.get();
+
+            int i = index(id);
+            for (int n = 0; n <= mask; n++) {
+                long k = slots.get(i);
+                if (k == id) return true;
+                if (k == EMPTY) return false;
+                i = (i + 1) & mask;
+            }
+            return false;
+        }
+
+        int add(long id) {
+            if (id == EMPTY) {
+                if (!hasZero.compareAndSet(false, true)) return PRESENT;
+                count.incrementAndGet();
+                return ADDED;
+            }
+
+            int i = index(id);
+            for (int n = 0; n <= mask; n++) {
+                long k = slots.get(i);
+                if (k == id) return PRESENT;
+                if (k == EMPTY) {
+                    if (slots.compareAndSet(i, EMPTY, id)) {
+                        count.incrementAndGet();
+                        return ADDED;
+                    }
+                    // lost the race: re-read the same slot
+                    if (slots.get(i) == id) return PRESENT;
+                }
+                i = (i + 1) & mask;
+            }
+            return FULL;
+        }
+
+        private int index(long id) {
+            // Murmur3 fmix64: ids are random-ish but may share low bits
+            long h = id;
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            h ^= h >>> 33;
+            return (int) h & mask;
+        }
     }
 }
@@ -0,0 +1,241 @@
+package com.example.nova.model;
+
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * PayloadCodec
+ * -------------
+ * Binary plaintext of the full (non-compact) payload, replacing the JSON
+ * envelope of MeshMessage.buildJsonPayload:
+ *
+ *   [0xC1][type:1][sentAt: varint, epoch seconds]
+ *   [senderLen: varint][sender UTF-8][textLen: varint][text UTF-8]
+ *
+ *  - the first byte is 0xC0 | VERSION; 0xC1 never starts UTF-8 text, so
+ *    it cannot be mistaken for a JSON payload from an older peer
+ *  - overhead is ~9 bytes against ~60 of JSON key names and a 19-char
+ *    timestamp, so more payloads fit inline in extended adverts and fewer
+ *    need a second notification chunk
+ *  - seconds are all the UI shows; the receiver formats them in its own
+ *    time zone
+ *
+ * Optionally {@link #deflate}d: FLAG_DEFLATED in the type byte means
+ * everything after it is raw Deflate against DICTIONARY. The sender keeps
+ * the plain form whenever that is not shorter.
+ *
+ * {@link #decodeInto} reads every form: anything not starting with the
+ * codec byte goes to MeshMessage.parseJsonInto.
+ */
+public final class PayloadCodec {
+
+    public static final int VERSION = 1;
+    private static final byte FORMAT = (byte) (0xC0 | VERSION);
+
+    // type tag: what the body is, independent of the advert header
+    public static final int TYPE_CHAT = 1;
+    public static final int TYPE_SOS = 2;
+    public static final int TYPE_PRESENCE = 3;
+    private static final int FLAG_DEFLATED = 0x80;
+
+    /** Returned by {@link #decodeInto} for a JSON (pre-codec) payload. */
+    public static final int TYPE_JSON = 0;
+    /** Returned by {@link #decodeInto} when the binary form is malformed. */
+    public static final int TYPE_INVALID = -1;
+
+    private static final String TIME_FORMAT = "yyyy-MM-dd HH:mm:ss";
+
+    private PayloadCodec() {}
+
+    public static int typeFor(int priority) {
+        switch (priority) {
+            case MeshMessage.PRIORITY_SOS: return TYPE_SOS;
+            case MeshMessage.PRIORITY_PRESENCE: return TYPE_PRESENCE;
+            default: return TYPE_CHAT;
+        }
+    }
+
+    public static boolean isBinary(byte[] plain) {
+        return plain != null && plain.length > 0 && plain[0] == FORMAT;
+    }
+
+    // ---------------------------------------------------------
+    // ENCODE
+    // ---------------------------------------------------------
+    public static byte[] encode(int type, String sender, String message, long sentAtMs) {
+        byte[] s = (sender != null ? sender : "").getBytes(StandardCharsets.UTF_8);
+        byte[] t = (message != null ? message : "").getBytes(StandardCharsets.UTF_8);
+        long secs = Math.max(0, sentAtMs / 1000);
+
+        byte[] out = new byte[2 + varintLen(secs)
+                + varintLen(s.length) + s.length
+                + varintLen(t.length) + t.length];
+        int p = 0;
+        out[p++] = FORMAT;
+        out[p++] = (byte) type;
+        p = putVarint(out, p, secs);
+        p = putVarint(out, p, s.length);
+        System.arraycopy(s, 0, out, p, s.length);
+        p += s.length;
+        p = putVarint(out, p, t.length);
+        System.arraycopy(t, 0, out, p, t.length);
+        return out;
+    }
+
+    // ---------------------------------------------------------
+    // DECODE
+    // ---------------------------------------------------------
+
+    /**
+     * Fill sender / payload / timestamp of {@code m} from a decrypted payload.
+     *
+     * @return the type tag, TYPE_JSON for an older peer's JSON payload, or
+     *         TYPE_INVALID (sender "Unknown", payload empty) if the binary
+     *         form does not parse
+     */
+    public static int decodeInto(MeshMessage m, byte[] plain) {
+        if (!isBinary(plain)) {
+            MeshMessage.parseJsonInto(m, new String(plain, StandardCharsets.UTF_8));
+            return TYPE_JSON;
+        }
+
+        if (plain.length < 2) return invalid(m);
+        if ((plain[1] & FLAG_DEFLATED) != 0) {
+            plain = inflate(plain);
+            if (plain == null) return invalid(m);
+        }
+
+        // pos[0] is the read cursor, advanced by varint()
+        int[] pos = { 2 };
+        int type = plain[1] & 0xFF;
+
+        long secs = varint(plain, pos);
+        long sLen = varint(plain, pos);
+        if (secs < 0 || sLen < 0 || sLen > plain.length - pos[0]) return invalid(m);
+        String sender = new String(plain, pos[0], (int) sLen, StandardCharsets.UTF_8);
+        pos[0] += (int) sLen;
+
+        long tLen = varint(plain, pos);
+        if (tLen < 0 || tLen != plain.length - pos[0]) return invalid(m);
+
+        m.sender = sender;
+        m.payload = new String(plain, pos[0], (int) tLen, StandardCharsets.UTF_8);
+        m.timestamp = new SimpleDateFormat(TIME_FORMAT, Locale.US).format(new Date(secs * 1000));
+        return type;
+    }
+
+    private static int invalid(MeshMessage m) {
+        m.sender = "Unknown";
+        m.payload = "";
+        return TYPE_INVALID;
+    }
+
+    // ---------------------------------------------------------
+    // DEFLATE (optional, before encrypt)
+    // ---------------------------------------------------------
+
+    // Part of the format: a peer inflates with exactly these bytes, so any
+    // change needs a new VERSION. Deflate reaches back 32 KiB and codes
+    // nearer matches cheaper, so the most frequent phrases come last.
+    // Package-private so PayloadCodecTest can pin it.
+    static final byte[] DICTIONARY = (
+            "need water food medical help injured trapped fire flood "
+            + "I am safe. We are OK. Where are you? Coming now. "
+            + "Need help at Location: Lat= Lon= SOS ALERT! SOS Location: Lat=")
+            .getBytes(StandardCharsets.UTF_8);
+
+    // refuse to inflate past this (far above any payload a node sends)
+    private static final int MAX_INFLATED = 8 * 1024;
+
+    /**
+     * Deflated form of an {@link #encode}d payload, or {@code encoded}
+     * itself if Deflate does not make it shorter (short texts usually).
+     */
+    public static byte[] deflate(byte[] encoded) {
+        if (!isBinary(encoded) || encoded.length < 3 || (encoded[1] & FLAG_DEFLATED) != 0)
+            return encoded;
+
+        Deflater d = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            d.setDictionary(DICTIONARY);
+            d.setInput(encoded, 2, encoded.length - 2);
+            d.finish();
+
+            // any output that fills this buffer is no gain
+            byte[] out = new byte[encoded.length];
+            out[0] = FORMAT;
+            out[1] = (byte) (encoded[1] | FLAG_DEFLATED);
+            int n = 2;
+            while (!d.finished() && n < out.length)
+                n += d.deflate(out, n, out.length - n);
+
+            return d.finished() && n < encoded.length ? Arrays.copyOf(out, n) : encoded;
+        } finally {
+            d.end();
+        }
+    }
+
+    /** @return the plain form of a deflated payload, or null if it does not inflate. */
+    private static byte[] inflate(byte[] deflated) {
+        Inflater inf = new Inflater(true);
+        try {
+            inf.setDictionary(DICTIONARY);
+            inf.setInput(deflated, 2, deflated.length - 2);
+
+            byte[] out = new byte[Math.min(MAX_INFLATED, Math.max(64, deflated.length * 4))];
+            out[0] = FORMAT;
+            out[1] = (byte) (deflated[1] & ~FLAG_DEFLATED);
+            int n = 2;
+            while (!inf.finished()) {
+                if (n == out.length) {
+                    if (out.length >= MAX_INFLATED) return null;
+                    out = Arrays.copyOf(out, Math.min(MAX_INFLATED, out.length * 2));
+                }
+                int r = inf.inflate(out, n, out.length - n);
+                if (r == 0 && (inf.needsInput() || inf.needsDictionary())) return null;
+                n += r;
+            }
+            return Arrays.copyOf(out, n);
+        } catch (DataFormatException e) {
+            return null;
+        } finally {
+            inf.end();
+        }
+    }
+
+    // ---------------------------------------------------------
+    // VARINT (unsigned LEB128)
+    // ---------------------------------------------------------
+    static int varintLen(long v) {
+        int n = 1;
+        while ((v >>>= 7) != 0) n++;
+        return n;
+    }
+
+    static int putVarint(byte[] b, int p, long v) {
+        while ((v & ~0x7FL) != 0) {
+            b[p++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        b[p++] = (byte) v;
+        return p;
+    }
+
+    /** @return the value, or -1 if truncated or longer than 9 bytes. */
+    static long varint(byte[] b, int[] pos) {
+        long v = 0;
+        for (int shift = 0; shift < 63; shift += 7) {
+            if (pos[0] >= b.length) return -1;
+            int x = b[pos[0]++];
+            v |= (long) (x & 0x7F) << shift;
+            if ((x & 0x80) == 0) return v;
+        }
+        return -1;
+    }
+}
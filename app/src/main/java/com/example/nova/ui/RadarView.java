@@ -8,12 +8,20 @@ import android.os.Handler;
 import android.util.AttributeSet;
 import android.view.View;
 
+import com.example.nova.ble.NeighbourTable;
+
 public class RadarView extends View {
     private Paint circlePaint;
     private Paint sweepPaint;
     private float sweepAngle = 0;
     private Handler handler = new Handler();
 
+    // mesh peers as blips: distance from smoothed RSSI, angle from address, fading with age
+    private Paint blipPaint;
+    private NeighbourTable neighbours;
+    private static final float RSSI_NEAR = -40f;
+    private static final float RSSI_FAR = -100f;
+
     public RadarView(Context context, AttributeSet attrs) {
         super(context, attrs);
         init();
@@ -31,10 +39,18 @@ public class RadarView extends View {
         sweepPaint.setStyle(Paint.Style.FILL);
         sweepPaint.setAntiAlias(true);
 
+        blipPaint = new Paint();
+        blipPaint.setStyle(Paint.Style.FILL);
+        blipPaint.setAntiAlias(true);
+
         // Animation loop
         handler.post(animationRunnable);
     }
 
+    public void setNeighbourTable(NeighbourTable table) {
+        this.neighbours = table;
+    }
+
     private Runnable animationRunnable = new Runnable() {
         @Override
         public void run() {
@@ -64,5 +80,30 @@ public class RadarView extends View {
 
         // Optional: draw center dot
         canvas.drawCircle(cx, cy, 8, sweepPaint);
+
+        drawNeighbours(canvas, cx, cy, radius);
+    }
+
+    private void drawNeighbours(Canvas canvas, int cx, int cy, int radius) {
+        NeighbourTable table = neighbours;
+        if (table == null) return;
+
+        long now = System.currentTimeMillis();
+        for (NeighbourTable.Neighbour n : table.snapshot()) {
+            float near = ((float) n.rssi() - RSSI_FAR) / (RSSI_NEAR - RSSI_FAR);
+            float dist = radius * (1f - Math.max(0f, Math.min(1f, near)));
+
+            double angle = Math.toRadians((n.address.hashCode() & 0x7fffffff) % 360);
+            float x = cx + (float) (Math.cos(angle) * dist);
+            float y = cy + (float) (Math.sin(angle) * dist);
+
+            float age = (now - n.lastSeen()) / (float) NeighbourTable.AGE_OUT_MS;
+            int alpha = (int) (255 * Math.max(0.2f, 1f - age));
+            // green: fetches work, red: failing link
+            int ok = (int) (255 * n.successRatio());
+            blipPaint.setColor(Color.argb(alpha, 255 - ok, ok, 80));
+
+            canvas.drawCircle(x, y, 10, blipPaint);
+        }
     }
 }
@@ -0,0 +1,230 @@
+package com.example.nova.ble;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+public class CryptoUtilTest {
+
+    // every encryption below uses its own id: the compact nonce is derived from it
+    private static long nextId = 0x1000;
+
+    private static byte[] bytes(int n) {
+        byte[] b = new byte[n];
+        for (int i = 0; i < n; i++) b[i] = (byte) (i * 7 + 1);
+        return b;
+    }
+
+    // ---------------------------------------------------------
+    // COMPACT FORM
+    // ---------------------------------------------------------
+
+    @Test
+    public void compactRoundTripUpToTheBoundary() throws Exception {
+        for (int n = 0; n <= CryptoUtil.COMPACT_MAX_PLAINTEXT; n++) {
+            long id = nextId++;
+            byte[] plain = bytes(n);
+
+            byte[] ct = CryptoUtil.encryptCompact(plain, id);
+            assertEquals(n + 12, ct.length);   // 96-bit tag, no IV
+            assertTrue("length " + ct.length, CryptoUtil.isCompact(ct));
+            assertArrayEquals(plain, CryptoUtil.decryptCompact(ct, id));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void compactRefusesPastTheBoundary() throws Exception {
+        CryptoUtil.encryptCompact(bytes(CryptoUtil.COMPACT_MAX_PLAINTEXT + 1), nextId++);
+    }
+
+    @Test
+    public void compactTamperFails() throws Exception {
+        long id = nextId++;
+        byte[] ct = CryptoUtil.encryptCompact(bytes(5), id);
+
+        for (int i : new int[] { 0, ct.length - 1 }) {   // ciphertext byte, tag byte
+            byte[] bad = ct.clone();
+            bad[i] ^= 1;
+            try {
+                CryptoUtil.decryptCompact(bad, id);
+                fail("tampered byte " + i + " accepted");
+            } catch (AEADBadTagException expected) {
+            }
+        }
+
+        // the id is both nonce and AAD: another id does not open it
+        try {
+            CryptoUtil.decryptCompact(ct, id + 1);
+            fail("wrong id accepted");
+        } catch (AEADBadTagException expected) {
+        }
+    }
+
+    // ---------------------------------------------------------
+    // FULL FORM: IV || ciphertext || tag
+    // ---------------------------------------------------------
+
+    // same key as CryptoUtil.RAW_KEY: what a build before the per-thread engine sends / reads
+    private static final SecretKeySpec KEY;
+    static {
+        byte[] k = new byte[32];
+        for (int i = 0; i < 32; i++) k[i] = (byte) (i + 1);
+        KEY = new SecretKeySpec(k, "AES");
+    }
+
+    private static byte[] idBytes(long id) {
+        return ByteBuffer.allocate(8).putLong(id).array();
+    }
+
+    /** IV || ct as the old CryptoUtil.encrypt(plain, aad) built it: fresh Cipher, random IV. */
+    private static byte[] legacyEncrypt(byte[] plain, long id) throws Exception {
+        byte[] iv = new byte[12];
+        new SecureRandom().nextBytes(iv);
+        Cipher c = Cipher.getInstance("AES/GCM/NoPadding");
+        c.init(Cipher.ENCRYPT_MODE, KEY, new GCMParameterSpec(128, iv));
+        c.updateAAD(idBytes(id));
+        byte[] ct = c.doFinal(plain);
+        byte[] out = new byte[12 + ct.length];
+        System.arraycopy(iv, 0, out, 0, 12);
+        System.arraycopy(ct, 0, out, 12, ct.length);
+        return out;
+    }
+
+    private static byte[] legacyDecrypt(byte[] ivAndCt, long id) throws Exception {
+        Cipher c = Cipher.getInstance("AES/GCM/NoPadding");
+        c.init(Cipher.DECRYPT_MODE, KEY, new GCMParameterSpec(128, ivAndCt, 0, 12));
+        c.updateAAD(idBytes(id));
+        return c.doFinal(ivAndCt, 12, ivAndCt.length - 12);
+    }
+
+    @Test
+    public void legacyCiphertextStillDecrypts() throws Exception {
+        long id = nextId++;
+        byte[] plain = bytes(200);
+        byte[] old = legacyEncrypt(plain, id);
+
+        assertArrayEquals(plain, CryptoUtil.decrypt(old, id));
+        assertArrayEquals(plain, CryptoUtil.decrypt(old, idBytes(id)));
+    }
+
+    @Test
+    public void newCiphertextDecryptsOnLegacyBuilds() throws Exception {
+        for (int n : new int[] { 0, 40, 1000 }) {
+            long id = nextId++;
+            byte[] plain = bytes(n);
+
+            byte[] ct = CryptoUtil.encrypt(plain, id);
+            assertEquals(n + CryptoUtil.OVERHEAD, ct.length);
+            assertArrayEquals(plain, legacyDecrypt(ct, id));
+
+            byte[] viaAad = CryptoUtil.encrypt(plain, idBytes(id));
+            assertArrayEquals(plain, legacyDecrypt(viaAad, id));
+            assertArrayEquals(plain, CryptoUtil.decrypt(viaAad, id));
+        }
+    }
+
+    @Test
+    public void noncesDoNotRepeat() throws Exception {
+        long id = nextId++;
+        byte[] a = CryptoUtil.encrypt(bytes(16), id);
+        byte[] b = CryptoUtil.encrypt(bytes(16), id);
+        assertFalse(Arrays.equals(Arrays.copyOf(a, 12), Arrays.copyOf(b, 12)));
+    }
+
+    @Test
+    public void decryptView() throws Exception {
+        long id = nextId++;
+        byte[] ct = CryptoUtil.encrypt(bytes(50), id);
+
+        // ciphertext in the middle of a larger frame buffer
+        byte[] frame = new byte[ct.length + 20];
+        System.arraycopy(ct, 0, frame, 7, ct.length);
+        assertArrayEquals(bytes(50), CryptoUtil.decrypt(frame, 7, ct.length, id));
+    }
+
+    @Test
+    public void byteBufferEncryptThenDecryptInPlace() throws Exception {
+        long id = nextId++;
+        byte[] plain = bytes(120);
+
+        ByteBuffer out = ByteBuffer.allocate(plain.length + CryptoUtil.OVERHEAD + 5);
+        out.position(5);   // behind a header the caller already wrote
+        int n = CryptoUtil.encrypt(ByteBuffer.wrap(plain), out, id);
+        assertEquals(plain.length + CryptoUtil.OVERHEAD, n);
+        assertEquals(out.capacity(), out.position());
+
+        byte[] wire = Arrays.copyOfRange(out.array(), 5, 5 + n);
+        assertArrayEquals(plain, legacyDecrypt(wire, id));
+
+        // in place: the plaintext overwrites the ciphertext's own array
+        byte[] buf = wire.clone();
+        ByteBuffer in = ByteBuffer.wrap(buf);
+        ByteBuffer dst = ByteBuffer.wrap(buf);
+        int m = CryptoUtil.decrypt(in, dst, id);
+        assertEquals(plain.length, m);
+        assertArrayEquals(plain, Arrays.copyOf(buf, m));
+        assertEquals(buf.length, in.position());
+
+        // the same from a legacy sender
+        byte[] old = legacyEncrypt(plain, id);
+        ByteBuffer oldIn = ByteBuffer.wrap(old);
+        assertEquals(plain.length, CryptoUtil.decrypt(oldIn, ByteBuffer.wrap(old), id));
+        assertArrayEquals(plain, Arrays.copyOf(old, plain.length));
+    }
+
+    @Test
+    public void compactAndFullFormsAreToldApartByLength() throws Exception {
+        // 14-byte compact: 26 bytes; empty full form: 28
+        byte[] compact = CryptoUtil.encryptCompact(bytes(CryptoUtil.COMPACT_MAX_PLAINTEXT), nextId++);
+        byte[] full = CryptoUtil.encrypt(new byte[0], nextId++);
+        assertTrue(CryptoUtil.isCompact(compact));
+        assertFalse(CryptoUtil.isCompact(full));
+        assertFalse(CryptoUtil.isCompact(null));
+    }
+
+    @Test
+    public void tamperedFullFormFails() throws Exception {
+        long id = nextId++;
+        byte[] ct = CryptoUtil.encrypt(bytes(64), id);
+
+        for (int i : new int[] { 0, 12, ct.length - 1 }) {   // IV, ciphertext, tag
+            byte[] bad = ct.clone();
+            bad[i] ^= 0x40;
+            try {
+                CryptoUtil.decrypt(bad, id);
+                fail("tampered byte " + i + " accepted");
+            } catch (AEADBadTagException expected) {
+            }
+        }
+
+        try {
+            CryptoUtil.decrypt(ct, id + 1);
+            fail("wrong id accepted");
+        } catch (AEADBadTagException expected) {
+        }
+
+        byte[] bad = ct.clone();
+        bad[bad.length - 1] ^= 1;
+        try {
+            CryptoUtil.decrypt(ByteBuffer.wrap(bad), ByteBuffer.allocate(bad.length), id);
+            fail("tampered tag accepted in place");
+        } catch (AEADBadTagException expected) {
+        }
+
+        // the engine is still usable after a failure
+        assertArrayEquals(bytes(64), CryptoUtil.decrypt(ct, id));
+    }
+}
@@ -0,0 +1,147 @@
+package com.example.nova.ble;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+public class IdDigestTest {
+
+    private static long[] randomIds(Random r, int n) {
+        long[] ids = new long[n];
+        for (int i = 0; i < n; i++) ids[i] = r.nextLong();
+        return ids;
+    }
+
+    private static IdDigest digestOf(long[] ids, int salt) {
+        IdDigest d = IdDigest.forIds(ids.length, salt);
+        for (long id : ids) d.add(id);
+        return d;
+    }
+
+    @Test
+    public void requestRoundTrip() {
+        long[] ids = randomIds(new Random(1), 120);
+        IdDigest d = digestOf(ids, 0xCAFE);
+
+        byte[] req = d.toRequest(IdDigest.HEADER_LEN + IdDigest.MAX_BITS_BYTES);
+        assertTrue(IdDigest.isRequest(req));
+        assertEquals(IdDigest.REQUEST_DIGEST, req[0]);
+
+        IdDigest parsed = IdDigest.parse(req);
+        assertNotNull(parsed);
+        assertTrue(Arrays.equals(req, parsed.toRequest(req.length)));
+        for (long id : ids) assertTrue(parsed.mightContain(id));
+    }
+
+    @Test
+    public void foldedRequestKeepsEveryId() {
+        long[] ids = randomIds(new Random(2), 200);
+        IdDigest d = digestOf(ids, 7);
+
+        // a 23-byte MTU leaves 20 for the write: folded down to the 8-byte minimum
+        byte[] small = d.toRequest(20);
+        assertEquals(IdDigest.HEADER_LEN + 8, small.length);
+        byte[] refit = IdDigest.fit(d.toRequest(1000), 100);
+        assertTrue(refit.length <= 100);
+
+        for (byte[] req : new byte[][] { small, refit }) {
+            IdDigest parsed = IdDigest.parse(req);
+            for (long id : ids) assertTrue(parsed.mightContain(id));
+        }
+    }
+
+    @Test
+    public void malformedRequestsAreRefused() {
+        byte[] req = digestOf(new long[] { 1, 2, 3 }, 1).toRequest(1000);
+
+        assertNull(IdDigest.parse(null));
+        assertNull(IdDigest.parse(Arrays.copyOf(req, req.length - 1)));   // bits not a power of two
+        byte[] badK = req.clone();
+        badK[1] = 0;
+        assertNull(IdDigest.parse(badK));
+        byte[] notDigest = req.clone();
+        notDigest[0] = ChunkFrame.REQUEST_FRAMED;
+        assertFalse(IdDigest.isRequest(notDigest));
+    }
+
+    @Test
+    public void falsePositiveRateAtTheConfiguredSize() {
+        Random r = new Random(3);
+        // ~10 bits per id up to the 256-byte cap (≈200 ids)
+        for (int n : new int[] { 20, 100, 200 }) {
+            long[] held = randomIds(r, n);
+            IdDigest d = digestOf(held, r.nextInt());
+
+            int trials = 100_000, hits = 0;
+            for (int i = 0; i < trials; i++)
+                if (d.mightContain(r.nextLong())) hits++;
+
+            double rate = (double) hits / trials;
+            assertTrue(n + " ids: false positives " + rate, rate < 0.02);
+        }
+    }
+
+    @Test
+    public void offersRoundTrip() {
+        List<IdDigest.Offer> offers = new ArrayList<>();
+        offers.add(new IdDigest.Offer(-1L, 2));
+        offers.add(new IdDigest.Offer(42, 0));
+
+        List<IdDigest.Offer> back = IdDigest.decodeOffers(IdDigest.encodeOffers(offers));
+        assertEquals(2, back.size());
+        assertEquals(-1L, back.get(0).id);
+        assertEquals(2, back.get(0).priority);
+        assertEquals(42, back.get(1).id);
+
+        assertEquals(0, IdDigest.decodeOffers(IdDigest.encodeOffers(new ArrayList<IdDigest.Offer>())).size());
+        byte[] enc = IdDigest.encodeOffers(offers);
+        assertNull(IdDigest.decodeOffers(Arrays.copyOf(enc, enc.length - 1)));
+    }
+
+    @Test
+    public void syncRequestAndOffersThroughChunkFrames() {
+        Random r = new Random(4);
+        long[] shared = randomIds(r, 80);
+        long[] serverOnly = randomIds(r, 40);
+
+        // client: digest of what it holds, written in one request
+        byte[] req = digestOf(shared, r.nextInt()).toRequest(IdDigest.HEADER_LEN + IdDigest.MAX_BITS_BYTES);
+
+        // server: offers for held ids the filter lacks (as HopManager.answerDigest)
+        IdDigest digest = IdDigest.parse(req);
+        List<IdDigest.Offer> offers = new ArrayList<>();
+        for (long id : shared) if (!digest.mightContain(id)) offers.add(new IdDigest.Offer(id, 1));
+        for (long id : serverOnly) if (!digest.mightContain(id)) offers.add(new IdDigest.Offer(id, 1));
+        assertTrue("offers " + offers.size(), offers.size() >= serverOnly.length - 2);
+
+        // framed under SYNC_ID at a small notification size: several frames
+        List<byte[]> frames = ChunkFrame.split(ChunkFrame.SYNC_ID, IdDigest.encodeOffers(offers), 20);
+        assertTrue(frames.size() > 1);
+
+        ChunkAssembler a = new ChunkAssembler(ChunkFrame.SYNC_ID);
+        // a push for another id on the same link does not disturb it
+        assertEquals(ChunkAssembler.Result.IGNORED, a.accept(ChunkFrame.split(7, new byte[] { 1 }, 20).get(0)));
+        for (int i = 0; i < frames.size(); i++) {
+            ChunkAssembler.Result res = a.accept(frames.get(i));
+            assertEquals(i == frames.size() - 1 ? ChunkAssembler.Result.COMPLETE : ChunkAssembler.Result.INCOMPLETE, res);
+        }
+
+        List<IdDigest.Offer> got = IdDigest.decodeOffers(a.payload());
+        assertNotNull(got);
+        Set<Long> gotIds = new HashSet<>();
+        for (IdDigest.Offer o : got) gotIds.add(o.id);
+        for (long id : shared) assertFalse("shared id offered", gotIds.contains(id));
+        assertEquals(offers.size(), gotIds.size());
+    }
+}
@@ -0,0 +1,176 @@
+package com.example.nova.ble;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class PayloadLogTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    // record header: len | crc | id | expiresAt | priority | hop | flags
+    private static final int HEADER_BYTES = 27;
+    private static final int SEGMENT = 4096;
+    private static final long FOREVER = Long.MAX_VALUE;
+
+    private static byte[] cipher(long id, int len) {
+        byte[] b = new byte[len];
+        for (int i = 0; i < len; i++) b[i] = (byte) (id * 31 + i + 1);
+        return b;
+    }
+
+    private static List<Long> ids(List<PayloadLog.Record> records) {
+        List<Long> out = new ArrayList<>();
+        for (PayloadLog.Record r : records) out.add(r.id);
+        return out;
+    }
+
+    private static File[] segments(File dir) {
+        return dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File d, String name) {
+                return name.endsWith(".seg");
+            }
+        });
+    }
+
+    private static File onlySegment(File dir) {
+        File[] segs = segments(dir);
+        assertEquals(1, segs.length);
+        return segs[0];
+    }
+
+    @Test
+    public void reopenRestoresRecordsAndRelayFlag() throws IOException {
+        File dir = tmp.newFolder();
+        PayloadLog log = new PayloadLog(dir, SEGMENT, 4);
+        assertTrue(log.append(1, 2, 3, FOREVER, false, cipher(1, 10)));
+        assertTrue(log.append(2, 1, 0, FOREVER, false, cipher(2, 20)));
+        log.markRelayed(2);
+        log.close();
+
+        PayloadLog again = new PayloadLog(dir, SEGMENT, 4);
+        List<PayloadLog.Record> live = again.live(0);
+        assertEquals(Arrays.asList(1L, 2L), ids(live));
+
+        PayloadLog.Record r = live.get(0);
+        assertEquals(2, r.priority);
+        assertEquals(3, r.hop);
+        assertArrayEquals(cipher(1, 10), r.ciphertext);
+        assertTrue(live.get(1).relayed);
+        again.close();
+    }
+
+    @Test
+    public void tornTailKeepsExactlyTheCompleteRecords() throws IOException {
+        int len = 40;
+        int record = HEADER_BYTES + len;
+        int lastAt = 2 * record;
+
+        // cut inside len, inside crc, inside the fields, at the payload, mid payload, last byte
+        for (int cut : new int[] { 1, 4, 6, 20, HEADER_BYTES, HEADER_BYTES + len / 2, record - 1 }) {
+            for (boolean shorten : new boolean[] { true, false }) {
+                File dir = tmp.newFolder();
+                PayloadLog log = new PayloadLog(dir, SEGMENT, 4);
+                for (long id = 1; id <= 3; id++) log.append(id, 1, 0, FOREVER, false, cipher(id, len));
+                log.close();
+
+                File seg = onlySegment(dir);
+                try (RandomAccessFile raf = new RandomAccessFile(seg, "rw")) {
+                    if (shorten) {
+                        // the file ends inside the last record
+                        raf.setLength(lastAt + cut);
+                    } else {
+                        // the pages from the cut on never reached storage
+                        raf.seek(lastAt + cut);
+                        raf.write(new byte[record - cut]);
+                    }
+                }
+
+                String what = (shorten ? "shortened" : "zeroed") + " at +" + cut;
+                PayloadLog again = new PayloadLog(dir, SEGMENT, 4);
+                assertEquals(what, 2, again.recovered());
+                List<PayloadLog.Record> live = again.live(0);
+                assertEquals(what, Arrays.asList(1L, 2L), ids(live));
+                assertArrayEquals(what, cipher(2, len), live.get(1).ciphertext);
+
+                // appends carry on after the recovered records
+                assertTrue(what, again.append(4, 1, 0, FOREVER, false, cipher(4, len)));
+                again.close();
+
+                PayloadLog third = new PayloadLog(dir, SEGMENT, 4);
+                assertEquals(what, Arrays.asList(1L, 2L, 4L), ids(third.live(0)));
+                third.close();
+            }
+        }
+    }
+
+    @Test
+    public void compactThenReopen() throws IOException {
+        File dir = tmp.newFolder();
+        PayloadLog log = new PayloadLog(dir, SEGMENT, 8);
+
+        // 1000-byte ciphertexts: three records per segment
+        int len = 1000;
+        List<Long> kept = new ArrayList<>();
+        for (long id = 1; id <= 10; id++) {
+            // ids 1..6 (segments 0 and 1) mostly expire; 2 and 6 stay
+            boolean keep = id > 6 || id == 2 || id == 6;
+            log.append(id, 1, 0, keep ? FOREVER : 100, false, cipher(id, len));
+            if (keep) kept.add(id);
+        }
+        assertEquals(4, segments(dir).length);
+
+        log.compact(200);
+        assertEquals(kept.size(), log.size());
+        log.close();
+
+        PayloadLog again = new PayloadLog(dir, SEGMENT, 8);
+        List<PayloadLog.Record> live = again.live(200);
+        List<Long> ids = ids(live);
+        assertEquals(kept.size(), ids.size());
+        assertTrue(ids + " vs " + kept, ids.containsAll(kept));
+        for (PayloadLog.Record r : live) assertArrayEquals("id " + r.id, cipher(r.id, len), r.ciphertext);
+
+        // the sparse sealed segments are gone, their survivors rewritten to the head
+        assertTrue("segments " + segments(dir).length, segments(dir).length < 4);
+        again.close();
+    }
+
+    @Test
+    public void secondWriterIsRefusedUntilTheFirstCloses() throws IOException {
+        File dir = tmp.newFolder();
+        PayloadLog first = new PayloadLog(dir, SEGMENT, 4);
+        assertTrue(first.append(1, 1, 0, FOREVER, false, cipher(1, 10)));
+
+        try {
+            new PayloadLog(dir, SEGMENT, 4);
+            fail("second writer opened a locked log");
+        } catch (PayloadLog.InUseException expected) {
+        }
+
+        // the refused open left the owner's record alone
+        assertEquals(Arrays.asList(1L), ids(first.live(0)));
+        first.close();
+
+        PayloadLog second = new PayloadLog(dir, SEGMENT, 4);
+        assertEquals(Arrays.asList(1L), ids(second.live(0)));
+        assertFalse(second.append(1, 1, 0, FOREVER, false, cipher(1, 10)));
+        second.close();
+    }
+}
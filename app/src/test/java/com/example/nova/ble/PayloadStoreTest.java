@@ -0,0 +1,110 @@
+package com.example.nova.ble;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.example.nova.model.MeshMessage;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class PayloadStoreTest {
+
+    // HopManager's store: 10 min default, 5 s tick → 128 slots, a 640 s wheel
+    private static final long TTL = 10 * 60 * 1000L;
+    private static final long TICK = 5_000;
+    private static final long SOS_TTL = 30 * 60 * 1000L;
+
+    private static final byte[] CT = { 1, 2, 3 };
+
+    @Test
+    public void storedThenRelayedOnce() {
+        PayloadStore s = new PayloadStore(TTL, TICK, 0);
+
+        assertFalse(s.markRelayed(1));   // unknown id
+        s.store(1, CT, 0);
+        assertEquals(PayloadStore.State.STORED, s.get(1).state());
+
+        assertTrue(s.markRelayed(1));
+        assertEquals(PayloadStore.State.RELAYED, s.get(1).state());
+        assertFalse(s.markRelayed(1));
+
+        // storing again (heard inline) keeps the relay decision
+        s.store(1, CT, 10);
+        assertEquals(PayloadStore.State.RELAYED, s.get(1).state());
+    }
+
+    @Test
+    public void beginFetchOutcomes() {
+        PayloadStore s = new PayloadStore(TTL, TICK, 0);
+
+        assertEquals(PayloadStore.FetchStart.STARTED, s.beginFetch(1, 2, 0));
+        assertEquals(PayloadStore.State.FETCHING, s.get(1).state());
+        assertEquals(PayloadStore.FetchStart.IN_PROGRESS, s.beginFetch(1, 2, 1));
+
+        assertEquals(1, s.fetchFailed(1));
+        assertEquals(PayloadStore.State.ABSENT, s.get(1).state());
+        assertEquals(PayloadStore.FetchStart.STARTED, s.beginFetch(1, 2, 2));
+        assertEquals(2, s.fetchFailed(1));
+        assertEquals(PayloadStore.FetchStart.EXHAUSTED, s.beginFetch(1, 2, 3));
+
+        // a payload arriving another way ends the retries
+        s.store(1, CT, 4);
+        assertEquals(0, s.get(1).retries());
+        assertEquals(PayloadStore.FetchStart.HAVE_PAYLOAD, s.beginFetch(1, 2, 5));
+        assertEquals(Integer.MAX_VALUE, s.fetchFailed(99));
+    }
+
+    @Test
+    public void refreshedEntryIsRescheduledNotExpired() {
+        PayloadStore s = new PayloadStore(TTL, TICK, 0);
+        s.store(1, CT, 0);
+        s.store(2, CT, 0);
+
+        // 1 is refreshed halfway: its old slot fires, it moves to the new one
+        s.store(1, CT, TTL / 2);
+
+        assertEquals(Collections.singletonList(2L), expireUpTo(s, 0, TTL + TICK));
+        assertNotNull(s.ciphertext(1));
+
+        assertEquals(Collections.singletonList(1L), expireUpTo(s, TTL + TICK, TTL / 2 + TTL + TICK));
+        assertNull(s.get(1));
+        assertEquals(0, s.size());
+    }
+
+    @Test
+    public void ttlLongerThanTheWheelSpan() {
+        PayloadStore s = new PayloadStore(TTL, TICK, 0);
+        s.store(1, CT, 0, SOS_TTL, MeshMessage.PRIORITY_SOS);
+        s.store(2, CT, 0);
+
+        // the SOS entry's slot comes round twice before it is due
+        assertEquals(Collections.singletonList(2L), expireUpTo(s, 0, SOS_TTL - TICK));
+        assertEquals(MeshMessage.PRIORITY_SOS, s.get(1).priority());
+
+        assertEquals(Collections.singletonList(1L), expireUpTo(s, SOS_TTL - TICK, SOS_TTL + TICK));
+    }
+
+    @Test
+    public void stallVisitsEveryBucketOnce() {
+        PayloadStore s = new PayloadStore(TTL, TICK, 0);
+        for (long id = 1; id <= 100; id++) s.store(id, CT, id * 1_000);
+
+        // one call after a long stall (device asleep) clears everything due
+        assertEquals(100, s.expire(10 * TTL).size());
+        assertEquals(0, s.size());
+    }
+
+    /** Advance the wheel tick by tick over (from, to]; @return ids removed. */
+    private static List<Long> expireUpTo(PayloadStore s, long from, long to) {
+        List<Long> out = new ArrayList<>();
+        for (long t = from + TICK; t <= to; t += TICK) out.addAll(s.expire(t));
+        return out;
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.nova.ble;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ScanIngestQueueTest {
+
+    /** Collects what each slot held while the sink had it. */
+    private static final class Recorder implements ScanIngestQueue.Sink<Object> {
+        final List<String> addresses = new ArrayList<>();
+        final List<byte[]> headers = new ArrayList<>();
+        final List<byte[]> exts = new ArrayList<>();
+        final List<ScanIngestQueue.Slot<Object>> slots = new ArrayList<>();
+
+        @Override
+        public void accept(ScanIngestQueue.Slot<Object> slot) {
+            addresses.add(slot.address());
+            headers.add(slot.field(ScanIngestQueue.FIELD_HEADER));
+            exts.add(slot.field(ScanIngestQueue.FIELD_EXT));
+            slots.add(slot);
+        }
+    }
+
+    @Test
+    public void offerCopiesFields() {
+        ScanIngestQueue<Object> q = new ScanIngestQueue<>(4);
+        byte[] header = { 1, 2, 3 };
+        assertTrue(q.offer("dev", "A", -60, 0, header, null, null, null, null));
+
+        // the stack may reuse its buffers once the callback returns
+        header[0] = 9;
+
+        Recorder r = new Recorder();
+        assertEquals(1, q.drain(r, 8, 0));
+        assertArrayEquals(new byte[] { 1, 2, 3 }, r.headers.get(0));
+        assertNull(r.exts.get(0));
+    }
+
+    @Test
+    public void longFieldGrowsItsBuffer() {
+        ScanIngestQueue<Object> q = new ScanIngestQueue<>(2);
+        byte[] ext = new byte[400];
+        ext[399] = 7;
+        q.offer("dev", "A", -60, 0, null, null, null, ext, null);
+
+        Recorder r = new Recorder();
+        q.drain(r, 8, 0);
+        assertArrayEquals(ext, r.exts.get(0));
+    }
+
+    @Test
+    public void fullRingCoalescesSameAdvertiserAndDropsOthers() {
+        ScanIngestQueue<Object> q = new ScanIngestQueue<>(2);
+        assertTrue(q.offer("dev", "A", -60, 0, new byte[] { 1 }, null, null, null, null));
+        assertTrue(q.offer("dev", "B", -60, 0, new byte[] { 2 }, null, null, null, null));
+
+        assertTrue(q.offer("dev", "B", -50, 1, new byte[] { 3 }, null, null, null, null));
+        assertFalse(q.offer("dev", "C", -60, 1, new byte[] { 4 }, null, null, null, null));
+        assertEquals(1, q.coalesced());
+        assertEquals(1, q.dropped());
+
+        Recorder r = new Recorder();
+        assertEquals(2, q.drain(r, 8, 1));
+        assertEquals("A", r.addresses.get(0));
+        assertEquals("B", r.addresses.get(1));
+        assertArrayEquals(new byte[] { 3 }, r.headers.get(1));
+    }
+
+    @Test
+    public void drainedSlotLetsTheDeviceGo() {
+        ScanIngestQueue<Object> q = new ScanIngestQueue<>(2);
+        q.offer(new Object(), "A", -60, 0, new byte[] { 1 }, null, null, null, null);
+
+        Recorder r = new Recorder();
+        q.drain(r, 8, 0);
+        assertNull(r.slots.get(0).device());
+        assertEquals(0, q.size());
+    }
+}
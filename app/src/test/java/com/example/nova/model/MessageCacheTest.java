@@ -0,0 +1,88 @@
+package com.example.nova.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class MessageCacheTest {
+
+    private static final long TTL = 1_000;
+
+    @Test
+    public void duplicateIsRejected() {
+        MessageCache c = new MessageCache(64, TTL);
+
+        assertTrue(c.putIfAbsent(42, 0));
+        assertFalse(c.putIfAbsent(42, 10));
+        // id 0 is the table's EMPTY marker, tracked on the side
+        assertTrue(c.putIfAbsent(0, 10));
+        assertFalse(c.putIfAbsent(0, 20));
+        assertEquals(2, c.size());
+    }
+
+    @Test
+    public void duplicateSurvivesOneRotationByAge() {
+        MessageCache c = new MessageCache(64, TTL);
+        c.putIfAbsent(42, 0);
+
+        // first rotation: 42 moves to the previous generation, still a duplicate
+        assertTrue(c.putIfAbsent(7, TTL));
+        assertFalse(c.putIfAbsent(42, TTL + 1));
+        assertTrue(c.contains(42));
+
+        // second rotation drops it
+        assertTrue(c.putIfAbsent(8, 2 * TTL + 1));
+        assertFalse(c.contains(42));
+        assertTrue(c.putIfAbsent(42, 2 * TTL + 2));
+    }
+
+    @Test
+    public void duplicateSurvivesOneRotationBySize() {
+        MessageCache c = new MessageCache(64, TTL);
+        for (long id = 1; id <= 64; id++) assertTrue(c.putIfAbsent(id, 0));
+
+        // the 65th id finds the current table full and swaps generations
+        MessageCache.Generations before = c.gens.get();
+        assertTrue(c.putIfAbsent(65, 0));
+        assertNotSame(before, c.gens.get());
+        assertSame(before.current, c.gens.get().previous);
+
+        for (long id = 1; id <= 65; id++) assertFalse("id " + id, c.putIfAbsent(id, 0));
+    }
+
+    @Test
+    public void fullTableReportsFull() {
+        MessageCache.Table t = new MessageCache.Table(64, 0);
+        int cap = t.slots.length();
+        for (long id = 1; id <= cap; id++) assertEquals(MessageCache.Table.ADDED, t.add(id));
+
+        assertEquals(MessageCache.Table.PRESENT, t.add(1));
+        assertEquals(MessageCache.Table.FULL, t.add(cap + 1));
+        assertFalse(t.contains(cap + 1));
+    }
+
+    @Test
+    public void saturatedTableRotatesInsteadOfReportingUnseen() {
+        MessageCache c = new MessageCache(64, TTL);
+        c.putIfAbsent(1, 0);
+
+        // what inserts racing past maxSize leave behind: every slot taken, count still low
+        MessageCache.Table cur = c.gens.get().current;
+        long filler = 0;
+        for (int i = 0; i < cur.slots.length(); i++)
+            if (cur.slots.get(i) == 0) cur.slots.set(i, filler = 1_000 + i);
+
+        assertTrue(c.putIfAbsent(42, 1));
+        assertNotSame(cur, c.gens.get().current);
+        // recorded, not just waved through
+        assertTrue(c.contains(42));
+        assertFalse(c.putIfAbsent(42, 2));
+        // the saturated table's ids are still duplicates from the previous generation
+        assertFalse(c.putIfAbsent(1, 2));
+        assertFalse(c.putIfAbsent(filler, 2));
+    }
+}
@@ -0,0 +1,268 @@
+package com.example.nova.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.zip.Deflater;
+
+public class PayloadCodecTest {
+
+    private static final long SENT_AT = 1_700_000_123_456L;
+
+    private static MeshMessage decode(byte[] plain, int expectType) {
+        MeshMessage m = new MeshMessage();
+        assertEquals(expectType, PayloadCodec.decodeInto(m, plain));
+        return m;
+    }
+
+    private static String stamp(long ms) {
+        return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US).format(new Date(ms / 1000 * 1000));
+    }
+
+    // ---------------------------------------------------------
+    // ROUND TRIP
+    // ---------------------------------------------------------
+
+    @Test
+    public void roundTrip() {
+        byte[] plain = PayloadCodec.encode(PayloadCodec.TYPE_CHAT, "alice", "hello mesh", SENT_AT);
+        assertTrue(PayloadCodec.isBinary(plain));
+
+        MeshMessage m = decode(plain, PayloadCodec.TYPE_CHAT);
+        assertEquals("alice", m.sender);
+        assertEquals("hello mesh", m.payload);
+        // seconds only: milliseconds are not sent
+        assertEquals(stamp(SENT_AT), m.timestamp);
+    }
+
+    @Test
+    public void roundTripEmptySenderAndText() {
+        for (int type : new int[] { PayloadCodec.TYPE_CHAT, PayloadCodec.TYPE_SOS, PayloadCodec.TYPE_PRESENCE }) {
+            MeshMessage m = decode(PayloadCodec.encode(type, "", "", SENT_AT), type);
+            assertEquals("", m.sender);
+            assertEquals("", m.payload);
+        }
+
+        // null reads as empty
+        MeshMessage m = decode(PayloadCodec.encode(PayloadCodec.TYPE_CHAT, null, null, 0), PayloadCodec.TYPE_CHAT);
+        assertEquals("", m.sender);
+        assertEquals("", m.payload);
+    }
+
+    @Test
+    public void roundTripMultiByteUtf8() {
+        String sender = "Zoë 🚑";
+        // lengths are in bytes: 200 × 3-byte chars needs a two-byte varint
+        StringBuilder sb = new StringBuilder("需要帮助 — ");
+        for (int i = 0; i < 200; i++) sb.append('水');
+        String text = sb.toString();
+
+        byte[] plain = PayloadCodec.encode(PayloadCodec.TYPE_SOS, sender, text, SENT_AT);
+        MeshMessage m = decode(plain, PayloadCodec.TYPE_SOS);
+        assertEquals(sender, m.sender);
+        assertEquals(text, m.payload);
+    }
+
+    @Test
+    public void typeForPriority() {
+        assertEquals(PayloadCodec.TYPE_SOS, PayloadCodec.typeFor(MeshMessage.PRIORITY_SOS));
+        assertEquals(PayloadCodec.TYPE_CHAT, PayloadCodec.typeFor(MeshMessage.PRIORITY_CHAT));
+        assertEquals(PayloadCodec.TYPE_PRESENCE, PayloadCodec.typeFor(MeshMessage.PRIORITY_PRESENCE));
+    }
+
+    // ---------------------------------------------------------
+    // OLDER PEERS
+    // ---------------------------------------------------------
+
+    @Test
+    public void jsonFromOlderPeerGoesToParseJsonInto() {
+        byte[] json = MeshMessage.buildJsonPayload("bob", "status OK", "2024-01-02 03:04:05");
+        assertFalse(PayloadCodec.isBinary(json));
+
+        MeshMessage m = decode(json, PayloadCodec.TYPE_JSON);
+        assertEquals("bob", m.sender);
+        assertEquals("status OK", m.payload);
+        assertEquals("2024-01-02 03:04:05", m.timestamp);
+    }
+
+    // ---------------------------------------------------------
+    // MALFORMED
+    // ---------------------------------------------------------
+
+    @Test
+    public void truncatedPayloadIsInvalid() {
+        byte[] plain = PayloadCodec.encode(PayloadCodec.TYPE_CHAT, "alice", "hello", SENT_AT);
+
+        // every proper prefix that still starts with the codec byte
+        for (int n = 1; n < plain.length; n++) {
+            MeshMessage m = decode(Arrays.copyOf(plain, n), PayloadCodec.TYPE_INVALID);
+            assertEquals("Unknown", m.sender);
+            assertEquals("", m.payload);
+        }
+    }
+
+    @Test
+    public void lengthMismatchIsInvalid() {
+        byte[] plain = PayloadCodec.encode(PayloadCodec.TYPE_CHAT, "alice", "hello", SENT_AT);
+
+        // trailing garbage after the text
+        decode(Arrays.copyOf(plain, plain.length + 1), PayloadCodec.TYPE_INVALID);
+
+        // sender length pointing past the end
+        byte[] b = plain.clone();
+        int senderLenAt = 2 + PayloadCodec.varintLen(SENT_AT / 1000);
+        b[senderLenAt] = 0x7F;
+        decode(b, PayloadCodec.TYPE_INVALID);
+    }
+
+    @Test
+    public void overlongVarintIsInvalid() {
+        // sentAt as ten continuation bytes: longer than any 63-bit value needs
+        byte[] b = new byte[2 + 10 + 2];
+        b[0] = (byte) 0xC1;
+        b[1] = PayloadCodec.TYPE_CHAT;
+        for (int i = 0; i < 10; i++) b[2 + i] = (byte) 0x80;
+        decode(b, PayloadCodec.TYPE_INVALID);
+
+        // text length that never terminates
+        byte[] c = PayloadCodec.encode(PayloadCodec.TYPE_CHAT, "a", "", SENT_AT);
+        c[c.length - 1] = (byte) 0x80;
+        decode(c, PayloadCodec.TYPE_INVALID);
+    }
+
+    @Test
+    public void varintBoundaries() {
+        long[] values = { 0, 1, 127, 128, 16_383, 16_384, SENT_AT / 1000, Long.MAX_VALUE };
+        for (long v : values) {
+            byte[] b = new byte[10];
+            int end = PayloadCodec.putVarint(b, 0, v);
+            assertEquals("len of " + v, PayloadCodec.varintLen(v), end);
+
+            int[] pos = { 0 };
+            assertEquals(v, PayloadCodec.varint(b, pos));
+            assertEquals(end, pos[0]);
+        }
+
+        // a byte short of the end
+        byte[] b = new byte[2];
+        PayloadCodec.putVarint(b, 0, 300);
+        assertEquals(-1, PayloadCodec.varint(Arrays.copyOf(b, 1), new int[] { 0 }));
+    }
+
+    // ---------------------------------------------------------
+    // DEFLATE
+    // ---------------------------------------------------------
+
+    private static final String SOS_TEXT =
+            "SOS ALERT! need water food medical help injured trapped SOS Location: Lat=12.5 Lon=-3.25";
+
+    private static boolean deflated(byte[] plain) {
+        return (plain[1] & 0x80) != 0;
+    }
+
+    /** A deflated payload of {@code text} whatever its size (deflate() itself refuses nothing). */
+    private static byte[] deflateRaw(String text) {
+        byte[] enc = PayloadCodec.encode(PayloadCodec.TYPE_CHAT, "a", text, SENT_AT);
+        Deflater d = new Deflater(Deflater.BEST_COMPRESSION, true);
+        d.setDictionary(PayloadCodec.DICTIONARY);
+        d.setInput(enc, 2, enc.length - 2);
+        d.finish();
+        byte[] out = new byte[enc.length + 64];
+        out[0] = enc[0];
+        out[1] = (byte) (enc[1] | 0x80);
+        int n = 2;
+        while (!d.finished()) n += d.deflate(out, n, out.length - n);
+        d.end();
+        return Arrays.copyOf(out, n);
+    }
+
+    @Test
+    public void deflateRoundTrip() {
+        byte[] plain = PayloadCodec.encode(PayloadCodec.TYPE_SOS, "ana", SOS_TEXT, SENT_AT);
+        byte[] packed = PayloadCodec.deflate(plain);
+
+        assertTrue(packed.length + " vs " + plain.length, packed.length < plain.length);
+        assertTrue(deflated(packed));
+        assertTrue(PayloadCodec.isBinary(packed));
+
+        MeshMessage m = decode(packed, PayloadCodec.TYPE_SOS);
+        assertEquals("ana", m.sender);
+        assertEquals(SOS_TEXT, m.payload);
+        assertEquals(stamp(SENT_AT), m.timestamp);
+    }
+
+    @Test
+    public void payloadThatDoesNotShrinkIsReturnedUnchanged() {
+        byte[] shortText = PayloadCodec.encode(PayloadCodec.TYPE_CHAT, "a", "hi", SENT_AT);
+        assertSame(shortText, PayloadCodec.deflate(shortText));
+
+        byte[] noRepeats = PayloadCodec.encode(PayloadCodec.TYPE_CHAT, "k", "Zq7#xP!mV2", SENT_AT);
+        assertSame(noRepeats, PayloadCodec.deflate(noRepeats));
+
+        // not the codec form, or deflated already
+        byte[] json = MeshMessage.buildJsonPayload("bob", SOS_TEXT, "");
+        assertSame(json, PayloadCodec.deflate(json));
+        byte[] once = PayloadCodec.deflate(PayloadCodec.encode(PayloadCodec.TYPE_SOS, "ana", SOS_TEXT, SENT_AT));
+        assertSame(once, PayloadCodec.deflate(once));
+    }
+
+    @Test
+    public void corruptStreamIsInvalid() {
+        // BTYPE 11 (reserved) in the first block header
+        decode(new byte[] { (byte) 0xC1, (byte) 0x81, 0x07, 0x00, 0x00 }, PayloadCodec.TYPE_INVALID);
+        // flag set, no stream at all
+        decode(new byte[] { (byte) 0xC1, (byte) 0x81 }, PayloadCodec.TYPE_INVALID);
+    }
+
+    @Test
+    public void streamNeedingMoreInputIsInvalid() {
+        byte[] packed = PayloadCodec.deflate(PayloadCodec.encode(PayloadCodec.TYPE_SOS, "ana", SOS_TEXT, SENT_AT));
+        for (int n = 3; n < packed.length; n++)
+            decode(Arrays.copyOf(packed, n), PayloadCodec.TYPE_INVALID);
+    }
+
+    @Test
+    public void inflatingPastTheLimitIsRefused() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 6_000; i++) sb.append('a');
+        // under 8 KiB inflated: fine
+        assertEquals(sb.toString(), decode(deflateRaw(sb.toString()), PayloadCodec.TYPE_CHAT).payload);
+
+        for (int i = 0; i < 3_000; i++) sb.append('a');
+        // a few dozen bytes on the wire that would inflate to 9 KB
+        byte[] bomb = deflateRaw(sb.toString());
+        assertTrue(bomb.length < 100);
+        decode(bomb, PayloadCodec.TYPE_INVALID);
+    }
+
+    @Test
+    public void dictionaryIsPinned() {
+        // part of the v1 format: peers inflate with these exact bytes
+        assertEquals("need water food medical help injured trapped fire flood "
+                        + "I am safe. We are OK. Where are you? Coming now. "
+                        + "Need help at Location: Lat= Lon= SOS ALERT! SOS Location: Lat=",
+                new String(PayloadCodec.DICTIONARY, StandardCharsets.UTF_8));
+
+        // a stream deflated by a v1 sender still decodes
+        byte[] v1 = {
+                (byte) 0xC1, (byte) 0x82, (byte) 0x6B, (byte) 0x78, (byte) 0x74, (byte) 0x7E, (byte) 0x15,
+                (byte) 0x1B, (byte) 0x73, (byte) 0x62, (byte) 0x5E, (byte) 0x62, (byte) 0x04, (byte) 0x92,
+                (byte) 0xB2, (byte) 0x3C, (byte) 0x52, (byte) 0xDC, (byte) 0x8E, (byte) 0x69, (byte) 0xA6,
+                (byte) 0xA1, (byte) 0x91, (byte) 0x9E, (byte) 0x29, (byte) 0xD8, (byte) 0x6A, (byte) 0x5D,
+                (byte) 0x63, (byte) 0x3D, (byte) 0x23, (byte) 0x53, (byte) 0x00,
+        };
+        MeshMessage m = decode(v1, PayloadCodec.TYPE_SOS);
+        assertEquals("ana", m.sender);
+        assertEquals(SOS_TEXT, m.payload);
+        assertEquals(stamp(1_700_000_000_000L), m.timestamp);
+    }
+}
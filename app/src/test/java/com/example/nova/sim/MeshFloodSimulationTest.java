@@ -0,0 +1,417 @@
+package com.example.nova.sim;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.example.nova.ble.FetchScheduler;
+import com.example.nova.ble.HopManager;
+import com.example.nova.model.MeshMessage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Regression checks for the flood behaviour of HopManager
+ * (scheduleRebroadcast / MAX_HOPS) on simulated topologies.
+ */
+public class MeshFloodSimulationTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static SimConfig hall() {
+        return new SimConfig().nodes(150).area(250).range(60).loss(0.10).seed(7);
+    }
+
+    @Test
+    public void sosReachesConnectedNodes() {
+        MeshSimulation sim = new MeshSimulation(hall());
+
+        MeshMessage m = sim.send(0, "SOS");
+        assertNotNull(m);
+
+        sim.run(60_000);
+        SimReport r = sim.report(m.id);
+
+        assertTrue("coverage " + r.coverage(), r.coverage() >= 0.95);
+        // each node relays a given id at most once
+        assertTrue("adverts " + r.adverts, r.adverts <= sim.nodes().size());
+    }
+
+    @Test
+    public void sameSeedSameOutcome() {
+        MeshSimulation a = new MeshSimulation(hall());
+        MeshSimulation b = new MeshSimulation(hall());
+
+        MeshMessage ma = a.send(3, "status OK");
+        MeshMessage mb = b.send(3, "status OK");
+        a.run(60_000);
+        b.run(60_000);
+
+        SimReport ra = a.report(ma.id);
+        SimReport rb = b.report(mb.id);
+
+        assertEquals(ra.delivered, rb.delivered);
+        assertEquals(ra.adverts, rb.adverts);
+        assertEquals(ra.latencyP99Ms, rb.latencyP99Ms);
+    }
+
+    @Test
+    public void largeSparseCrowd() {
+        MeshSimulation sim = new MeshSimulation(
+                new SimConfig().nodes(500).area(600).range(70).loss(0.25).seed(11));
+
+        MeshMessage m = sim.send(0, "SOS");
+        sim.run(120_000);
+        SimReport r = sim.report(m.id);
+
+        assertTrue("coverage " + r.coverage(), r.coverage() >= 0.95);
+        assertTrue(r.adverts <= sim.nodes().size());
+        // a quarter of packets lost: most fetches still succeed first time
+        assertTrue("failures " + sim.metrics().fetchFailures() + "/" + sim.metrics().fetches(),
+                sim.metrics().fetchFailures() * 2 < sim.metrics().fetches());
+    }
+
+    @Test
+    public void backlogFromOneNeighbourSharesOneLink() {
+        // partition just healed: a neighbour holds many ids we have not seen
+        SimConfig cfg = new SimConfig().nodes(2).area(10).range(60).loss(0).seed(3);
+        MeshSimulation sim = new MeshSimulation(cfg);
+
+        int n = 30;
+        long[] ids = new long[n];
+        for (int i = 0; i < n; i++) ids[i] = sim.send(0, "backlog " + i).id;
+
+        // the reconnecting node's scan sees the whole backlog at once
+        SimNode holder = sim.nodes().get(0);
+        for (long id : ids) {
+            MeshMessage h = new MeshMessage();
+            h.id = id;
+            h.sourceAddress = holder.address;
+            sim.nodes().get(1).transport.deliverHeader(h);
+        }
+        sim.run(60_000);
+
+        long worst = 0;
+        for (long id : ids) {
+            SimReport r = sim.report(id);
+            assertEquals(1, r.delivered);
+            worst = Math.max(worst, r.latencyMaxMs);
+        }
+        // one fetch per id, none retried
+        assertEquals(n, sim.metrics().fetches());
+        // one connection setup, then batched writes on the pooled link
+        assertTrue("worst " + worst, worst < cfg.gattSetupMs + 2_000);
+    }
+
+    @Test
+    public void queuedHeadersSharePackedAdverts() {
+        SimConfig cfg = new SimConfig().nodes(2).area(10).range(60).loss(0).seed(5);
+        MeshSimulation sim = new MeshSimulation(cfg);
+
+        int n = 20;
+        long[] ids = new long[n];
+        for (int i = 0; i < n; i++) ids[i] = sim.send(0, "relay " + i).id;
+        sim.run(60_000);
+
+        long worst = 0;
+        for (long id : ids) {
+            SimReport r = sim.report(id);
+            assertEquals(1, r.delivered);
+            worst = Math.max(worst, r.latencyMaxMs);
+        }
+
+        // one session per header would need n × window just to get the last one on air
+        assertTrue("worst " + worst, worst < n * cfg.advertWindowMs);
+    }
+
+    @Test
+    public void extendedAdvertsCarrySmallPayloadsInline() {
+        MeshSimulation legacy = new MeshSimulation(hall());
+        MeshSimulation ext = new MeshSimulation(hall().extended(true));
+
+        // too long for the compact scan-response form, small enough for inline
+        String text = "SOS trapped 3rd floor east stairwell";
+        MeshMessage ml = legacy.send(0, text);
+        MeshMessage me = ext.send(0, text);
+        legacy.run(60_000);
+        ext.run(60_000);
+
+        SimReport rl = legacy.report(ml.id);
+        SimReport re = ext.report(me.id);
+
+        assertTrue("coverage " + re.coverage(), re.coverage() >= 0.95);
+        // fits inline: GATT only where the leading extended copy was lost
+        assertTrue("fetches " + ext.metrics().fetches() + " vs " + legacy.metrics().fetches(),
+                ext.metrics().fetches() * 10 < legacy.metrics().fetches());
+        assertTrue("p50 " + re.latencyP50Ms + " vs " + rl.latencyP50Ms,
+                re.latencyP50Ms * 2 < rl.latencyP50Ms);
+    }
+
+    @Test
+    public void legacyOnlyReceiversStillHearExtendedSenders() {
+        // half the fleet cannot scan extended adverts
+        MeshSimulation sim = new MeshSimulation(hall().extended(true).legacyOnly(0.5));
+        assertFalse(sim.nodes().get(0).isLegacyOnly());
+
+        MeshMessage m = sim.send(0, "SOS trapped 3rd floor east stairwell");
+        sim.run(60_000);
+        SimReport r = sim.report(m.id);
+
+        int legacyOnly = 0, legacyDelivered = 0;
+        for (SimNode n : sim.nodes()) {
+            if (!n.isLegacyOnly()) continue;
+            legacyOnly++;
+            if (sim.delivered(m.id, n.index)) legacyDelivered++;
+        }
+
+        assertTrue("legacy-only nodes " + legacyOnly, legacyOnly > 0);
+        assertTrue("coverage " + r.coverage(), r.coverage() >= 0.95);
+        // headers travel in the legacy advert every node sends; those nodes fetch over GATT
+        assertTrue("legacy-only delivered " + legacyDelivered + "/" + legacyOnly,
+                legacyDelivered >= 0.95 * legacyOnly);
+        assertTrue(sim.metrics().fetches() > 0);
+    }
+
+    @Test
+    public void shortMessagesRideTheScanResponse() {
+        MeshSimulation plain = new MeshSimulation(hall().scanResponse(false));
+        MeshSimulation sr = new MeshSimulation(hall());
+
+        MeshMessage mp = plain.send(0, "SOS");
+        MeshMessage ms = sr.send(0, "SOS");
+        plain.run(60_000);
+        sr.run(60_000);
+
+        SimReport rp = plain.report(mp.id);
+        SimReport rs = sr.report(ms.id);
+
+        assertTrue("coverage " + rs.coverage(), rs.coverage() >= 0.95);
+        // only nodes whose scan response was lost fall back to GATT
+        assertTrue(sr.metrics().fetches() * 4 < plain.metrics().fetches());
+        assertTrue(rs.latencyP50Ms * 2 < rp.latencyP50Ms);
+    }
+
+    @Test
+    public void denseVenueSuppressesRedundantRelays() {
+        // 200 phones in an 80 m room: almost everyone hears everyone
+        SimConfig venue = new SimConfig().nodes(200).area(80).range(60).loss(0.10).seed(5);
+
+        MeshSimulation flood = new MeshSimulation(
+                venue.rssiTiming(false).relaySuppression(0, HopManager.DEFAULT_RELAY_WINDOW_MS));
+        MeshSimulation trickle = new MeshSimulation(
+                new SimConfig().nodes(200).area(80).range(60).loss(0.10).seed(5).rssiTiming(false));
+
+        MeshMessage mf = flood.send(0, "SOS");
+        MeshMessage mt = trickle.send(0, "SOS");
+        flood.run(60_000);
+        trickle.run(60_000);
+
+        SimReport rf = flood.report(mf.id);
+        SimReport rt = trickle.report(mt.id);
+
+        assertTrue("coverage " + rt.coverage(), rt.coverage() >= rf.coverage());
+        // an order of magnitude less relay airtime
+        assertTrue(rt.rebroadcasts() * 10 <= rf.rebroadcasts());
+    }
+
+    @Test
+    public void weakReceiversRelayFirst() {
+        MeshSimulation uniform = new MeshSimulation(hall().rssiTiming(false));
+        MeshSimulation rssi = new MeshSimulation(hall());
+
+        MeshMessage mu = uniform.send(0, "SOS");
+        MeshMessage mr = rssi.send(0, "SOS");
+        uniform.run(60_000);
+        rssi.run(60_000);
+
+        SimReport ru = uniform.report(mu.id);
+        SimReport rr = rssi.report(mr.id);
+
+        assertTrue("coverage " + rr.coverage(), rr.coverage() >= 0.95);
+        // edge relays cover new ground first: faster flood, no extra relays
+        assertTrue(rr.latencyP99Ms < ru.latencyP99Ms);
+        assertTrue(rr.rebroadcasts() <= ru.rebroadcasts());
+    }
+
+    @Test
+    public void fetchesFailOverToWorkingHolders() {
+        // a third of the phones have a stuck GATT server: every connect → 133
+        MeshSimulation sim = new MeshSimulation(hall().brokenGatt(0.3));
+
+        // too long for the scan response: every receiver fetches over GATT
+        MeshMessage m = sim.send(0, "SOS trapped 3rd floor east stairwell");
+        sim.run(60_000);
+
+        SimReport r = sim.report(m.id);
+
+        // retrying the advertiser that failed left ~30% of the hall without the payload
+        assertTrue("coverage " + r.coverage(), r.coverage() >= 0.95);
+        assertTrue(sim.metrics().fetchFailures() * 2 < sim.metrics().fetches());
+    }
+
+    @Test
+    public void fetchBurstIsQueuedNotRefused() {
+        MeshSimulation storm = new MeshSimulation(hall().fetchConcurrency(1000, 1000));
+        MeshSimulation gated = new MeshSimulation(hall());
+
+        // twelve teams report at once: too long for the scan response, every receiver fetches
+        long[] ids = new long[12];
+        for (int i = 0; i < ids.length; i++) {
+            String text = "status report from team " + i + " all members accounted for";
+            storm.send(i * 12, text);
+            ids[i] = gated.send(i * 12, text).id;
+        }
+        storm.run(120_000);
+        gated.run(120_000);
+
+        int maxDepth = 0;
+        long maxWait = 0;
+        for (SimNode n : gated.nodes()) {
+            FetchScheduler f = n.hopManager().getFetchScheduler();
+            maxDepth = Math.max(maxDepth, f.highWater());
+            maxWait = Math.max(maxWait, f.maxWaitMs());
+        }
+
+        for (long id : ids) {
+            SimReport r = gated.report(id);
+            assertTrue("coverage " + r.coverage(), r.coverage() >= 0.95);
+        }
+        // connects beyond the pool wait in the queue instead of failing and backing off
+        assertTrue(storm.metrics().poolRefusals() > 0);
+        assertEquals(0, gated.metrics().poolRefusals());
+        assertTrue(maxDepth > 0);
+        // and not for long: a queued connect goes out once a slot frees
+        assertTrue("maxWait " + maxWait, maxWait < 5_000);
+    }
+
+    @Test
+    public void sosOvertakesQueuedChat() {
+        SimReport[] r = new SimReport[2];
+        long sosDelivered = 0;
+
+        int[] classes = { MeshMessage.PRIORITY_CHAT, MeshMessage.PRIORITY_SOS };
+        for (int k = 0; k < classes.length; k++) {
+            MeshSimulation sim = new MeshSimulation(hall());
+
+            // node 0 has eight status reports queued ahead of the alert, others add traffic
+            for (int i = 0; i < 16; i++)
+                sim.send(i % 2 == 0 ? 0 : i * 9, "status report from team " + i + " all members accounted for");
+            MeshMessage alert = sim.send(0, "SOS trapped 3rd floor east stairwell", classes[k]);
+            sim.run(120_000);
+
+            r[k] = sim.report(alert.id);
+
+            if (classes[k] == MeshMessage.PRIORITY_SOS)
+                for (SimNode n : sim.nodes())
+                    sosDelivered += n.hopManager().getDelivered(MeshMessage.PRIORITY_SOS);
+        }
+
+        assertTrue("coverage " + r[1].coverage(), r[1].coverage() >= 0.95);
+        // jumps the advert and fetch queues at every hop
+        assertTrue(r[1].latencyP50Ms < r[0].latencyP50Ms);
+        assertTrue(r[1].latencyP99Ms < r[0].latencyP99Ms);
+        // the class survives the header round trip: every receiver counted it as SOS
+        assertEquals(r[1].delivered, sosDelivered);
+    }
+
+    @Test
+    public void relayKeepsItsBacklogAcrossRestart() throws Exception {
+        int relay = 40;
+        int[] held = new int[2];
+        long relaysAfter = -1;
+        int recovered = -1;
+
+        for (int k = 0; k < 2; k++) {
+            SimConfig cfg = hall();
+            if (k == 1) cfg.persistLogs(tmp.newFolder());
+            MeshSimulation sim = new MeshSimulation(cfg);
+
+            MeshMessage[] sent = new MeshMessage[30];
+            for (int i = 0; i < sent.length; i++)
+                sent[i] = sim.send(i * 5 % 150, "carried message " + i + " waiting for the far side of the building");
+            sim.run(60_000);
+
+            // killed and brought back by the system
+            sim.restart(relay);
+            HopManager h = sim.nodes().get(relay).hopManager();
+            for (MeshMessage m : sent)
+                if (h.getStoredCiphertext(m.id) != null) held[k]++;
+
+            if (k == 1) {
+                recovered = sim.nodes().get(relay).log().recovered();
+                sim.run(30_000);
+                relaysAfter = h.getRelaysSent();
+            }
+        }
+
+        assertEquals(0, held[0]);
+        assertEquals(30, held[1]);
+        assertEquals(30, recovered);
+        // relay decisions were logged too: nothing goes back on air
+        assertEquals(0, relaysAfter);
+    }
+
+    @Test
+    public void rejectedCiphertextIsNotRelayedAfterRestart() throws Exception {
+        MeshSimulation sim = new MeshSimulation(hall().persistLogs(tmp.newFolder()));
+        int node = 40;
+
+        // inline ciphertext that does not authenticate under the mesh key
+        MeshMessage h = new MeshMessage();
+        h.id = 0x5EEDBADL;
+        h.sourceAddress = sim.nodes().get(41).address;
+        h.encryptedPayload = new byte[40];
+        sim.nodes().get(node).transport.deliverHeader(h);
+        sim.run(10_000);
+
+        sim.restart(node);
+        HopManager restarted = sim.nodes().get(node).hopManager();
+        assertEquals(0, sim.nodes().get(node).log().recovered());
+        assertNull(restarted.getStoredCiphertext(h.id));
+
+        sim.run(30_000);
+        assertEquals(0, restarted.getRelaysSent());
+    }
+
+    @Test
+    public void healedPartitionReconcilesBacklogs() {
+        double[] coverage = new double[2];
+        long syncs = 0, pulled = 0;
+
+        for (int k = 0; k < 2; k++) {
+            MeshSimulation sim = new MeshSimulation(hall().digestSync(k == 1));
+
+            // two halves of the hall out of range of each other; each floods its own backlog
+            sim.partition(125);
+            MeshMessage[] backlog = new MeshMessage[20];
+            for (int i = 0; i < backlog.length; i++)
+                backlog[i] = sim.send(i * 7 % 150, "backlog " + i + " from before the doors opened");
+            sim.run(60_000);
+
+            // doors open: the first new traffic brings the halves into contact
+            sim.heal();
+            sim.send(0, "hello from the west side");
+            sim.send(149, "hello from the east side");
+            sim.run(120_000);
+
+            for (MeshMessage m : backlog) coverage[k] += sim.report(m.id).coverage() / backlog.length;
+            if (k == 1)
+                for (SimNode n : sim.nodes()) {
+                    syncs += n.hopManager().getSyncs();
+                    pulled += n.hopManager().getSyncPulled();
+                }
+        }
+
+        // headers are only on air once: without sync the halves stay apart
+        assertTrue("coverage " + coverage[0], coverage[0] < 0.8);
+        assertTrue("coverage " + coverage[1], coverage[1] >= 0.95);
+        // the gap was closed by digest exchanges, not by the new traffic
+        assertTrue("syncs " + syncs, syncs > 0);
+        assertTrue("pulled " + pulled, pulled > 0);
+    }
+}
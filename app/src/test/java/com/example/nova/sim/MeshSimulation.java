@@ -0,0 +1,211 @@
+package com.example.nova.sim;
+
+import com.example.nova.ble.HopManager;
+import com.example.nova.ble.PayloadLog;
+import com.example.nova.model.MeshMessage;
+import com.example.nova.model.MessageCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * MeshSimulation
+ * ---------------
+ * Runs N real HopManager instances over SimTransport on one virtual clock.
+ *
+ *   MeshSimulation sim = new MeshSimulation(new SimConfig().nodes(200).loss(0.2));
+ *   MeshMessage m = sim.send(0, "SOS");
+ *   sim.run(30_000);
+ *   SimReport r = sim.report(m.id);
+ *
+ * Same config + seed → same topology, same losses, same relay jitter.
+ */
+public class MeshSimulation {
+
+    private final SimConfig config;
+    private final SimClock clock = new SimClock();
+    private final SimMetrics metrics = new SimMetrics();
+    private final Random radioRandom;
+    private final Random rssiRandom;
+
+    private final List<SimNode> nodes = new ArrayList<>();
+    private final Map<String, SimNode> byAddress = new HashMap<>();
+
+    public MeshSimulation(SimConfig config) {
+        this.config = config;
+        this.radioRandom = new Random(config.seed);
+        this.rssiRandom = new Random(config.seed * 17 + 3);
+
+        Random placement = new Random(config.seed * 31 + 7);
+        for (int i = 0; i < config.nodeCount; i++) {
+            SimNode n = new SimNode(i,
+                    placement.nextDouble() * config.areaMetres,
+                    placement.nextDouble() * config.areaMetres);
+            nodes.add(n);
+            byAddress.put(n.address, n);
+        }
+
+        Random broken = new Random(config.seed * 13 + 5);
+        for (SimNode n : nodes)
+            n.gattBroken = broken.nextDouble() < config.brokenGattShare;
+
+        Random legacy = new Random(config.seed * 17 + 3);
+        for (SimNode n : nodes)
+            n.legacyOnly = legacy.nextDouble() < config.legacyOnlyShare;
+
+        heal();
+
+        for (SimNode n : nodes)
+            boot(n);
+    }
+
+    private void boot(SimNode n) {
+        n.transport = new SimTransport(this, n);
+        n.log = openLog(n);
+        n.hopManager = new HopManager(
+                null,
+                n.transport,
+                clock.schedulerFor(n),
+                new Random(config.seed * 1_000_003L + n.index + 7919L * n.boots),
+                new MessageCache(500),
+                m -> metrics.onDelivered(m.id, n.index, clock.now(), m.hopCount + 1),
+                n.log
+        );
+        n.hopManager.setRelaySuppression(config.relaySuppressK, config.relayWindowMs);
+        n.hopManager.setRssiRelayTiming(config.rssiRelayTiming);
+        n.hopManager.setFetchConcurrency(config.fetchMaxPeers, config.fetchMaxPerPeer);
+        n.hopManager.setDigestSync(config.digestSync);
+        n.hopManager.start();
+        n.boots++;
+    }
+
+    private PayloadLog openLog(SimNode n) {
+        if (config.logDir == null) return null;
+        try {
+            return PayloadLog.open(new File(config.logDir, n.address));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // ----------------------------------------------------------
+    // DRIVING
+    // ----------------------------------------------------------
+    public MeshMessage send(int nodeIndex, String text) {
+        return send(nodeIndex, text, MeshMessage.PRIORITY_CHAT);
+    }
+
+    public MeshMessage send(int nodeIndex, String text, int priority) {
+        SimNode n = nodes.get(nodeIndex);
+        MeshMessage m = n.hopManager.sendOutgoing(n.address, 0, text, priority);
+        if (m != null) metrics.onSent(m.id, nodeIndex, clock.now());
+        return m;
+    }
+
+    /**
+     * The OS kills node {@code nodeIndex}'s process and MeshService comes
+     * back: pending timers, links and queues are gone, nothing is flushed or
+     * closed; the new HopManager only has what its payload log kept.
+     */
+    public void restart(int nodeIndex) {
+        SimNode n = nodes.get(nodeIndex);
+        clock.cancelAll(n);
+        // the kernel drops a dead process's file lock; mapped pages it wrote are kept
+        // either way, so close() only stands in for the lock release here
+        if (n.log != null) n.log.close();
+        boot(n);
+    }
+
+    /** Radio links only between nodes on the same side of x = {@code splitX} (until heal()). */
+    public void partition(double splitX) {
+        for (SimNode a : nodes) {
+            a.neighbours.clear();
+            for (SimNode b : nodes)
+                if (a != b && a.distanceTo(b) <= config.rangeMetres && (a.x < splitX) == (b.x < splitX))
+                    a.neighbours.add(b);
+        }
+    }
+
+    /** Every pair within range hears each other again. */
+    public void heal() {
+        for (SimNode a : nodes) {
+            a.neighbours.clear();
+            for (SimNode b : nodes)
+                if (a != b && a.distanceTo(b) <= config.rangeMetres)
+                    a.neighbours.add(b);
+        }
+    }
+
+    public void run(long durationMs) {
+        clock.runUntil(clock.now() + durationMs);
+    }
+
+    // ----------------------------------------------------------
+    // RESULTS
+    // ----------------------------------------------------------
+    public SimReport report(long messageId) {
+        SimMetrics.PerMessage m = metrics.of(messageId);
+        int reachable = m.origin < 0 ? 0 : reachableFrom(m.origin, Integer.MAX_VALUE);
+        return new SimReport(nodes.size(), reachable, m);
+    }
+
+    /** Whether node {@code nodeIndex} has delivered {@code messageId}. */
+    public boolean delivered(long messageId, int nodeIndex) {
+        return metrics.of(messageId).deliveredAt.containsKey(nodeIndex);
+    }
+
+    /** Nodes (origin excluded) within {@code maxHops} radio hops of {@code origin}. */
+    public int reachableFrom(int origin, int maxHops) {
+        int[] depth = new int[nodes.size()];
+        java.util.Arrays.fill(depth, -1);
+        ArrayDeque<SimNode> q = new ArrayDeque<>();
+        depth[origin] = 0;
+        q.add(nodes.get(origin));
+        int count = 0;
+
+        while (!q.isEmpty()) {
+            SimNode n = q.poll();
+            if (depth[n.index] >= maxHops) continue;
+            for (SimNode p : n.neighbours) {
+                if (depth[p.index] >= 0) continue;
+                depth[p.index] = depth[n.index] + 1;
+                count++;
+                q.add(p);
+            }
+        }
+        return count;
+    }
+
+    public SimMetrics metrics() { return metrics; }
+    public List<SimNode> nodes() { return Collections.unmodifiableList(nodes); }
+    public SimNode node(String address) { return byAddress.get(address); }
+    public SimConfig config() { return config; }
+    public SimClock clock() { return clock; }
+
+    // ----------------------------------------------------------
+    // RADIO RANDOMNESS (single seeded stream)
+    // ----------------------------------------------------------
+    boolean radioLost() {
+        return radioRandom.nextDouble() < config.lossRate;
+    }
+
+    long radioJitter(int maxMs) {
+        return radioRandom.nextInt(maxMs + 1);
+    }
+
+    /** RSSI (dBm) at which {@code rx} hears {@code tx}: log-distance path loss + shadowing noise. */
+    int rssi(SimNode tx, SimNode rx) {
+        double d = Math.max(1, tx.distanceTo(rx));
+        double dbm = config.rssiAt1m - 10 * config.pathLossExponent * Math.log10(d)
+                + rssiRandom.nextGaussian() * config.rssiNoiseDb;
+        return (int) Math.round(dbm);
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.nova.sim;
+
+import com.example.nova.ble.MeshScheduler;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * SimClock
+ * ---------
+ * Single-threaded discrete-event clock shared by every virtual node.
+ * Events run in (time, insertion order) so a seeded run is reproducible.
+ */
+public class SimClock {
+
+    private static final class Event {
+        final long time;
+        final long seq;
+        final Object owner;
+        final Runnable task;
+        boolean cancelled;
+
+        Event(long time, long seq, Object owner, Runnable task) {
+            this.time = time;
+            this.seq = seq;
+            this.owner = owner;
+            this.task = task;
+        }
+    }
+
+    private final PriorityQueue<Event> queue = new PriorityQueue<>(1024, (a, b) ->
+            a.time != b.time ? Long.compare(a.time, b.time) : Long.compare(a.seq, b.seq));
+
+    private long now = 0;
+    private long seq = 0;
+
+    public long now() { return now; }
+
+    public void schedule(Object owner, Runnable task, long delayMs) {
+        queue.add(new Event(now + Math.max(0, delayMs), seq++, owner, task));
+    }
+
+    public void cancel(Object owner, Runnable task) {
+        Iterator<Event> it = queue.iterator();
+        while (it.hasNext()) {
+            Event e = it.next();
+            if (e.owner == owner && e.task == task) e.cancelled = true;
+        }
+    }
+
+    /** Drop every pending event of {@code owner} (a node's process dies). */
+    public void cancelAll(Object owner) {
+        for (Event e : queue)
+            if (e.owner == owner) e.cancelled = true;
+    }
+
+    /** Run every event due up to and including {@code endTime}; leaves the clock at endTime. */
+    public void runUntil(long endTime) {
+        while (!queue.isEmpty() && queue.peek().time <= endTime) {
+            Event e = queue.poll();
+            if (e.cancelled) continue;
+            now = e.time;
+            e.task.run();
+        }
+        now = Math.max(now, endTime);
+    }
+
+    /** MeshScheduler view whose removeCallbacks only touches this owner's events. */
+    public MeshScheduler schedulerFor(Object owner) {
+        return new MeshScheduler() {
+            @Override
+            public void postDelayed(Runnable r, long delayMs) {
+                schedule(owner, r, delayMs);
+            }
+
+            @Override
+            public void removeCallbacks(Runnable r) {
+                cancel(owner, r);
+            }
+
+            @Override
+            public long now() {
+                return SimClock.this.now;
+            }
+        };
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.nova.sim;
+
+import com.example.nova.ble.FetchScheduler;
+import com.example.nova.ble.HeaderCodec;
+import com.example.nova.ble.HopManager;
+
+import java.io.File;
+
+/**
+ * SimConfig
+ * ----------
+ * Topology and radio model for a simulated mesh. Defaults approximate
+ * phones in an open hall using the current legacy advertising settings.
+ */
+public class SimConfig {
+
+    // topology: nodes placed uniformly at random in a square area
+    public int nodeCount = 100;
+    public double areaMetres = 300;
+    public double rangeMetres = 60;
+    public long seed = 42;
+
+    // radio: each advertising event / GATT connect is lost independently
+    public double lossRate = 0.10;
+
+    // BluetoothAdvertiser keeps each header on air for 500 ms
+    public long advertWindowMs = 500;
+    // ADVERTISE_MODE_LOW_LATENCY ≈ 100 ms interval
+    public long advertIntervalMs = 100;
+    // one legacy ADV_IND (31 B payload) on 3 channels ≈ 3 × 376 µs
+    public double advertEventAirtimeMs = 1.128;
+    // BluetoothAdvertiser packing: headers sharing one legacy advert
+    public int headersPerAdvert =
+            HeaderCodec.packedCapacity(HeaderCodec.LEGACY_SERVICE_DATA_MAX);
+    // legacy sessions put a compact ciphertext in the scan response;
+    // the SCAN_REQ / SCAN_RSP exchange is lost at lossRate on its own
+    public boolean scanResponseInline = true;
+
+    // BLE 5 extended adverts (AdvertisingSet): headers + inline ciphertext
+    public boolean extendedAdvertising = false;
+    public int extendedDataMax = 191;
+    // ADV_EXT_IND on 3 primary channels (~3 × 0.2 ms) + AUX_ADV_IND at 1M: 8 µs/byte + ~16 B overhead
+    public double extendedPrimaryAirtimeMs = 0.6;
+    public double extendedAuxPerByteMs = 0.008;
+    // share of nodes whose controller is legacy-only (mixed fleets)
+    public double legacyOnlyShare = 0;
+
+    // HopManager relay timer window and counter-based suppression (k = 0: off)
+    public int relaySuppressK = HopManager.DEFAULT_RELAY_SUPPRESS_K;
+    public long relayWindowMs = HopManager.DEFAULT_RELAY_WINDOW_MS;
+
+    // HopManager RSSI-aware relay timing (false: uniform delay)
+    public boolean rssiRelayTiming = true;
+    // log-distance path loss: rssi = rssiAt1m − 10·n·log10(d) + N(0, rssiNoiseDb)
+    public double rssiAt1m = -59;
+    public double pathLossExponent = 2.2;
+    public double rssiNoiseDb = 4;
+
+    // PayloadGattClient: connect + MTU + 200 ms delay + discover + CCCD + write
+    public long gattSetupMs = 1200;
+    // request write on an already-open pooled link (one connection-event round trip)
+    public long gattRequestMs = 60;
+    // PayloadGattClient.DEFAULT_IDLE_MS / DEFAULT_MAX_LINKS
+    public long linkIdleMs = 15_000;
+    public int maxLinks = 4;
+    // per 490-byte notification chunk
+    public long gattChunkMs = 15;
+    // PayloadGattClient.TIMEOUT_MS
+    public long gattTimeoutMs = 9000;
+    public int gattChunkSize = 490;
+    // HopManager fetch scheduler: peers with fetches in flight / requests per peer
+    public int fetchMaxPeers = FetchScheduler.DEFAULT_MAX_PEERS;
+    public int fetchMaxPerPeer = FetchScheduler.DEFAULT_MAX_PER_PEER;
+    // share of nodes whose GATT server never answers (stuck stack: every connect fails with 133)
+    public double brokenGattShare = 0;
+    // HopManager payload logs, one subdirectory per node; null = none (restarts lose the backlog)
+    public File logDir = null;
+    // HopManager digest sync; off by default so flood scenarios measure adverts alone
+    public boolean digestSync = false;
+
+    public SimConfig nodes(int n) { nodeCount = n; return this; }
+    public SimConfig area(double metres) { areaMetres = metres; return this; }
+    public SimConfig range(double metres) { rangeMetres = metres; return this; }
+    public SimConfig loss(double rate) { lossRate = rate; return this; }
+    public SimConfig seed(long s) { seed = s; return this; }
+    public SimConfig extended(boolean on) { extendedAdvertising = on; return this; }
+    public SimConfig legacyOnly(double share) { legacyOnlyShare = share; return this; }
+    public SimConfig scanResponse(boolean on) { scanResponseInline = on; return this; }
+    public SimConfig rssiTiming(boolean on) { rssiRelayTiming = on; return this; }
+    public SimConfig fetchConcurrency(int maxPeers, int maxPerPeer) { fetchMaxPeers = maxPeers; fetchMaxPerPeer = maxPerPeer; return this; }
+    public SimConfig brokenGatt(double share) { brokenGattShare = share; return this; }
+    public SimConfig persistLogs(File dir) { logDir = dir; return this; }
+    public SimConfig digestSync(boolean on) { digestSync = on; return this; }
+    public SimConfig relaySuppression(int k, long windowMs) { relaySuppressK = k; relayWindowMs = windowMs; return this; }
+}
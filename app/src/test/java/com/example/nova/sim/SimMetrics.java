@@ -0,0 +1,72 @@
+package com.example.nova.sim;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Counters collected while a simulation runs, keyed by message id where
+ * it makes sense.
+ */
+public class SimMetrics {
+
+    static final class PerMessage {
+        long sentAt = -1;
+        int origin = -1;
+        int adverts;
+        double advertAirtimeMs;
+        final Map<Integer, Long> deliveredAt = new HashMap<>();
+        final Map<Integer, Integer> hopsAt = new HashMap<>();
+    }
+
+    private final Map<Long, PerMessage> messages = new HashMap<>();
+
+    long fetches;
+    long fetchFailures;
+    long fetchBytes;
+    long poolRefusals;
+
+    PerMessage of(long id) {
+        PerMessage m = messages.get(id);
+        if (m == null) {
+            m = new PerMessage();
+            messages.put(id, m);
+        }
+        return m;
+    }
+
+    void onSent(long id, int origin, long now) {
+        PerMessage m = of(id);
+        m.origin = origin;
+        m.sentAt = now;
+    }
+
+    void onAdvert(long id, double airtimeMs) {
+        PerMessage m = of(id);
+        m.adverts++;
+        m.advertAirtimeMs += airtimeMs;
+    }
+
+    /** Airtime of a companion advert in the same session (extended copy). */
+    void onAirtime(long id, double airtimeMs) {
+        of(id).advertAirtimeMs += airtimeMs;
+    }
+
+    void onDelivered(long id, int node, long now, int hops) {
+        PerMessage m = of(id);
+        if (!m.deliveredAt.containsKey(node)) {
+            m.deliveredAt.put(node, now);
+            m.hopsAt.put(node, hops);
+        }
+    }
+
+    void onFetch() { fetches++; }
+    void onFetchFailure() { fetchFailures++; }
+    void onFetchBytes(int n) { fetchBytes += n; }
+    void onPoolRefusal() { poolRefusals++; }
+
+    public long fetches() { return fetches; }
+    public long fetchFailures() { return fetchFailures; }
+    public long fetchBytes() { return fetchBytes; }
+    /** Fetches refused because every client link was busy (PayloadGattClient "PoolFull"). */
+    public long poolRefusals() { return poolRefusals; }
+}
@@ -0,0 +1,51 @@
+package com.example.nova.sim;
+
+import com.example.nova.ble.HopManager;
+import com.example.nova.ble.PayloadLog;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One virtual phone: position, in-range neighbours and a real HopManager.
+ */
+public class SimNode {
+
+    public final int index;
+    public final String address;
+    public final double x;
+    public final double y;
+
+    final List<SimNode> neighbours = new ArrayList<>();
+
+    // GATT server fails every connect (SimConfig.brokenGattShare)
+    boolean gattBroken;
+    // controller without LE extended advertising: neither sends nor hears extended adverts
+    boolean legacyOnly;
+
+    SimTransport transport;
+    HopManager hopManager;
+    PayloadLog log;
+    int boots;
+
+    SimNode(int index, double x, double y) {
+        this.index = index;
+        this.address = String.format("SIM-%04d", index);
+        this.x = x;
+        this.y = y;
+    }
+
+    public HopManager hopManager() { return hopManager; }
+
+    /** Payload log of the current boot; null unless SimConfig.logDir is set. */
+    public PayloadLog log() { return log; }
+
+    public List<SimNode> neighbours() { return neighbours; }
+
+    public boolean isLegacyOnly() { return legacyOnly; }
+
+    double distanceTo(SimNode o) {
+        double dx = x - o.x, dy = y - o.y;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+}
@@ -0,0 +1,74 @@
+package com.example.nova.sim;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Flood outcome for one message.
+ */
+public class SimReport {
+
+    public final int nodes;
+    public final int reachable;
+    public final int delivered;
+    public final int adverts;
+    public final double advertAirtimeMs;
+    public final long latencyP50Ms;
+    public final long latencyP99Ms;
+    public final long latencyMaxMs;
+    // hops from the origin to each receiving node (HopManager restarts the
+    // hop count of fetched payloads at 0, so only inline deliveries count fully)
+    public final double hopsMean;
+    public final int hopsMax;
+
+    SimReport(int nodes, int reachable, SimMetrics.PerMessage m) {
+        this.nodes = nodes;
+        this.reachable = reachable;
+        this.delivered = m.deliveredAt.size();
+        this.adverts = m.adverts;
+        this.advertAirtimeMs = m.advertAirtimeMs;
+
+        List<Long> lat = new ArrayList<>();
+        for (Long t : m.deliveredAt.values()) lat.add(t - m.sentAt);
+        Collections.sort(lat);
+
+        this.latencyP50Ms = percentile(lat, 0.50);
+        this.latencyP99Ms = percentile(lat, 0.99);
+        this.latencyMaxMs = lat.isEmpty() ? -1 : lat.get(lat.size() - 1);
+
+        int sum = 0, max = 0;
+        for (int h : m.hopsAt.values()) {
+            sum += h;
+            max = Math.max(max, h);
+        }
+        this.hopsMean = m.hopsAt.isEmpty() ? 0 : (double) sum / m.hopsAt.size();
+        this.hopsMax = max;
+    }
+
+    private static long percentile(List<Long> sorted, double p) {
+        if (sorted.isEmpty()) return -1;
+        int i = (int) Math.ceil(p * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, i)));
+    }
+
+    /** Delivered / nodes the radio graph can reach from the origin (origin excluded). */
+    public double coverage() {
+        return reachable == 0 ? 1.0 : (double) delivered / reachable;
+    }
+
+    /** Adverts beyond the origin's own. */
+    public int rebroadcasts() {
+        return Math.max(0, adverts - 1);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "nodes=%d reachable=%d delivered=%d coverage=%.3f adverts=%d rebroadcasts=%d "
+                        + "airtime=%.1fms latency p50=%dms p99=%dms max=%dms hops mean=%.2f max=%d",
+                nodes, reachable, delivered, coverage(), adverts, rebroadcasts(),
+                advertAirtimeMs, latencyP50Ms, latencyP99Ms, latencyMaxMs, hopsMean, hopsMax);
+    }
+}
@@ -0,0 +1,411 @@
+package com.example.nova.sim;
+
+import com.example.nova.ble.BluetoothScanner;
+import com.example.nova.ble.ChunkFrame;
+import com.example.nova.ble.HeaderCodec;
+import com.example.nova.ble.IdDigest;
+import com.example.nova.ble.MeshTransport;
+import com.example.nova.ble.NeighbourTable;
+import com.example.nova.ble.PayloadGattClient;
+import com.example.nova.ble.RecentIdFilter;
+import com.example.nova.model.MeshMessage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * SimTransport
+ * -------------
+ * In-memory MeshTransport for one virtual node.
+ *  - advert   → one advertising session at a time, carrying up to
+ *               headersPerAdvert queued headers (packed form); every in-range
+ *               node hears it on the first advertising event (of window /
+ *               interval) that is not lost. A compact ciphertext may ride
+ *               in the scan response. With extendedAdvertising (and a node
+ *               that is not legacyOnly) an extended copy with small
+ *               ciphertexts inline runs alongside; only nodes that are not
+ *               legacyOnly hear it, each on its own first non-lost event
+ *  - fetch    → after a modelled connection setup, ciphertext is read straight
+ *               from the holder's HopManager (same as GattServer does)
+ *  - links    → like PayloadGattClient's pool: a link stays open linkIdleMs
+ *               after its last fetch (at most maxLinks, LRU idle one closed);
+ *               a fetch over an open link skips connection setup
+ *  - batches  → fetches queued on a link before its next request write go
+ *               out together (one write, answers streamed back-to-back);
+ *               a batched id the holder lacks fails fast with NotHeld
+ *  - sync     → a digest request travels like a fetch; the answer is the
+ *               holder's HopManager.answerDigest (as GattServer does)
+ *  - scan     → repeats of an id inside 2.5 s are dropped before HopManager
+ *               (RecentIdFilter, as in BluetoothScanner)
+ */
+public class SimTransport implements MeshTransport {
+
+    private final MeshSimulation sim;
+    private final SimNode node;
+
+    private BluetoothScanner.BluetoothScannerListener headerListener;
+    private boolean scanning = false;
+
+    // same duplicate filter BluetoothScanner puts in front of HopManager
+    private final RecentIdFilter recentIds = new RecentIdFilter(512, 2500);
+    // same neighbour table BluetoothScanner feeds
+    private final NeighbourTable neighbours = new NeighbourTable();
+
+    // BluetoothAdvertiser: one 500 ms session at a time, queued headers packed
+    private final List<MeshMessage> advertQueue = new ArrayList<>();
+    private boolean advertising = false;
+
+    // address → open link, access-ordered (eldest = least recently used)
+    private final LinkedHashMap<String, Link> links = new LinkedHashMap<>(8, 0.75f, true);
+
+    private static final class Link {
+        long freeAt;      // when the last scheduled transfer completes
+        long idleUntil;   // link closes after this unless reused
+        Batch next;       // request write not yet sent; later fetches join it
+    }
+
+    private static final class Batch {
+        long sendAt;      // request write goes out
+        long readyAt;     // server starts answering
+        int size;
+    }
+
+    SimTransport(MeshSimulation sim, SimNode node) {
+        this.sim = sim;
+        this.node = node;
+    }
+
+    boolean isScanning() { return scanning; }
+
+    // ----------------------------------------------------------
+    // SCAN
+    // ----------------------------------------------------------
+    @Override
+    public void setHeaderListener(BluetoothScanner.BluetoothScannerListener listener) {
+        this.headerListener = listener;
+    }
+
+    @Override
+    public boolean isScanSupported() { return true; }
+
+    @Override
+    public boolean startScan() {
+        scanning = true;
+        return true;
+    }
+
+    @Override
+    public void stopScan() {
+        scanning = false;
+    }
+
+    /** One advert session from {@code address} heard at {@code rssi}. */
+    void advertHeard(String address, int rssi) {
+        if (scanning) neighbours.onAdvert(address, rssi, sim.clock().now());
+    }
+
+    void deliverHeader(MeshMessage header) {
+        if (!scanning || headerListener == null) return;
+
+        neighbours.onAdvertisedId(header.sourceAddress, header.id);
+
+        int seen = recentIds.record(header.id, header.sourceAddress.hashCode(), sim.clock().now());
+        if (seen > 1 && header.encryptedPayload == null) return;
+
+        headerListener.onMessageReceived(header);
+    }
+
+    @Override
+    public NeighbourTable neighbours() {
+        return neighbours;
+    }
+
+    @Override
+    public int transmissionsHeard(long messageId) {
+        return recentIds.transmissions(messageId, sim.clock().now());
+    }
+
+    // ----------------------------------------------------------
+    // ADVERTISE
+    // ----------------------------------------------------------
+    @Override
+    public void advertise(MeshMessage msg) {
+        // same as BluetoothAdvertiser.enqueue: a queued id just takes the new hop,
+        // a new one goes behind every header of the same or a higher class
+        for (int i = 0; i < advertQueue.size(); i++) {
+            if (advertQueue.get(i).id == msg.id) {
+                advertQueue.set(i, msg);
+                return;
+            }
+        }
+        int at = advertQueue.size();
+        while (at > 0 && advertQueue.get(at - 1).priority < msg.priority) at--;
+        advertQueue.add(at, msg);
+        startAdvertSession();
+    }
+
+    private void startAdvertSession() {
+        if (advertising || advertQueue.isEmpty()) return;
+
+        SimConfig cfg = sim.config();
+        int events = (int) Math.max(1, cfg.advertWindowMs / cfg.advertIntervalMs);
+
+        int same = 1;
+        int max = Math.min(advertQueue.size(), cfg.headersPerAdvert);
+        while (same < max && HeaderCodec.sameClass(advertQueue.get(0), advertQueue.get(same))) same++;
+        final int n = same;
+        List<MeshMessage> batch = new ArrayList<>(advertQueue.subList(0, n));
+        advertQueue.subList(0, n).clear();
+
+        for (MeshMessage m : batch)
+            sim.metrics().onAdvert(m.id, events * cfg.advertEventAirtimeMs / n);
+
+        final byte[] data = n == 1
+                ? HeaderCodec.encode(batch.get(0))
+                : HeaderCodec.encodePacked(batch, 0, n);
+
+        // same choice as BluetoothAdvertiser: first header whose ciphertext fits
+        byte[] sr = null;
+        for (int i = 0; cfg.scanResponseInline && sr == null && i < n; i++) {
+            byte[] c = batch.get(i).encryptedPayload;
+            if (HeaderCodec.fitsScanResponse(c)) sr = HeaderCodec.encodeScanResponse(i, c);
+        }
+        final byte[] scanResponse = sr;
+
+        // extended copy leads by one interval (BluetoothAdvertiser.EXTENDED_LEAD_MS)
+        long lead = cfg.extendedAdvertising && !node.legacyOnly && broadcastExtended(batch, events)
+                ? cfg.advertIntervalMs : 0;
+
+        broadcast(events, lead, false, () -> {
+            List<MeshMessage> heard = n == 1
+                    ? Collections.singletonList(HeaderCodec.decode(data))
+                    : HeaderCodec.decodePacked(data);
+            if (scanResponse != null && !sim.radioLost())
+                HeaderCodec.applyScanResponse(scanResponse, heard);
+            return heard;
+        });
+
+        advertising = true;
+        sim.clock().schedule(node, () -> {
+            advertising = false;
+            startAdvertSession();
+        }, lead + cfg.advertWindowMs);
+    }
+
+    /**
+     * Extended copy of the legacy batch; same inline rule as BluetoothAdvertiser.markInline.
+     * @return false if nothing rides inline (no copy sent).
+     */
+    private boolean broadcastExtended(List<MeshMessage> batch, int events) {
+        SimConfig cfg = sim.config();
+
+        int room = HeaderCodec.extendedServiceDataMax(cfg.extendedDataMax) - 1;
+        for (MeshMessage m : batch) room -= HeaderCodec.extendedEntryLen(m, false);
+
+        boolean any = false;
+        boolean[] inline = new boolean[batch.size()];
+        for (int i = 0; i < inline.length; i++) {
+            MeshMessage m = batch.get(i);
+            int extra = HeaderCodec.extendedEntryLen(m, true) - HeaderCodec.extendedEntryLen(m, false);
+            inline[i] = HeaderCodec.canInline(m) && extra <= room;
+            if (inline[i]) {
+                room -= extra;
+                any = true;
+            }
+        }
+        if (!any) return false;
+
+        final byte[] data = HeaderCodec.encodeExtended(batch, inline);
+
+        double perEvent = cfg.extendedPrimaryAirtimeMs + (data.length + 16) * cfg.extendedAuxPerByteMs;
+        for (MeshMessage m : batch)
+            sim.metrics().onAirtime(m.id, events * perEvent / batch.size());
+
+        broadcast(events, 0, true, () -> HeaderCodec.decodeExtended(data));
+        return true;
+    }
+
+    private interface Decoder {
+        List<MeshMessage> decode();
+    }
+
+    /** Every in-range node (that can scan it) hears the advert on its first non-lost event after {@code startMs}. */
+    private void broadcast(int events, long startMs, boolean extended, Decoder decoder) {
+        SimConfig cfg = sim.config();
+
+        for (SimNode peer : node.neighbours) {
+            if (extended && peer.legacyOnly) continue;
+
+            for (int e = 0; e < events; e++) {
+                if (sim.radioLost()) continue;
+
+                long delay = startMs + e * cfg.advertIntervalMs + sim.radioJitter(10);
+                int rssi = sim.rssi(node, peer);
+                sim.clock().schedule(peer, () -> {
+                    peer.transport.advertHeard(node.address, rssi);
+                    for (MeshMessage h : decoder.decode()) {
+                        h.sourceAddress = node.address;
+                        h.sender = node.address;
+                        h.rssi = rssi;
+                        peer.transport.deliverHeader(h);
+                    }
+                }, delay);
+                break;
+            }
+        }
+    }
+
+    // ----------------------------------------------------------
+    // FETCH
+    // ----------------------------------------------------------
+    // what the peer's GattServer answers a request with (null = not held)
+    private interface Answer {
+        byte[] from(SimNode peer);
+    }
+
+    @Override
+    public void fetchPayload(String address, long messageId, PayloadGattClient.Callback cb) {
+        request(address, messageId, peer -> peer.hopManager.getStoredCiphertext(messageId), cb);
+    }
+
+    @Override
+    public void syncDigest(String address, byte[] digestRequest, PayloadGattClient.Callback cb) {
+        IdDigest digest = IdDigest.parse(digestRequest);
+        request(address, ChunkFrame.SYNC_ID, peer -> peer.hopManager.answerDigest(digest), cb);
+    }
+
+    private void request(String address, long messageId, Answer answer, PayloadGattClient.Callback cb) {
+
+        SimConfig cfg = sim.config();
+        SimNode peer = sim.node(address);
+        long now = sim.clock().now();
+
+        Link link = openLink(address, now);
+        if (link == null) {
+            sim.metrics().onPoolRefusal();
+            cb.onError("PoolFull");
+            return;
+        }
+
+        sim.metrics().onFetch();
+
+        Batch batch = joinBatch(link, now);
+
+        if (peer == null || !node.neighbours.contains(peer) || sim.radioLost() || peer.gattBroken) {
+            links.remove(address);
+            sim.clock().schedule(node, () -> {
+                sim.metrics().onFetchFailure();
+                cb.onError("GATT_FAIL_133");
+            }, batch.readyAt - now);
+            return;
+        }
+
+        link.idleUntil = Long.MAX_VALUE;
+
+        sim.clock().schedule(node, () -> {
+            byte[] cipher = answer.from(peer);
+            long t = sim.clock().now();
+            if (link.next == batch) link.next = null;
+
+            if (cipher == null) {
+                if (batch.size > 1) {
+                    // not-held frame queued behind the earlier answers
+                    long done = Math.max(t, link.freeAt) + cfg.gattChunkMs;
+                    link.freeAt = done;
+                    sim.clock().schedule(node, () -> {
+                        sim.metrics().onFetchFailure();
+                        cb.onError("NotHeld");
+                    }, done - t);
+                    return;
+                }
+                // single framed request: real client times out and tears the link down
+                link.freeAt = Math.max(link.freeAt, t + cfg.gattTimeoutMs - (batch.readyAt - batch.sendAt));
+                sim.clock().schedule(node, () -> {
+                    links.remove(address, link);
+                    sim.metrics().onFetchFailure();
+                    cb.onError("Timeout");
+                }, link.freeAt - t);
+                return;
+            }
+
+            int chunks = ChunkFrame.split(messageId, cipher, cfg.gattChunkSize).size();
+            long done = Math.max(t, link.freeAt) + chunks * cfg.gattChunkMs;
+            link.freeAt = done;
+
+            sim.clock().schedule(node, () -> {
+                if (link.freeAt <= done) link.idleUntil = done + cfg.linkIdleMs;
+                sim.metrics().onFetchBytes(cipher.length);
+                cb.onPayload(cipher);
+            }, done - t);
+
+        }, batch.readyAt - now);
+    }
+
+    /** Batch this fetch rides in: the unsent one on the link, else a new one. */
+    private Batch joinBatch(Link link, long now) {
+        SimConfig cfg = sim.config();
+
+        Batch b = link.next;
+        if (b != null && b.sendAt >= now) {
+            b.size++;
+            return b;
+        }
+
+        b = new Batch();
+        b.size = 1;
+        long start = Math.max(now, link.freeAt);
+        if (link.idleUntil >= start) {
+            b.sendAt = start;
+        } else {
+            // connect + MTU + discover + CCCD, then the write
+            b.sendAt = start + cfg.gattSetupMs - cfg.gattRequestMs;
+        }
+        b.readyAt = b.sendAt + cfg.gattRequestMs;
+        link.freeAt = Math.max(link.freeAt, b.readyAt);
+        link.next = b;
+        return b;
+    }
+
+    /** Existing link to {@code address}, or a new one if the pool has room. */
+    private Link openLink(String address, long now) {
+        Link link = links.get(address);
+        if (link != null && (link.freeAt > now || link.idleUntil >= now)) return link;
+        if (link != null) links.remove(address);   // idled out
+
+        int max = sim.config().maxLinks;
+        Iterator<Link> it = links.values().iterator();
+        while (links.size() >= max && it.hasNext()) {
+            Link l = it.next();
+            if (l.freeAt <= now) it.remove();   // closed or idle → reclaim
+        }
+        if (links.size() >= max) return null;
+
+        link = new Link();
+        link.freeAt = now;
+        link.idleUntil = -1;   // not connected yet
+        links.put(address, link);
+        return link;
+    }
+
+    @Override
+    public void disconnectAll() {
+        links.clear();
+    }
+
+    // ----------------------------------------------------------
+    // SERVER
+    // ----------------------------------------------------------
+    @Override
+    public void startServer() {}
+
+    @Override
+    public void stopServer() {}
+
+    @Override
+    public void notifyAllSubscribed(long messageId, byte[] payload) {
+        // no standing subscriptions in the simulator: payloads move via fetchPayload
+    }
+}
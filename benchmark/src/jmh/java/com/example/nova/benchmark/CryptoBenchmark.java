@@ -0,0 +1,75 @@
+package com.example.nova.benchmark;
+
+import com.example.nova.ble.CryptoUtil;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * CryptoUtil.encrypt / decrypt.
+ *
+ * encrypt / decrypt: the byte[] AAD form with the per-call 8-byte AAD
+ * allocation HopManager used to do for every message. encryptId /
+ * decryptId: the id forms HopManager uses now (per-thread AAD buffer).
+ * decryptInPlace: ByteBuffer form, plaintext written over the ciphertext.
+ *
+ * 40 B ≈ presence / SOS payload, 200 B ≈ location text, 1000 B ≈ multi-chunk.
+ */
+@State(Scope.Thread)
+public class CryptoBenchmark {
+
+    @Param({"40", "200", "1000"})
+    public int size;
+
+    private byte[] plain;
+    private byte[] cipher;
+    private long id;
+    private ByteBuffer work;
+
+    @Setup
+    public void setup() throws Exception {
+        Random r = new Random(1);
+        plain = new byte[size];
+        r.nextBytes(plain);
+        id = r.nextLong();
+        cipher = CryptoUtil.encrypt(plain, aad(id));
+        work = ByteBuffer.allocate(cipher.length);
+    }
+
+    private static byte[] aad(long id) {
+        return ByteBuffer.allocate(8).putLong(id).array();
+    }
+
+    @Benchmark
+    public byte[] encrypt() throws Exception {
+        return CryptoUtil.encrypt(plain, aad(id));
+    }
+
+    @Benchmark
+    public byte[] decrypt() throws Exception {
+        return CryptoUtil.decrypt(cipher, aad(id));
+    }
+
+    @Benchmark
+    public byte[] encryptId() throws Exception {
+        return CryptoUtil.encrypt(plain, id);
+    }
+
+    @Benchmark
+    public byte[] decryptId() throws Exception {
+        return CryptoUtil.decrypt(cipher, id);
+    }
+
+    @Benchmark
+    public int decryptInPlace() throws Exception {
+        work.clear();
+        work.put(cipher).flip();
+        return CryptoUtil.decrypt(work, work.duplicate(), id);
+    }
+}
@@ -0,0 +1,55 @@
+package com.example.nova.benchmark;
+
+import com.example.nova.ble.Esp32Packet;
+import com.example.nova.ble.HeaderCodec;
+import com.example.nova.model.MeshMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+/**
+ * Per-advert parsing done in BluetoothScanner's scan callback:
+ * the NOVA 10-byte service-data header (checkServiceData) and the
+ * ESP32 "MESH:" manufacturer payload (checkEsp32Manufacturer).
+ */
+@State(Scope.Thread)
+public class HeaderParseBenchmark {
+
+    private byte[] header;
+    private byte[] espSos;
+    private byte[] foreign;
+
+    @Setup
+    public void setup() {
+        MeshMessage m = new MeshMessage();
+        m.id = 0x1234_5678_9ABC_DEF0L;
+        m.hopCount = 2;
+        header = HeaderCodec.encode(m);
+
+        espSos = "MESH:TYPE:SOS;SRC:ESP32-A1;SEQ:17".getBytes(StandardCharsets.US_ASCII);
+        // typical non-NOVA manufacturer data (headphones, beacons)
+        foreign = new byte[] {0x02, 0x15, 0x4C, 0x00, 0x10, 0x05, 0x0B, 0x1C, 0x7A, 0x33};
+    }
+
+    @Benchmark
+    public MeshMessage novaHeader() {
+        return HeaderCodec.decode(header);
+    }
+
+    @Benchmark
+    public boolean esp32Sos() {
+        HashMap<String, String> f = Esp32Packet.parse(espSos);
+        return Esp32Packet.isSos(f);
+    }
+
+    @Benchmark
+    public boolean esp32Foreign() {
+        HashMap<String, String> f = Esp32Packet.parse(foreign);
+        return Esp32Packet.isSos(f);
+    }
+}
@@ -0,0 +1,58 @@
+package com.example.nova.benchmark;
+
+import com.example.nova.model.MessageCache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.SplittableRandom;
+
+/**
+ * Dedup cache as used by HopManager.onMessageReceived: one putIfAbsent()
+ * per header. One shared cache, several scan/worker threads.
+ *
+ * Ids are drawn from a window 2x the cache size so roughly half the
+ * lookups hit, similar to a crowd re-advertising the same messages.
+ */
+public class MessageCacheBenchmark {
+
+    static final int CACHE_SIZE = 500;
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+        MessageCache cache;
+
+        @Setup
+        public void setup() {
+            cache = new MessageCache(CACHE_SIZE);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Ids {
+        SplittableRandom random = new SplittableRandom(Thread.currentThread().getId());
+
+        long next() {
+            return random.nextInt(CACHE_SIZE * 2);
+        }
+    }
+
+    private static boolean onHeader(MessageCache cache, long id) {
+        return cache.putIfAbsent(id);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean uncontended(Shared s, Ids ids) {
+        return onHeader(s.cache, ids.next());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean contended4(Shared s, Ids ids) {
+        return onHeader(s.cache, ids.next());
+    }
+}
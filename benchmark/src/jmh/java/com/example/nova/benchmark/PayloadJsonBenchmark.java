@@ -0,0 +1,71 @@
+package com.example.nova.benchmark;
+
+import com.example.nova.model.MeshMessage;
+import com.example.nova.model.PayloadCodec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * MeshMessage JSON envelope against the PayloadCodec binary form, plain
+ * and deflated: built before every encrypt, parsed after every decrypt.
+ */
+@State(Scope.Thread)
+public class PayloadJsonBenchmark {
+
+    private static final String SENDER = "rescuer-07";
+    private static final String TEXT = "SOS Location: Lat=28.613939 Lon=77.209023";
+    private static final String TS = "2025-09-20 20:09:07";
+    private static final long SENT_AT = 1758398947000L;
+
+    private String json;
+    private byte[] binary;
+    private byte[] deflated;
+
+    @Setup
+    public void setup() {
+        json = new String(MeshMessage.buildJsonPayload(SENDER, TEXT, TS), StandardCharsets.UTF_8);
+        binary = PayloadCodec.encode(PayloadCodec.TYPE_SOS, SENDER, TEXT, SENT_AT);
+        deflated = PayloadCodec.deflate(binary);
+    }
+
+    @Benchmark
+    public byte[] build() {
+        return MeshMessage.buildJsonPayload(SENDER, TEXT, TS);
+    }
+
+    @Benchmark
+    public MeshMessage parse() {
+        MeshMessage m = new MeshMessage();
+        MeshMessage.parseJsonInto(m, json);
+        return m;
+    }
+
+    @Benchmark
+    public byte[] buildBinary() {
+        return PayloadCodec.encode(PayloadCodec.TYPE_SOS, SENDER, TEXT, SENT_AT);
+    }
+
+    @Benchmark
+    public MeshMessage parseBinary() {
+        MeshMessage m = new MeshMessage();
+        PayloadCodec.decodeInto(m, binary);
+        return m;
+    }
+
+    @Benchmark
+    public byte[] buildDeflated() {
+        return PayloadCodec.deflate(PayloadCodec.encode(PayloadCodec.TYPE_SOS, SENDER, TEXT, SENT_AT));
+    }
+
+    @Benchmark
+    public MeshMessage parseDeflated() {
+        MeshMessage m = new MeshMessage();
+        PayloadCodec.decodeInto(m, deflated);
+        return m;
+    }
+}